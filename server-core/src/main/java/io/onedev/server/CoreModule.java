@@ -164,8 +164,10 @@ import io.onedev.server.entitymanager.impl.DefaultSettingManager;
 import io.onedev.server.entitymanager.impl.DefaultSshKeyManager;
 import io.onedev.server.entitymanager.impl.DefaultUserAuthorizationManager;
 import io.onedev.server.entitymanager.impl.DefaultUserManager;
+import io.onedev.server.git.DefaultRefCache;
 import io.onedev.server.git.GitFilter;
 import io.onedev.server.git.GitSshCommandCreator;
+import io.onedev.server.git.RefCache;
 import io.onedev.server.git.config.GitConfig;
 import io.onedev.server.git.hookcallback.GitPostReceiveCallback;
 import io.onedev.server.git.hookcallback.GitPreReceiveCallback;
@@ -220,13 +222,17 @@ import io.onedev.server.rest.RestConstants;
 import io.onedev.server.rest.jersey.DefaultServletContainer;
 import io.onedev.server.rest.jersey.JerseyConfigurator;
 import io.onedev.server.rest.jersey.ResourceConfigProvider;
+import io.onedev.server.search.code.DefaultIndexAccessor;
 import io.onedev.server.search.code.DefaultIndexManager;
 import io.onedev.server.search.code.DefaultSearchManager;
+import io.onedev.server.search.code.IndexAccessor;
 import io.onedev.server.search.code.IndexManager;
 import io.onedev.server.search.code.SearchManager;
+import io.onedev.server.security.AuthorizationCache;
 import io.onedev.server.security.BasicAuthenticationFilter;
 import io.onedev.server.security.BearerAuthenticationFilter;
 import io.onedev.server.security.CodePullAuthorizationSource;
+import io.onedev.server.security.DefaultAuthorizationCache;
 import io.onedev.server.security.DefaultFilterChainResolver;
 import io.onedev.server.security.DefaultPasswordService;
 import io.onedev.server.security.DefaultRememberMeManager;
@@ -420,6 +426,7 @@ public class CoreModule extends AbstractPluginModule {
 		contribute(CodePullAuthorizationSource.class, DefaultJobManager.class);
         
 		bind(IndexManager.class).to(DefaultIndexManager.class);
+		bind(IndexAccessor.class).to(DefaultIndexAccessor.class);
 		bind(SearchManager.class).to(DefaultSearchManager.class);
 		
 		bind(EntityValidator.class).to(DefaultEntityValidator.class);
@@ -520,6 +527,7 @@ public class CoreModule extends AbstractPluginModule {
 	
 	private void configureSecurity() {
 		contributeFromPackage(Realm.class, AbstractAuthorizingRealm.class);
+		bind(AuthorizationCache.class).to(DefaultAuthorizationCache.class);
 		
 		bind(RememberMeManager.class).to(DefaultRememberMeManager.class);
 		bind(WebSecurityManager.class).to(DefaultWebSecurityManager.class);
@@ -548,6 +556,7 @@ public class CoreModule extends AbstractPluginModule {
 		bind(GitFilter.class);
 		bind(GitPreReceiveCallback.class);
 		bind(GitPostReceiveCallback.class);
+		bind(RefCache.class).to(DefaultRefCache.class);
 		contribute(SshCommandCreator.class, GitSshCommandCreator.class);
 	}
 	
@@ -731,6 +740,8 @@ public class CoreModule extends AbstractPluginModule {
 
 		});
 	    
+	    contribute(PersistListener.class, DefaultMarkdownManager.class);
+	    
 		bind(XStream.class).toProvider(new com.google.inject.Provider<XStream>() {
 
 			@SuppressWarnings("rawtypes")
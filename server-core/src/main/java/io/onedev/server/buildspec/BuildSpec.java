@@ -10,6 +10,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
 
 import javax.annotation.Nullable;
 import javax.validation.ConstraintValidatorContext;
@@ -17,6 +19,9 @@ import javax.validation.Valid;
 import javax.validation.ValidationException;
 
 import org.apache.commons.lang3.SerializationUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.yaml.snakeyaml.DumperOptions.FlowStyle;
 import org.yaml.snakeyaml.nodes.MappingNode;
 import org.yaml.snakeyaml.nodes.Node;
@@ -25,9 +30,10 @@ import org.yaml.snakeyaml.nodes.ScalarNode;
 import org.yaml.snakeyaml.nodes.SequenceNode;
 import org.yaml.snakeyaml.nodes.Tag;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Lists;
 
 import io.onedev.commons.utils.ExceptionUtils;
@@ -50,21 +56,26 @@ public class BuildSpec implements Serializable, Validatable {
 
 	private static final long serialVersionUID = 1L;
 	
-	private static final LoadingCache<String, byte[]> parseCache =  CacheBuilder.newBuilder().softValues().build(new CacheLoader<String, byte[]>() {
-	        
-		@Override
-        public byte[] load(String key) {
-			String buildSpecString = key;
-			if (buildSpecString.trim().startsWith("<?xml")) 
-				buildSpecString = XmlBuildSpecMigrator.migrate(buildSpecString);
-			try {
-				return SerializationUtils.serialize(VersionedYamlDoc.fromYaml(buildSpecString).toBean(BuildSpec.class));
-			} catch (Exception e) {
-				throw new InvalidBuildSpecException("Invalid build spec", e);
-			}
-        }
-	        
-	});
+	private static final long MAX_PARSE_CACHE_WEIGHT = 64*1024*1024;
+	
+	/*
+	 * Parsed build specs shared by all projects and sessions, keyed by id of the build spec 
+	 * blob so that commits with same build spec content only parse it once. Values are kept 
+	 * in serialized form, and deserialized on each read so that callers get their own copy 
+	 * to modify 
+	 */
+	private static final Cache<ObjectId, byte[]> parseCache = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_PARSE_CACHE_WEIGHT)
+			.weigher(new Weigher<ObjectId, byte[]>() {
+
+				@Override
+				public int weigh(ObjectId key, byte[] value) {
+					return value.length;
+				}
+				
+			})
+			.recordStats()
+			.build();
 	
 	public static final String BLOB_PATH = ".onedev-buildspec.yml";
 	
@@ -236,20 +247,76 @@ public class BuildSpec implements Serializable, Validatable {
 	
 	@Nullable
 	public static BuildSpec parse(byte[] bytes) {
-		String buildSpecString = new String(bytes, StandardCharsets.UTF_8); 
-		if (StringUtils.isNotBlank(buildSpecString)) {
-			try {
-				return SerializationUtils.deserialize(parseCache.getUnchecked(buildSpecString));
-			} catch (Exception e) {
-				InvalidBuildSpecException invalidBuildSpecException = ExceptionUtils.find(e, InvalidBuildSpecException.class);
-				if (invalidBuildSpecException != null)
-					throw invalidBuildSpecException;
-				else 
-					throw e;
+		ObjectId blobId;
+		try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+			blobId = formatter.idFor(Constants.OBJ_BLOB, bytes);
+		}
+		return parse(blobId, new Supplier<byte[]>() {
+
+			@Override
+			public byte[] get() {
+				return bytes;
 			}
-		} else {
-			return null;
+			
+		});
+	}
+	
+	/**
+	 * Parse build spec of specified blob, with result shared across the server
+	 * 
+	 * @param blobId
+	 * 			id of the build spec blob
+	 * @param bytesSupplier
+	 * 			supplier of blob content, only called if build spec of specified blob is not 
+	 * 			cached yet
+	 * @return
+	 * 			parsed build spec, or <tt>null</tt> if blob content is blank
+	 * @throws
+	 * 			InvalidBuildSpecException if blob content is not a valid build spec
+	 */
+	@Nullable
+	public static BuildSpec parse(ObjectId blobId, Supplier<byte[]> bytesSupplier) {
+		byte[] serialized;
+		try {
+			serialized = parseCache.get(blobId.copy(), new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() {
+					String buildSpecString = new String(bytesSupplier.get(), StandardCharsets.UTF_8);
+					if (StringUtils.isNotBlank(buildSpecString)) {
+						if (buildSpecString.trim().startsWith("<?xml")) 
+							buildSpecString = XmlBuildSpecMigrator.migrate(buildSpecString);
+						try {
+							return SerializationUtils.serialize(VersionedYamlDoc.fromYaml(buildSpecString).toBean(BuildSpec.class));
+						} catch (Exception e) {
+							throw new InvalidBuildSpecException("Invalid build spec", e);
+						}
+					} else {
+						return new byte[0];
+					}
+				}
+				
+			});
+		} catch (Exception e) {
+			InvalidBuildSpecException invalidBuildSpecException = ExceptionUtils.find(e, InvalidBuildSpecException.class);
+			if (invalidBuildSpecException != null)
+				throw invalidBuildSpecException;
+			else 
+				throw ExceptionUtils.unchecked(e);
 		}
+		if (serialized.length != 0)
+			return SerializationUtils.deserialize(serialized);
+		else
+			return null;
+	}
+	
+	/**
+	 * @return
+	 * 			statistics of the build spec parse cache. Miss count is the number of parses, 
+	 * 			including failed ones
+	 */
+	public static CacheStats getParseCacheStats() {
+		return parseCache.stats();
 	}
 	
 	@SuppressWarnings("unused")
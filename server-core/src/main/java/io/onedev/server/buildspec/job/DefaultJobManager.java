@@ -3,11 +3,12 @@ package io.onedev.server.buildspec.job;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -18,7 +19,12 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -41,6 +47,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import io.onedev.commons.launcher.loader.Listen;
@@ -66,6 +73,8 @@ import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.entitymanager.SettingManager;
 import io.onedev.server.entitymanager.UserManager;
 import io.onedev.server.event.ProjectEvent;
+import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.RefsUpdated;
 import io.onedev.server.event.build.BuildFinished;
 import io.onedev.server.event.build.BuildPending;
 import io.onedev.server.event.build.BuildRetrying;
@@ -96,6 +105,7 @@ import io.onedev.server.security.permission.ProjectPermission;
 import io.onedev.server.util.CommitAware;
 import io.onedev.server.util.MatrixRunner;
 import io.onedev.server.util.SimpleLogger;
+import io.onedev.server.util.concurrent.TimerWheel;
 import io.onedev.server.util.patternset.PatternSet;
 import io.onedev.server.util.script.identity.JobIdentity;
 import io.onedev.server.util.script.identity.ScriptIdentity;
@@ -105,12 +115,34 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 
 	private static final int CHECK_INTERVAL = 1000; // check internal in milli-seconds
 	
+	/*
+	 * Builds are normally checked when relevant events happen. Full check of all unfinished 
+	 * builds is only performed periodically as a safety net
+	 */
+	private static final int RECONCILE_INTERVAL = 300000; 
+	
+	private static final int TIMER_SLOTS = 512;
+	
+	private static final Set<Long> FINISHED_DEPENDENCY = Collections.unmodifiableSet(new HashSet<>());
+	
 	private static final Logger logger = LoggerFactory.getLogger(DefaultJobManager.class);
 	
 	private final Map<String, JobContext> jobContexts = new ConcurrentHashMap<>();
 	
 	private final Map<Long, JobExecution> jobExecutions = new ConcurrentHashMap<>();
 	
+	// Ids of builds requiring check
+	private final BlockingQueue<Long> buildsToCheck = new LinkedBlockingQueue<>();
+	
+	/*
+	 * Map of dependency build id to ids of waiting dependent builds. A dependency is mapped to 
+	 * FINISHED_DEPENDENCY once it is finished and committed, so that dependents registered 
+	 * after that will not miss it. Finished markers are cleared on full reconcile
+	 */
+	private final Map<Long, Set<Long>> waitingDependents = new ConcurrentHashMap<>();
+	
+	private final TimerWheel<Long> timeouts = new TimerWheel<>(CHECK_INTERVAL, TIMER_SLOTS);
+	
 	private final ProjectManager projectManager;
 	
 	private final BuildManager buildManager;
@@ -352,7 +384,7 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 				CloneInfo cloneInfo = job.getCloneCredential().newCloneInfo(build, jobToken);
 				
 				AtomicReference<JobExecution> executionRef = new AtomicReference<>(null);
-				executionRef.set(new JobExecution(executorService.submit(new Runnable() {
+				executionRef.set(new JobExecution(submit(buildId, new Runnable() {
 
 					@Override
 					public void run() {
@@ -508,8 +540,10 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 												@Override
 												public void run() {
 													JobExecution execution = executionRef.get();
-													if (execution != null)
+													if (execution != null) {
 														execution.updateBeginTime();
+														timeouts.schedule(buildId, execution.getDeadline());
+													}
 													Build build = buildManager.load(buildId);
 													build.setPendingDate(new Date());
 													build.setStatus(Build.Status.PENDING);
@@ -570,6 +604,36 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 		}
 	}
 	
+	/**
+	 * Submit job execution. Build will be checked once execution is done, either completed 
+	 * normally or cancelled
+	 */
+	private Future<?> submit(Long buildId, Runnable runnable) {
+		FutureTask<Void> future = new FutureTask<Void>(runnable, null) {
+
+			@Override
+			protected void done() {
+				buildsToCheck.offer(buildId);
+			}
+			
+		};
+		executorService.execute(future);
+		return future;
+	}
+	
+	private void requestCheckAfterCommit(Collection<Long> buildIds) {
+		if (!buildIds.isEmpty()) {
+			transactionManager.runAfterCommit(new Runnable() {
+
+				@Override
+				public void run() {
+					buildsToCheck.addAll(buildIds);
+				}
+				
+			});
+		}
+	}
+	
 	private void log(Throwable e, SimpleLogger logger) {
 		if (e instanceof ExplicitException)
 			logger.log(e.getMessage());
@@ -608,63 +672,88 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 	@Sessional
 	@Listen
 	public void on(ProjectEvent event) {
+		if (event instanceof RefUpdated && ((RefUpdated) event).isBatched())
+			return;
 		if (event instanceof CommitAware) {
 			ObjectId commitId = ((CommitAware) event).getCommit().getCommitId();
-			if (!commitId.equals(ObjectId.zeroId())) {
-				ScriptIdentity.push(new JobIdentity(event.getProject(), commitId));
-				try {
-					BuildSpec buildSpec = event.getProject().getBuildSpec(commitId);
-					if (buildSpec != null) {
-						for (Job job: buildSpec.getJobs()) {
-							JobTriggerMatch match = job.getTriggerMatch(event);
-							if (match != null) {
-								Map<String, List<List<String>>> paramMatrix = 
-										ParamSupply.getParamMatrix(match.getTrigger().getParams(), null);						
-								Long projectId = event.getProject().getId();
-								
-								// run asynchrously as session may get closed due to exception
-								transactionManager.runAfterCommit(new Runnable() {
+			if (!commitId.equals(ObjectId.zeroId())) 
+				checkJobTriggers(event.getProject(), commitId, Lists.newArrayList(event));
+		}
+	}
+	
+	@Sessional
+	@Listen
+	public void on(RefsUpdated event) {
+		Map<ObjectId, List<ProjectEvent>> eventsByCommit = new LinkedHashMap<>();
+		for (RefUpdated refUpdated: event.getRefUpdates()) {
+			if (!refUpdated.getNewCommitId().equals(ObjectId.zeroId())) {
+				eventsByCommit.computeIfAbsent(refUpdated.getNewCommitId(), it -> new ArrayList<>())
+						.add(refUpdated);
+			}
+		}
+		for (Map.Entry<ObjectId, List<ProjectEvent>> entry: eventsByCommit.entrySet())
+			checkJobTriggers(event.getProject(), entry.getKey(), entry.getValue());
+	}
+	
+	/*
+	 * Check job triggers against specified events all pointing to specified commit, so that build 
+	 * spec is only evaluated once for refs of a push sharing the same commit
+	 */
+	private void checkJobTriggers(Project project, ObjectId commitId, Collection<ProjectEvent> events) {
+		ScriptIdentity.push(new JobIdentity(project, commitId));
+		try {
+			BuildSpec buildSpec = project.getBuildSpec(commitId);
+			if (buildSpec != null) {
+				for (Job job: buildSpec.getJobs()) {
+					for (ProjectEvent event: events) {
+						JobTriggerMatch match = job.getTriggerMatch(event);
+						if (match != null) {
+							Map<String, List<List<String>>> paramMatrix = 
+									ParamSupply.getParamMatrix(match.getTrigger().getParams(), null);						
+							Long projectId = project.getId();
+							
+							// run asynchrously as session may get closed due to exception
+							transactionManager.runAfterCommit(new Runnable() {
 
-									@Override
-									public void run() {
-										sessionManager.runAsync(new Runnable() {
+								@Override
+								public void run() {
+									sessionManager.runAsync(new Runnable() {
+										
+										@Override
+										public void run() {
+											ThreadContext.bind(userManager.getSystem().asSubject());
 											
-											@Override
-											public void run() {
-												ThreadContext.bind(userManager.getSystem().asSubject());
-												
-												Project project = projectManager.load(projectId);
-												try {
-													new MatrixRunner<List<String>>(paramMatrix) {
-														
-														@Override
-														public void run(Map<String, List<String>> paramMap) {
-															submit(project, commitId, job.getName(), paramMap, match.getReason()); 
-														}
-														
-													}.run();
-												} catch (Throwable e) {
-													String message = String.format("Error submitting build (project: %s, commit: %s, job: %s)", 
-															project.getName(), commitId.name(), job.getName());
-													logger.error(message, e);
-												}
+											Project project = projectManager.load(projectId);
+											try {
+												new MatrixRunner<List<String>>(paramMatrix) {
+													
+													@Override
+													public void run(Map<String, List<String>> paramMap) {
+														submit(project, commitId, job.getName(), paramMap, match.getReason()); 
+													}
+													
+												}.run();
+											} catch (Throwable e) {
+												String message = String.format("Error submitting build (project: %s, commit: %s, job: %s)", 
+														project.getName(), commitId.name(), job.getName());
+												logger.error(message, e);
 											}
-											
-										});
-									}
-									
-								});
-							}
+										}
+										
+									});
+								}
+								
+							});
 						}
 					}
-				} catch (Throwable e) {
-					String message = String.format("Error checking job triggers (project: %s, commit: %s)", 
-							event.getProject().getName(), commitId.name());
-					logger.error(message, e);
-				} finally {
-					ScriptIdentity.pop();
 				}
 			}
+		} catch (Throwable e) {
+			String message = String.format("Error checking job triggers (project: %s, commit: %s)", 
+					project.getName(), commitId.name());
+			logger.error(message, e);
+		} finally {
+			ScriptIdentity.pop();
 		}
 	}
 	
@@ -789,96 +878,176 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 
 	@Override
 	public void run() {
+		long reconcileTime = 0;
 		while (!jobExecutions.isEmpty() || thread != null) {
 			try {
-				synchronized (this) {
-					transactionManager.run(new Runnable() {
-		
-						@Override
-						public void run() {
-							for (Build build: buildManager.queryUnfinished()) {
-								if (build.getStatus() == Build.Status.RUNNING || build.getStatus() == Build.Status.PENDING) {
-									JobExecution execution = jobExecutions.get(build.getId());
-									if (execution != null) {
-										if (execution.isTimedout())
-											execution.cancel(null);
-									} else if (thread != null) {
-										try {
-											jobExecutions.put(build.getId(), execute(build));
-										} catch (Throwable t) {
-											if (t instanceof ExplicitException)
-												markBuildError(build, t.getMessage());
-											else
-												markBuildError(build, Throwables.getStackTraceAsString(t));
-										}
-									}
-								} else if (build.getStatus() == Build.Status.WAITING) {
-									if (build.getRetryDate() != null) {
-										JobExecution execution = jobExecutions.get(build.getId());
-										if (execution == null && thread != null) {
-											build.setStatus(Build.Status.PENDING);
-											build.setPendingDate(new Date());
-											listenerRegistry.post(new BuildPending(build));
-										}
-									} else if (build.getDependencies().stream().anyMatch(it -> it.isRequireSuccessful() 
-											&& it.getDependency().isFinished() 
-											&& it.getDependency().getStatus() != Build.Status.SUCCESSFUL)) {
-										markBuildError(build, "Some dependencies are required to be successful but failed");
-									} else if (build.getDependencies().stream().allMatch(it->it.getDependency().isFinished())) {
-										build.setStatus(Build.Status.PENDING);
-										build.setPendingDate(new Date());
-										listenerRegistry.post(new BuildPending(build));
-									}
-								} 
-							}
-							for (Iterator<Map.Entry<Long, JobExecution>> it = jobExecutions.entrySet().iterator(); it.hasNext();) {
-								Map.Entry<Long, JobExecution> entry = it.next();
-								Build build = buildManager.get(entry.getKey());
-								JobExecution execution = entry.getValue();
-								if (build == null || build.isFinished()) {
-									it.remove();
-									execution.cancel(null);
-								} else if (execution.isDone()) {
-									it.remove();
-									try {
-										execution.check();
-										build.setStatus(Build.Status.SUCCESSFUL);
-									} catch (TimeoutException e) {
-										build.setStatus(Build.Status.TIMED_OUT);
-									} catch (CancellationException e) {
-										if (e instanceof CancellerAwareCancellationException) {
-											Long cancellerId = ((CancellerAwareCancellationException) e).getCancellerId();
-											if (cancellerId != null)
-												build.setCanceller(userManager.load(cancellerId));
-										}
-										build.setStatus(Build.Status.CANCELLED);
-									} catch (ExecutionException e) {
-										if (e.getCause() instanceof ExplicitException)
-											build.setStatus(Build.Status.FAILED, e.getCause().getMessage());
-										else
-											build.setStatus(Build.Status.FAILED, e.getMessage());
-									} catch (InterruptedException e) {
-									} finally {
-										build.setFinishDate(new Date());
-										listenerRegistry.post(new BuildFinished(build));
-									}
-								}
+				Collection<Long> buildIds;
+				if (thread == null) {
+					// System is stopping, only need to check remaining executions
+					buildIds = new HashSet<>(jobExecutions.keySet());
+				} else if (System.currentTimeMillis() - reconcileTime >= RECONCILE_INTERVAL) {
+					buildIds = null;
+					reconcileTime = System.currentTimeMillis();
+				} else {
+					buildIds = new HashSet<>();
+					// Wait for builds requiring check, but not longer than a tick of the timeout wheel
+					Long buildId = buildsToCheck.poll(CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+					if (buildId != null) {
+						buildIds.add(buildId);
+						buildsToCheck.drainTo(buildIds);
+					}
+					buildIds.addAll(timeouts.advance(System.currentTimeMillis()));
+				}
+				if (buildIds == null || !buildIds.isEmpty()) {
+					synchronized (this) {
+						transactionManager.run(new Runnable() {
+			
+							@Override
+							public void run() {
+								check(buildIds);
 							}
-						}
-						
-					});
+							
+						});
+					}
 				}
-				Thread.sleep(CHECK_INTERVAL);
+				
+				if (thread == null)
+					Thread.sleep(CHECK_INTERVAL);
 			} catch (Throwable e) {
 				logger.error("Error checking unfinished builds", e);
 			} 
 		}	
 	}
 	
+	/**
+	 * Check specified builds
+	 * 
+	 * @param buildIds
+	 * 			ids of builds to check, or <tt>null</tt> to check all unfinished builds and 
+	 * 			all job executions
+	 */
+	private void check(@Nullable Collection<Long> buildIds) {
+		Collection<Build> builds;
+		Collection<Long> executionBuildIds;
+		if (buildIds != null) {
+			builds = new ArrayList<>();
+			for (Long buildId: buildIds) {
+				Build build = buildManager.get(buildId);
+				if (build != null && !build.isFinished())
+					builds.add(build);
+			}
+			executionBuildIds = buildIds;
+		} else {
+			builds = buildManager.queryUnfinished();
+			waitingDependents.clear();
+			executionBuildIds = new ArrayList<>(jobExecutions.keySet());
+		}
+		
+		for (Build build: builds) {
+			if (build.getStatus() == Build.Status.RUNNING || build.getStatus() == Build.Status.PENDING) {
+				JobExecution execution = jobExecutions.get(build.getId());
+				if (execution != null) {
+					if (execution.isTimedout())
+						execution.cancel(null);
+				} else if (thread != null) {
+					try {
+						execution = execute(build);
+						jobExecutions.put(build.getId(), execution);
+						timeouts.schedule(build.getId(), execution.getDeadline());
+					} catch (Throwable t) {
+						if (t instanceof ExplicitException)
+							markBuildError(build, t.getMessage());
+						else
+							markBuildError(build, Throwables.getStackTraceAsString(t));
+					}
+				}
+			} else if (build.getStatus() == Build.Status.WAITING) {
+				if (build.getRetryDate() != null) {
+					JobExecution execution = jobExecutions.get(build.getId());
+					if (execution == null && thread != null) {
+						build.setStatus(Build.Status.PENDING);
+						build.setPendingDate(new Date());
+						listenerRegistry.post(new BuildPending(build));
+					}
+				} else if (build.getDependencies().stream().anyMatch(it -> it.isRequireSuccessful() 
+						&& it.getDependency().isFinished() 
+						&& it.getDependency().getStatus() != Build.Status.SUCCESSFUL)) {
+					markBuildError(build, "Some dependencies are required to be successful but failed");
+				} else if (build.getDependencies().stream().allMatch(it->it.getDependency().isFinished())) {
+					build.setStatus(Build.Status.PENDING);
+					build.setPendingDate(new Date());
+					listenerRegistry.post(new BuildPending(build));
+				} else {
+					Long dependentId = build.getId();
+					for (BuildDependence dependence: build.getDependencies()) {
+						if (!dependence.getDependency().isFinished()) {
+							/*
+							 * Dependency status read above may be stale if it is finished in another 
+							 * transaction concurrently. Register atomically against the finished 
+							 * marker and check again if it is already there
+							 */
+							Set<Long> dependentIds = waitingDependents.compute(dependence.getDependency().getId(), 
+									(key, value) -> {
+								if (value == null)
+									value = ConcurrentHashMap.newKeySet();
+								if (value != FINISHED_DEPENDENCY)
+									value.add(dependentId);
+								return value;
+							});
+							if (dependentIds == FINISHED_DEPENDENCY)
+								buildsToCheck.offer(dependentId);
+						}
+					}
+				}
+			} 
+		}
+		
+		for (Long buildId: executionBuildIds) {
+			JobExecution execution = jobExecutions.get(buildId);
+			if (execution == null)
+				continue;
+			Build build = buildManager.get(buildId);
+			if (build == null || build.isFinished()) {
+				jobExecutions.remove(buildId);
+				execution.cancel(null);
+			} else if (execution.isDone()) {
+				jobExecutions.remove(buildId);
+				try {
+					execution.check();
+					build.setStatus(Build.Status.SUCCESSFUL);
+				} catch (TimeoutException e) {
+					build.setStatus(Build.Status.TIMED_OUT);
+				} catch (CancellationException e) {
+					if (e instanceof CancellerAwareCancellationException) {
+						Long cancellerId = ((CancellerAwareCancellationException) e).getCancellerId();
+						if (cancellerId != null)
+							build.setCanceller(userManager.load(cancellerId));
+					}
+					build.setStatus(Build.Status.CANCELLED);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof ExplicitException)
+						build.setStatus(Build.Status.FAILED, e.getCause().getMessage());
+					else
+						build.setStatus(Build.Status.FAILED, e.getMessage());
+				} catch (InterruptedException e) {
+				} finally {
+					build.setFinishDate(new Date());
+					listenerRegistry.post(new BuildFinished(build));
+				}
+			}
+		}
+	}
+	
+	@Listen
+	public void on(BuildPending event) {
+		requestCheckAfterCommit(Sets.newHashSet(event.getBuild().getId()));
+	}
+	
 	@Listen
 	public void on(BuildSubmitted event) {
 		Build build = event.getBuild();
 		FileUtils.deleteDir(build.getPublishDir());
+		requestCheckAfterCommit(Sets.newHashSet(build.getId()));
 	}
 
 	@Transactional
@@ -891,6 +1060,17 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 		}
 
 		Long buildId = build.getId();
+		
+		transactionManager.runAfterCommit(new Runnable() {
+
+			@Override
+			public void run() {
+				Set<Long> dependentIds = waitingDependents.put(buildId, FINISHED_DEPENDENCY);
+				if (dependentIds != null && dependentIds != FINISHED_DEPENDENCY)
+					buildsToCheck.addAll(dependentIds);
+			}
+			
+		});
 
 		OneDev.getInstance(TransactionManager.class).runAfterCommit(new Runnable() {
 
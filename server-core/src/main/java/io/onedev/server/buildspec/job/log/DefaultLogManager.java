@@ -1,15 +1,8 @@
 package io.onedev.server.buildspec.job.log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -17,16 +10,19 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.antlr.v4.runtime.tree.TerminalNode;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -44,15 +40,16 @@ import io.onedev.server.buildspec.job.log.instruction.LogInstructionParser.Instr
 import io.onedev.server.buildspec.job.log.instruction.LogInstructionParser.ParamContext;
 import io.onedev.server.entitymanager.BuildManager;
 import io.onedev.server.event.build.BuildFinished;
+import io.onedev.server.event.system.SystemStarted;
+import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.model.Build;
-import io.onedev.server.model.support.inputspec.SecretInput;
 import io.onedev.server.persistence.annotation.Sessional;
 import io.onedev.server.storage.StorageManager;
 import io.onedev.server.util.SimpleLogger;
 import io.onedev.server.web.websocket.WebSocketManager;
 
 @Singleton
-public class DefaultLogManager implements LogManager {
+public class DefaultLogManager implements LogManager, Runnable {
 
 	private static final Logger logger = LoggerFactory.getLogger(DefaultLogManager.class);
 	
@@ -60,11 +57,15 @@ public class DefaultLogManager implements LogManager {
 
 	private static final int MAX_CACHE_ENTRIES = 10000;
 	
-	private static final String LOG_FILE = "build.log";
-	
 	private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss");	
 	
 	private static final Pattern EOL_PATTERN = Pattern.compile("\r?\n");
+	
+	private static final int MAX_PENDING_ENTRIES = 50000;
+	
+	private static final long FLUSH_INTERVAL = 100;
+	
+	private static final long NOTIFY_INTERVAL = 500;
 
 	private final StorageManager storageManager;
 	
@@ -74,6 +75,10 @@ public class DefaultLogManager implements LogManager {
 	
 	private final Map<Long, LogSnippet> recentSnippets = new ConcurrentHashMap<>();
 	
+	private final Map<Long, LogBuffer> logBuffers = new ConcurrentHashMap<>();
+	
+	private volatile Thread thread;
+	
 	@Inject
 	public DefaultLogManager(StorageManager storageManager, WebSocketManager webSocketManager, 
 			BuildManager buildManager) {
@@ -82,9 +87,30 @@ public class DefaultLogManager implements LogManager {
 		this.buildManager = buildManager;
 	}
 	
-	private File getLogFile(Long projectId, Long buildNumber) {
+	private JobLogFile getLogFile(Long projectId, Long buildNumber) {
+		return new JobLogFile(storageManager.getBuildDir(projectId, buildNumber));
+	}
+	
+	/**
+	 * Convert log saved in legacy format on first access. This has to be done before 
+	 * acquiring the read lock as conversion needs the write lock
+	 */
+	private void convertLegacyLog(Build build) {
+		convertLegacyLog(build.getProject().getId(), build.getNumber(), build.getId());
+	}
+	
+	private void convertLegacyLog(Long projectId, Long buildNumber, Long buildId) {
 		File buildDir = storageManager.getBuildDir(projectId, buildNumber);
-		return new File(buildDir, LOG_FILE);
+		if (new File(buildDir, JobLogFile.LEGACY_FILE).exists()) {
+			Lock lock = LockUtils.getReadWriteLock(getLockKey(buildId)).writeLock();
+			lock.lock();
+			try {
+				if (JobLogFile.convertLegacy(buildDir))
+					logger.info("Converted legacy log (project id: {}, build number: {})", projectId, buildNumber);
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 	
 	@Override
@@ -94,43 +120,26 @@ public class DefaultLogManager implements LogManager {
 		Long buildNumber = build.getNumber();
 		Collection<String> secretValuesToMask = build.getSecretValuesToMask();
 		secretValuesToMask.addAll(jobSecretsToMask);
+		SecretMasker secretMasker = new SecretMasker(secretValuesToMask);
+		LogBuffer logBuffer = logBuffers.computeIfAbsent(buildId, it -> new LogBuffer(projectId, buildNumber));
 		return new SimpleLogger() {
 			
 			private void doLog(String message) {
-				for (String maskSecret: secretValuesToMask)
-					message = StringUtils.replace(message, maskSecret, SecretInput.MASK);
+				JobLogEntry entry = new JobLogEntry(new Date(), secretMasker.mask(message));
+				/*
+				 * Drop the entry if the flusher can not keep up, so that logging never blocks 
+				 * or does file io while build is running
+				 */
+				if (!logBuffer.pending.offer(entry))
+					logBuffer.droppedEntries.incrementAndGet();
 				
-				Lock lock = LockUtils.getReadWriteLock(getLockKey(buildId)).writeLock();
-				lock.lock();
-				try {
-					LogSnippet snippet = recentSnippets.get(buildId);
-					if (snippet == null) {
-						File logFile = getLogFile(projectId, buildNumber);
-						if (!logFile.exists())	{
-							snippet = new LogSnippet();
-							recentSnippets.put(buildId, snippet);
-						}
-					}
-					if (snippet != null) {
-						snippet.entries.add(new JobLogEntry(new Date(), message));
-						if (snippet.entries.size() > MAX_CACHE_ENTRIES) {
-							File logFile = getLogFile(projectId, buildNumber);
-							try (ObjectOutputStream oos = newOutputStream(logFile)) {
-								while (snippet.entries.size() > MIN_CACHE_ENTRIES) {
-									JobLogEntry entry = snippet.entries.remove(0);
-									oos.writeObject(entry);
-									snippet.offset++;
-								}
-							} catch (IOException e) {
-								throw new RuntimeException(e);
-							}
-						}
-						
-						webSocketManager.notifyObservableChange(Build.getLogWebSocketObservable(buildId));
-					}
-				} finally {
-					lock.unlock();
-				}
+				/*
+				 * Buffer is no longer flushed in background once build is finished, while 
+				 * executor may still be logging, for instance when cleaning up after being 
+				 * cancelled. Write entries to log file directly then
+				 */
+				if (logBuffer.closed && flush(buildId, logBuffer) != 0)
+					webSocketManager.notifyObservableChange(Build.getLogWebSocketObservable(buildId));
 			}
 			
 			@Override
@@ -179,90 +188,156 @@ public class DefaultLogManager implements LogManager {
 		};
 	}
 	
-	@Sessional
-	protected void doInSession(LogInstruction instruction, Long buildId, Map<String, List<String>> params) {
-		instruction.execute(buildManager.load(buildId), params);
-	}
-
-	private String getLockKey(Long buildId) {
-		return "build-log: " + buildId;
-	}
-
-	@Override
-	public boolean matches(Build build, Pattern pattern) {
-		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
+	/**
+	 * Move pending entries of specified build into recent snippet, and spill old entries of 
+	 * the snippet to log file if necessary. Pending entries of a finished build are appended 
+	 * to log file directly
+	 * 
+	 * @return
+	 * 			number of flushed entries
+	 */
+	private int flush(Long buildId, LogBuffer logBuffer) {
+		Lock lock = LockUtils.getReadWriteLock(getLockKey(buildId)).writeLock();
 		lock.lock();
 		try {
-			LogSnippet snippet = recentSnippets.get(build.getId());
-			if (snippet != null) {
-				for (JobLogEntry entry: snippet.entries) {
-					if ((build.getRetryDate() == null || !entry.getDate().before(build.getRetryDate())) 
-							&& pattern.matcher(entry.getMessage()).find()) {
-						return true;
+			/* 
+			 * Drain inside the lock so that batches drained by different threads are  
+			 * appended in order 
+			 */
+			List<JobLogEntry> entries = new ArrayList<>();
+			logBuffer.pending.drainTo(entries);
+			int droppedEntries = logBuffer.droppedEntries.getAndSet(0);
+			if (droppedEntries != 0) {
+				entries.add(new JobLogEntry(new Date(), droppedEntries 
+						+ " log lines are dropped as they are produced faster than they can be saved"));
+			}
+			if (!entries.isEmpty() && logBuffer.closed) {
+				getLogFile(logBuffer.projectId, logBuffer.buildNumber).append(entries);
+			} else if (!entries.isEmpty()) {
+				LogSnippet snippet = recentSnippets.get(buildId);
+				if (snippet == null) {
+					JobLogFile logFile = getLogFile(logBuffer.projectId, logBuffer.buildNumber);
+					if (!logFile.exists())	{
+						snippet = new LogSnippet();
+						recentSnippets.put(buildId, snippet);
 					}
 				}
-			}
-			
-			File logFile = getLogFile(build.getProject().getId(), build.getNumber());
-			
-			if (logFile.exists()) {
-				try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
-					while (true) {
-						JobLogEntry entry  = (JobLogEntry) ois.readObject();
-						if ((build.getRetryDate() == null || !entry.getDate().before(build.getRetryDate())) 
-								&& pattern.matcher(entry.getMessage()).find()) {
-							return true;
-						}
+				if (snippet != null) {
+					snippet.entries.addAll(entries);
+					if (snippet.entries.size() > MAX_CACHE_ENTRIES) {
+						List<JobLogEntry> entriesToSpill = new ArrayList<>();
+						while (snippet.entries.size() > MIN_CACHE_ENTRIES) 
+							entriesToSpill.add(snippet.entries.remove(0));
+						getLogFile(logBuffer.projectId, logBuffer.buildNumber).append(entriesToSpill);
+						snippet.offset += entriesToSpill.size();
 					}
-				} catch (EOFException e) {
-				} catch (IOException|ClassNotFoundException e) {
-					throw new RuntimeException(e);
+					logBuffer.changed = true;
 				}
 			}
-			return false;
+			return entries.size();
 		} finally {
 			lock.unlock();
 		}
 	}
 	
-	private List<JobLogEntry> readLogEntries(File logFile, int from, int count) {
-		List<JobLogEntry> entries = new ArrayList<>();
-		if (logFile.exists()) {
-			try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
-				int numOfReadEntries = 0;
-				while (numOfReadEntries < from) {
-					ois.readObject();
-					numOfReadEntries++;
-				}
-				while (count == 0 || numOfReadEntries - from < count) {
-					entries.add((JobLogEntry) ois.readObject());
-					numOfReadEntries++;
-				}
-			} catch (EOFException e) {
-			} catch (IOException | ClassNotFoundException e) {
-				throw new RuntimeException(e);
+	private void flush(Long buildId) {
+		LogBuffer logBuffer = logBuffers.get(buildId);
+		if (logBuffer != null)
+			flush(buildId, logBuffer);
+	}
+	
+	private void flushAndNotify() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long, LogBuffer> entry: logBuffers.entrySet()) {
+			Long buildId = entry.getKey();
+			LogBuffer logBuffer = entry.getValue();
+			flush(buildId, logBuffer);
+			if (logBuffer.changed && now - logBuffer.notifyTime >= NOTIFY_INTERVAL) {
+				logBuffer.changed = false;
+				logBuffer.notifyTime = now;
+				webSocketManager.notifyObservableChange(Build.getLogWebSocketObservable(buildId));
+			}
+		}
+	}
+	
+	@Listen
+	public void on(SystemStarted event) {
+		thread = new Thread(this);
+		thread.start();
+	}
+	
+	@Listen
+	public void on(SystemStopping event) {
+		if (thread != null) {
+			Thread copy = thread;
+			thread = null;
+			try {
+				copy.join();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (thread != null) {
+			try {
+				flushAndNotify();
+				Thread.sleep(FLUSH_INTERVAL);
+			} catch (Throwable e) {
+				logger.error("Error flushing build logs", e);
 			}
 		}
-		return entries;
+		flushAndNotify();
+	}
+	
+	@Sessional
+	protected void doInSession(LogInstruction instruction, Long buildId, Map<String, List<String>> params) {
+		instruction.execute(buildManager.load(buildId), params);
+	}
+
+	private String getLockKey(Long buildId) {
+		return "build-log: " + buildId;
+	}
+
+	@Override
+	public boolean matches(Build build, Pattern pattern) {
+		return !search(build, pattern, build.getRetryDate(), 1).isEmpty();
 	}
 	
-	private LogSnippet readLogSnippetReversely(File logFile, int count) {
-		LogSnippet snippet = new LogSnippet();
-		if (logFile.exists()) {
-			try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
-				while (true) {
-					snippet.entries.add((JobLogEntry) ois.readObject());
-					if (snippet.entries.size() > count) {
-						snippet.entries.remove(0);
-						snippet.offset ++;
+	@Override
+	public List<Integer> search(Build build, Pattern pattern, Date fromDate, int maxHits) {
+		return search(build.getProject().getId(), build.getNumber(), build.getId(), 
+				pattern, fromDate, maxHits);
+	}
+	
+	private List<Integer> search(Long projectId, Long buildNumber, Long buildId, Pattern pattern, 
+			@Nullable Date fromDate, int maxHits) {
+		convertLegacyLog(projectId, buildNumber, buildId);
+		flush(buildId);
+		Lock lock = LockUtils.getReadWriteLock(getLockKey(buildId)).readLock();
+		lock.lock();
+		try {
+			List<Integer> hits = new ArrayList<>();
+			long fromTime = fromDate != null? fromDate.getTime(): Long.MIN_VALUE;
+			boolean terminated = getLogFile(projectId, buildNumber).search(pattern, fromTime, maxHits, hits);
+			LogSnippet snippet = recentSnippets.get(buildId);
+			if (!terminated && snippet != null) {
+				Matcher matcher = pattern.matcher("");
+				int index = snippet.offset;
+				for (JobLogEntry entry: snippet.entries) {
+					if (entry.getDate().getTime() >= fromTime && matcher.reset(entry.getMessage()).find()) {
+						hits.add(index);
+						if (hits.size() == maxHits)
+							break;
 					}
+					index++;
 				}
-			} catch (EOFException e) {
-			} catch (IOException | ClassNotFoundException e) {
-				throw new RuntimeException(e);
 			}
+			return hits;
+		} finally {
+			lock.unlock();
 		}
-		return snippet;
 	}
 	
 	private List<JobLogEntry> readLogEntries(List<JobLogEntry> cachedEntries, int from, int count) {
@@ -279,17 +354,19 @@ public class DefaultLogManager implements LogManager {
 	@Sessional
 	@Override
 	public List<JobLogEntry> readLogEntries(Build build, int from, int count) {
+		convertLegacyLog(build);
+		flush(build.getId());
 		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
 		lock.lock();
 		try {
-			File logFile = getLogFile(build.getProject().getId(), build.getNumber());
+			JobLogFile logFile = getLogFile(build.getProject().getId(), build.getNumber());
 			LogSnippet snippet = recentSnippets.get(build.getId());
 			if (snippet != null) {
 				if (from >= snippet.offset) {
 					return readLogEntries(snippet.entries, from - snippet.offset, count);
 				} else {
 					List<JobLogEntry> entries = new ArrayList<>();
-					entries.addAll(readLogEntries(logFile, from, count));
+					entries.addAll(logFile.read(from, count));
 					if (count == 0)
 						entries.addAll(snippet.entries);
 					else if (entries.size() < count) 
@@ -297,7 +374,7 @@ public class DefaultLogManager implements LogManager {
 					return entries;
 				}
 			} else {
-				return readLogEntries(logFile, from, count);
+				return logFile.read(from, count);
 			}
 		} finally {
 			lock.unlock();
@@ -307,10 +384,12 @@ public class DefaultLogManager implements LogManager {
 	@Sessional
 	@Override
 	public LogSnippet readLogSnippetReversely(Build build, int count) {
+		convertLegacyLog(build);
+		flush(build.getId());
 		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
 		lock.lock();
 		try {
-			File logFile = getLogFile(build.getProject().getId(), build.getNumber());
+			JobLogFile logFile = getLogFile(build.getProject().getId(), build.getNumber());
 			LogSnippet recentSnippet = recentSnippets.get(build.getId());
 			if (recentSnippet != null) {
 				LogSnippet snippet = new LogSnippet();
@@ -318,68 +397,84 @@ public class DefaultLogManager implements LogManager {
 					snippet.entries.addAll(recentSnippet.entries.subList(
 							recentSnippet.entries.size()-count, recentSnippet.entries.size()));
 				} else {
-					snippet.entries.addAll(readLogSnippetReversely(logFile, count - recentSnippet.entries.size()).entries);
+					snippet.entries.addAll(logFile.readReversely(count - recentSnippet.entries.size()).entries);
 					snippet.entries.addAll(recentSnippet.entries);
 				}
 				snippet.offset = recentSnippet.entries.size() + recentSnippet.offset - snippet.entries.size();
 				return snippet;
 			} else {
-				return readLogSnippetReversely(logFile, count);
+				return logFile.readReversely(count);
 			}
 		} finally {
 			lock.unlock();
 		}
 	}
 	
-	private ObjectOutputStream newOutputStream(File logFile) {
-		try {
-			if (logFile.exists()) {
-				return new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true))) {
-
-					@Override
-					protected void writeStreamHeader() throws IOException {
-						reset();
-					}
-					
-				};
-			} else {
-				return new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(logFile)));
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
-	
 	@Sessional
 	@Listen
 	public void on(BuildFinished event) {
 		Build build = event.getBuild();
+		LogBuffer logBuffer = logBuffers.remove(build.getId());
+		boolean flushed = false;
 		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).writeLock();
 		lock.lock();
 		try {
 			LogSnippet snippet = recentSnippets.remove(build.getId());
-			if (snippet != null) {
-				File logFile = getLogFile(build.getProject().getId(), build.getNumber());
-				try (ObjectOutputStream oos = newOutputStream(logFile)) {
-					for (JobLogEntry entry: snippet.entries)
-						oos.writeObject(entry);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				} 
+			if (snippet != null) 
+				getLogFile(build.getProject().getId(), build.getNumber()).append(snippet.entries);
+			
+			/*
+			 * Close the buffer before draining it, so that an entry offered concurrently is 
+			 * either drained here, or seen by the logger as closed and written by itself
+			 */
+			if (logBuffer != null) {
+				logBuffer.closed = true;
+				flushed = flush(build.getId(), logBuffer) != 0;
 			}
 		} finally {
 			lock.unlock();
 		}
+		if (flushed)
+			webSocketManager.notifyObservableChange(Build.getLogWebSocketObservable(build.getId()));
 	}
 
 	@Override
 	public InputStream openLogStream(Build build) {
+		convertLegacyLog(build);
+		flush(build.getId());
 		return new LogStream(build);
 	}
 
+	/**
+	 * Log entries pending to be flushed into recent snippet of a running build, or into log 
+	 * file once the build is finished
+	 */
+	private static class LogBuffer {
+		
+		final Long projectId;
+		
+		final Long buildNumber;
+		
+		final BlockingQueue<JobLogEntry> pending = new ArrayBlockingQueue<>(MAX_PENDING_ENTRIES);
+		
+		final AtomicInteger droppedEntries = new AtomicInteger(0);
+		
+		volatile boolean closed;
+		
+		volatile boolean changed;
+		
+		long notifyTime;
+		
+		LogBuffer(Long projectId, Long buildNumber) {
+			this.projectId = projectId;
+			this.buildNumber = buildNumber;
+		}
+		
+	}
+	
 	class LogStream extends InputStream {
 
-		private ObjectInputStream ois;
+		private JobLogFile.Cursor cursor;
 		
 		private final Lock lock;
 
@@ -393,10 +488,10 @@ public class DefaultLogManager implements LogManager {
 			lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
 			lock.lock();
 			try {
-				File logFile = getLogFile(build.getProject().getId(), build.getNumber());
+				JobLogFile logFile = getLogFile(build.getProject().getId(), build.getNumber());
 				
 				if (logFile.exists())
-					ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+					cursor = logFile.openCursor();
 				
 				LogSnippet snippet = recentSnippets.get(build.getId());
 				if (snippet != null) {
@@ -406,6 +501,8 @@ public class DefaultLogManager implements LogManager {
 					recentBuffer = builder.toString().getBytes(StandardCharsets.UTF_8);
 				}
 			} catch (Exception e) {
+				if (cursor != null)
+					cursor.close();
 				lock.unlock();
 				throw ExceptionUtils.unchecked(e);
 			}
@@ -430,21 +527,8 @@ public class DefaultLogManager implements LogManager {
 		@Override
 		public int read() throws IOException {
 			if (pos == buffer.length) {
-				if (ois != null) {
-					try {
-						buffer = (renderAsText((JobLogEntry) ois.readObject()) + "\n").getBytes(StandardCharsets.UTF_8);
-					} catch (EOFException e) {
-						IOUtils.closeQuietly(ois);
-						ois = null;
-						if (recentBuffer != null) {
-							buffer = recentBuffer;
-							recentBuffer = null;
-						} else {
-							return -1;
-						}
-					} catch (ClassNotFoundException e) {
-						throw new RuntimeException(e);
-					}
+				if (cursor != null && cursor.hasNext()) {
+					buffer = (renderAsText(cursor.next()) + "\n").getBytes(StandardCharsets.UTF_8);
 				} else if (recentBuffer != null) {
 					buffer = recentBuffer;
 					recentBuffer = null;
@@ -460,7 +544,8 @@ public class DefaultLogManager implements LogManager {
 		
 		@Override
 		public void close() throws IOException {
-			IOUtils.closeQuietly(ois);
+			if (cursor != null)
+				cursor.close();
 			lock.unlock();
 		}
 				
@@ -0,0 +1,477 @@
+package io.onedev.server.buildspec.job.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.commons.utils.FileUtils;
+
+/**
+ * Append-only binary storage of job log entries. Entries are stored in a data file as
+ * length-prefixed records (message length, timestamp, UTF-8 message bytes), and offset
+ * of every {@link #INDEX_INTERVAL}th entry is recorded in a sidecar index file, so that
+ * reading entries at arbitrary position only needs to skip at most
+ * {@link #INDEX_INTERVAL} records. The data file is read through heap windows filled with
+ * positional reads. Memory mapping is not used as mapped files can not be released explicitly,
+ * and they will prevent log files from being deleted on Windows.
+ *
+ * This class is not thread-safe, and caller should synchronize access to the same log
+ * via build log lock.
+ */
+public class JobLogFile {
+
+	public static final String DATA_FILE = "build.log.bin";
+
+	public static final String INDEX_FILE = "build.log.idx";
+
+	public static final String LEGACY_FILE = "build.log";
+
+	static final int INDEX_INTERVAL = 256;
+
+	private static final int MAGIC = 0x4f444c47; // ODLG
+
+	private static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 8;
+
+	static final int RECORD_HEADER_SIZE = 12;
+
+	private static final int WINDOW_SIZE = 64*1024;
+
+	private static final int CONVERT_BATCH = 10000;
+
+	private static final int SEARCH_BUFFER_SIZE = 8192;
+
+	private final File dataFile;
+
+	private final File indexFile;
+
+	public JobLogFile(File buildDir) {
+		dataFile = new File(buildDir, DATA_FILE);
+		indexFile = new File(buildDir, INDEX_FILE);
+	}
+
+	public boolean exists() {
+		return dataFile.exists();
+	}
+
+	/**
+	 * @return
+	 * 			number of complete log entries in this file
+	 */
+	public int count() {
+		if (dataFile.exists()) {
+			try (Cursor cursor = new Cursor()) {
+				return cursor.locateEnd();
+			}
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Read log entries starting from specified index
+	 *
+	 * @param from
+	 * 			index of first entry to read
+	 * @param count
+	 * 			number of entries to read. Specifically use <tt>0</tt> to read all entries
+	 * 			since <tt>from</tt>
+	 */
+	public List<JobLogEntry> read(int from, int count) {
+		List<JobLogEntry> entries = new ArrayList<>();
+		if (dataFile.exists()) {
+			try (Cursor cursor = new Cursor()) {
+				if (cursor.seek(from)) {
+					while ((count == 0 || entries.size() < count) && cursor.hasNext())
+						entries.add(cursor.next());
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Read last specified number of log entries
+	 */
+	public LogSnippet readReversely(int count) {
+		LogSnippet snippet = new LogSnippet();
+		if (dataFile.exists()) {
+			try (Cursor cursor = new Cursor()) {
+				int total = cursor.locateEnd();
+				snippet.offset = Math.max(0, total - count);
+				if (cursor.seek(snippet.offset)) {
+					while (cursor.hasNext())
+						snippet.entries.add(cursor.next());
+				}
+			}
+		}
+		return snippet;
+	}
+
+	/**
+	 * Search records matching specified pattern. Messages are decoded into a reused char 
+	 * buffer, so no log entry objects are created during the search
+	 * 
+	 * @param pattern
+	 * 			pattern to search
+	 * @param fromTime
+	 * 			records with timestamp before this value will be ignored
+	 * @param maxHits
+	 * 			stop searching once number of hits reaches this value. Specifically use 
+	 * 			<tt>0</tt> to search all records
+	 * @param hits
+	 * 			indexes of matching records will be added to this list
+	 * @return
+	 * 			<tt>true</tt> if search is terminated due to max hits reached
+	 */
+	public boolean search(Pattern pattern, long fromTime, int maxHits, List<Integer> hits) {
+		if (dataFile.exists()) {
+			CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			CharBuffer chars = CharBuffer.allocate(SEARCH_BUFFER_SIZE);
+			Matcher matcher = pattern.matcher("");
+			try (Cursor cursor = new Cursor()) {
+				while (cursor.hasNext()) {
+					if (cursor.getTime() >= fromTime) {
+						ByteBuffer bytes = cursor.getMessageBytes();
+						int capacity = (int) Math.ceil(bytes.remaining() * decoder.maxCharsPerByte());
+						if (chars.capacity() < capacity)
+							chars = CharBuffer.allocate(capacity);
+						chars.clear();
+						decoder.reset();
+						decoder.decode(bytes, chars, true);
+						decoder.flush(chars);
+						chars.flip();
+						if (matcher.reset(chars).find()) {
+							hits.add(cursor.getIndex());
+							if (hits.size() == maxHits)
+								return true;
+						}
+					}
+					cursor.skip();
+				}
+			}
+		}
+		return false;
+	}
+	
+	public Cursor openCursor() {
+		return new Cursor();
+	}
+
+	public void append(Collection<JobLogEntry> entries) {
+		if (entries.isEmpty())
+			return;
+
+		int count;
+		long length;
+		if (dataFile.exists()) {
+			try (Cursor cursor = new Cursor()) {
+				count = cursor.locateEnd();
+				length = cursor.position;
+			}
+			truncateIfNecessary(dataFile, length);
+			truncateIfNecessary(indexFile, (long)((count+INDEX_INTERVAL-1)/INDEX_INTERVAL) * Long.BYTES);
+		} else {
+			count = 0;
+			length = 0;
+			FileUtils.deleteFile(indexFile);
+		}
+
+		try (	DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(dataFile, true)));
+				DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(indexFile, true)))) {
+			if (length == 0) {
+				data.writeInt(MAGIC);
+				data.writeInt(VERSION);
+				length = HEADER_SIZE;
+			}
+			for (JobLogEntry entry: entries) {
+				if (count % INDEX_INTERVAL == 0)
+					index.writeLong(length);
+				byte[] bytes = entry.getMessage().getBytes(StandardCharsets.UTF_8);
+				data.writeInt(bytes.length);
+				data.writeLong(entry.getDate().getTime());
+				data.write(bytes);
+				length += RECORD_HEADER_SIZE + bytes.length;
+				count++;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void delete() {
+		FileUtils.deleteFile(dataFile);
+		FileUtils.deleteFile(indexFile);
+	}
+
+	private void truncateIfNecessary(File file, long length) {
+		if (file.exists() && file.length() > length) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Convert legacy Java-serialized log file in specified build directory to this format
+	 * if it exists. The legacy file will be deleted after conversion
+	 *
+	 * @return
+	 * 			<tt>true</tt> if legacy log file is converted
+	 */
+	public static boolean convertLegacy(File buildDir) {
+		File legacyFile = new File(buildDir, LEGACY_FILE);
+		if (legacyFile.exists()) {
+			JobLogFile logFile = new JobLogFile(buildDir);
+			logFile.delete();
+			try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+					new FileInputStream(legacyFile)))) {
+				List<JobLogEntry> batch = new ArrayList<>();
+				try {
+					while (true) {
+						batch.add((JobLogEntry) ois.readObject());
+						if (batch.size() == CONVERT_BATCH) {
+							logFile.append(batch);
+							batch.clear();
+						}
+					}
+				} catch (EOFException e) {
+				}
+				logFile.append(batch);
+			} catch (IOException | ClassNotFoundException e) {
+				logFile.delete();
+				throw ExceptionUtils.unchecked(e);
+			}
+			FileUtils.deleteFile(legacyFile);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Forward-only cursor over log records. Record header fields can be accessed without
+	 * materializing {@link JobLogEntry} objects
+	 */
+	public class Cursor implements Closeable {
+
+		private final FileChannel channel;
+
+		private final long fileLength;
+
+		private ByteBuffer window;
+
+		private long windowStart;
+
+		private long position;
+
+		private int index;
+
+		Cursor() {
+			try {
+				channel = FileChannel.open(dataFile.toPath());
+				fileLength = channel.size();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			try {
+				if (fileLength >= HEADER_SIZE) {
+					ByteBuffer header = ensure(0, HEADER_SIZE);
+					if (header.getInt(0) != MAGIC)
+						throw new IllegalStateException("Invalid log file: " + dataFile.getAbsolutePath());
+					if (header.getInt(4) > VERSION) {
+						throw new IllegalStateException("Unsupported log file version: "
+								+ dataFile.getAbsolutePath());
+					}
+				}
+				position = HEADER_SIZE;
+			} catch (Exception e) {
+				close();
+				throw ExceptionUtils.unchecked(e);
+			}
+		}
+
+		private ByteBuffer ensure(long start, int length) {
+			if (window == null || start < windowStart || start + length > windowStart + window.limit()) {
+				int size = (int) Math.min(fileLength - start, Math.max(WINDOW_SIZE, length));
+				if (window == null || window.capacity() < size)
+					window = ByteBuffer.allocate(size);
+				window.clear();
+				window.limit(size);
+				try {
+					while (window.hasRemaining()) {
+						if (channel.read(window, start + window.position()) == -1)
+							throw new EOFException();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				window.flip();
+				windowStart = start;
+			}
+			return window;
+		}
+
+		private int relative(long start) {
+			return (int) (start - windowStart);
+		}
+
+		/**
+		 * @return
+		 * 			<tt>true</tt> if there is a complete record at current position
+		 */
+		public boolean hasNext() {
+			if (position + RECORD_HEADER_SIZE > fileLength)
+				return false;
+			int length = ensure(position, RECORD_HEADER_SIZE).getInt(relative(position));
+			return length >= 0 && position + RECORD_HEADER_SIZE + length <= fileLength;
+		}
+
+		/**
+		 * @return
+		 * 			index of the record at current position
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return
+		 * 			timestamp of the record at current position
+		 */
+		public long getTime() {
+			return ensure(position, RECORD_HEADER_SIZE).getLong(relative(position) + 4);
+		}
+
+		/**
+		 * @return
+		 * 			read-only view of UTF-8 message bytes of the record at current position.
+		 * 			The view is only valid until cursor is moved
+		 */
+		public ByteBuffer getMessageBytes() {
+			int length = ensure(position, RECORD_HEADER_SIZE).getInt(relative(position));
+			ByteBuffer buffer = ensure(position, RECORD_HEADER_SIZE + length).duplicate();
+			buffer.position(relative(position) + RECORD_HEADER_SIZE);
+			buffer.limit(relative(position) + RECORD_HEADER_SIZE + length);
+			return buffer.slice();
+		}
+
+		public void skip() {
+			int length = ensure(position, RECORD_HEADER_SIZE).getInt(relative(position));
+			position += RECORD_HEADER_SIZE + length;
+			index++;
+		}
+
+		public JobLogEntry next() {
+			Date date = new Date(getTime());
+			String message = StandardCharsets.UTF_8.decode(getMessageBytes()).toString();
+			skip();
+			return new JobLogEntry(date, message);
+		}
+
+		/**
+		 * Position this cursor at record of specified index
+		 *
+		 * @return
+		 * 			<tt>false</tt> if there are not enough records
+		 */
+		public boolean seek(int recordIndex) {
+			int indexSlot = recordIndex / INDEX_INTERVAL;
+			long indexedOffset = readIndex(indexSlot);
+			if (indexedOffset != -1) {
+				position = indexedOffset;
+				index = indexSlot * INDEX_INTERVAL;
+			} else {
+				locateLastIndexed();
+			}
+			while (index < recordIndex) {
+				if (hasNext())
+					skip();
+				else
+					return false;
+			}
+			return hasNext();
+		}
+
+		/**
+		 * Move this cursor past the last complete record
+		 *
+		 * @return
+		 * 			number of complete records
+		 */
+		int locateEnd() {
+			locateLastIndexed();
+			while (hasNext())
+				skip();
+			return index;
+		}
+
+		private void locateLastIndexed() {
+			int indexSlots = (int) (indexFile.length() / Long.BYTES);
+			position = HEADER_SIZE;
+			index = 0;
+			for (int slot = indexSlots - 1; slot >= 0; slot--) {
+				long offset = readIndex(slot);
+				if (offset != -1 && offset <= fileLength) {
+					position = offset;
+					index = slot * INDEX_INTERVAL;
+					break;
+				}
+			}
+		}
+
+		private long readIndex(int slot) {
+			if (indexFile.exists() && (long)(slot+1) * Long.BYTES <= indexFile.length()) {
+				try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+					raf.seek((long)slot * Long.BYTES);
+					long offset = raf.readLong();
+					if (offset >= HEADER_SIZE && offset <= fileLength)
+						return offset;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() {
+			window = null;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+	}
+
+}
@@ -2,9 +2,12 @@ package io.onedev.server.buildspec.job.log;
 
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 import io.onedev.server.model.Build;
 import io.onedev.server.util.SimpleLogger;
 
@@ -30,6 +33,24 @@ public interface LogManager {
 	
 	boolean matches(Build build, Pattern pattern);
 	
+	/**
+	 * Search log entries of specified build matching specified pattern
+	 * 
+	 * @param build
+	 * 			build to search log entries in
+	 * @param pattern
+	 * 			pattern to search
+	 * @param fromDate
+	 * 			log entries before this date will be ignored. Use <tt>null</tt> to search all 
+	 * 			log entries
+	 * @param maxHits
+	 * 			search will be terminated once number of hits reaches this value. Specifically 
+	 * 			use <tt>0</tt> to find all hits
+	 * @return
+	 * 			offsets of matching log entries in ascending order
+	 */
+	List<Integer> search(Build build, Pattern pattern, @Nullable Date fromDate, int maxHits);
+	
 	/**
 	 * Read specified number of log entries starting from end of the log
 	 * 
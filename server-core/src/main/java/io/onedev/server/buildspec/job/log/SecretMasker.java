@@ -0,0 +1,133 @@
+package io.onedev.server.buildspec.job.log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+import io.onedev.server.model.support.inputspec.SecretInput;
+
+/**
+ * Mask all occurrences of a set of secrets in a single pass over the text, using an
+ * Aho-Corasick automaton. Overlapping or adjacent occurrences are masked as a whole.
+ * Instances are immutable and can be shared between threads.
+ */
+public class SecretMasker {
+
+	private final Node root = new Node();
+
+	public SecretMasker(Collection<String> secrets) {
+		Map<Node, Map<Character, Node>> transitions = new TreeMap<>((a, b) -> a.id - b.id);
+		int nextId = 1;
+		for (String secret: secrets) {
+			if (secret.length() == 0)
+				continue;
+			Node node = root;
+			for (int i=0; i<secret.length(); i++) {
+				Map<Character, Node> children = transitions.computeIfAbsent(node, it -> new TreeMap<>());
+				Node child = children.get(secret.charAt(i));
+				if (child == null) {
+					child = new Node();
+					child.id = nextId++;
+					children.put(secret.charAt(i), child);
+				}
+				node = child;
+			}
+			node.matchLength = secret.length();
+		}
+
+		for (Map.Entry<Node, Map<Character, Node>> entry: transitions.entrySet()) {
+			Node node = entry.getKey();
+			node.labels = new char[entry.getValue().size()];
+			node.children = new Node[entry.getValue().size()];
+			int index = 0;
+			for (Map.Entry<Character, Node> childEntry: entry.getValue().entrySet()) {
+				node.labels[index] = childEntry.getKey();
+				node.children[index] = childEntry.getValue();
+				index++;
+			}
+		}
+
+		Queue<Node> queue = new ArrayDeque<>();
+		for (Node child: root.children) {
+			child.fail = root;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			Node node = queue.remove();
+			for (int i=0; i<node.children.length; i++) {
+				char label = node.labels[i];
+				Node child = node.children[i];
+				Node fail = node.fail;
+				while (fail != root && fail.next(label) == null)
+					fail = fail.fail;
+				Node failChild = fail.next(label);
+				child.fail = failChild != null? failChild: root;
+				child.matchLength = Math.max(child.matchLength, child.fail.matchLength);
+				queue.add(child);
+			}
+		}
+	}
+
+	public String mask(String text) {
+		if (root.children.length == 0)
+			return text;
+
+		BitSet masked = null;
+		Node state = root;
+		for (int i=0; i<text.length(); i++) {
+			char c = text.charAt(i);
+			Node next;
+			while ((next = state.next(c)) == null && state != root)
+				state = state.fail;
+			state = next != null? next: root;
+			if (state.matchLength != 0) {
+				if (masked == null)
+					masked = new BitSet(text.length());
+				masked.set(i + 1 - state.matchLength, i + 1);
+			}
+		}
+
+		if (masked != null) {
+			StringBuilder builder = new StringBuilder();
+			int from = 0;
+			int maskStart;
+			while ((maskStart = masked.nextSetBit(from)) != -1) {
+				builder.append(text, from, maskStart).append(SecretInput.MASK);
+				from = masked.nextClearBit(maskStart);
+			}
+			builder.append(text, from, text.length());
+			return builder.toString();
+		} else {
+			return text;
+		}
+	}
+
+	private static class Node {
+
+		int id;
+
+		char[] labels = new char[0];
+
+		Node[] children = new Node[0];
+
+		Node fail;
+
+		/*
+		 * Length of longest secret ending at this node, including those reachable via
+		 * fail links. Shorter secrets ending at the same position are always covered by
+		 * the longest one
+		 */
+		int matchLength;
+
+		Node next(char c) {
+			int index = Arrays.binarySearch(labels, c);
+			return index >= 0? children[index]: null;
+		}
+
+	}
+
+}
@@ -2,6 +2,7 @@ package io.onedev.server.entitymanager.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -9,9 +10,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
@@ -42,9 +48,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import io.onedev.commons.launcher.loader.Listen;
+import io.onedev.commons.utils.ExceptionUtils;
 import io.onedev.commons.utils.FileUtils;
 import io.onedev.server.entitymanager.BuildDependenceManager;
 import io.onedev.server.entitymanager.BuildManager;
@@ -82,6 +90,7 @@ import io.onedev.server.security.SecurityUtils;
 import io.onedev.server.security.permission.AccessBuild;
 import io.onedev.server.security.permission.JobPermission;
 import io.onedev.server.storage.StorageManager;
+import io.onedev.server.util.LongHashSet;
 import io.onedev.server.util.ProjectScopedNumber;
 import io.onedev.server.util.StatusInfo;
 import io.onedev.server.util.facade.BuildFacade;
@@ -95,6 +104,15 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 	
 	private static final int CLEANUP_BATCH = 5000;
 	
+	private static final int DELETE_BATCH = 100;
+	
+	private static final long DELETE_INTERVAL = 100;
+	
+	private static final int PRESERVATION_WORKERS = Runtime.getRuntime().availableProcessors();
+	
+	private static final List<Status> FINISHED_STATUSES = 
+			Lists.newArrayList(Status.FAILED, Status.CANCELLED, Status.TIMED_OUT, Status.SUCCESSFUL);
+	
 	private static final Logger logger = LoggerFactory.getLogger(DefaultBuildManager.class);
 	
 	private final BuildParamManager buildParamManager;
@@ -113,9 +131,10 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 	
 	private final TransactionManager transactionManager;
 	
-	private final Map<Long, BuildFacade> builds = new HashMap<>();
+	private final ExecutorService executorService;
 	
-	private final ReadWriteLock buildsLock = new ReentrantReadWriteLock();
+	// Build ids indexed by project and commit. Each project entry is locked separately
+	private final Map<Long, ProjectBuildIds> buildIds = new ConcurrentHashMap<>();
 	
 	private final Map<Long, Collection<String>> jobNames = new HashMap<>();
 	
@@ -128,7 +147,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 			TaskScheduler taskScheduler, BuildDependenceManager buildDependenceManager,
 			GroupManager groupManager, StorageManager storageManager, 
 			ProjectManager projectManager, SessionManager sessionManager, 
-			TransactionManager transactionManager) {
+			TransactionManager transactionManager, ExecutorService executorService) {
 		super(dao);
 		this.buildParamManager = buildParamManager;
 		this.buildDependenceManager = buildDependenceManager;
@@ -138,6 +157,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 		this.taskScheduler = taskScheduler;
 		this.sessionManager = sessionManager;
 		this.transactionManager = transactionManager;
+		this.executorService = executorService;
 	}
 
 	@Transactional
@@ -146,17 +166,14 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
     	super.delete(build);
     	
 		FileUtils.deleteDir(storageManager.getBuildDir(build.getProject().getId(), build.getNumber()));
-		Long buildId = build.getId();
+		BuildFacade facade = build.getFacade();
 		transactionManager.runAfterCommit(new Runnable() {
 
 			@Override
 			public void run() {
-				buildsLock.writeLock().lock();
-				try {
-					builds.remove(buildId);
-				} finally {
-					buildsLock.writeLock().unlock();
-				}
+				ProjectBuildIds buildIdsOfProject = buildIds.get(facade.getProjectId());
+				if (buildIdsOfProject != null)
+					buildIdsOfProject.remove(facade);
 			}
 		});
 	}
@@ -194,12 +211,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 
 			@Override
 			public void run() {
-				buildsLock.writeLock().lock();
-				try {
-					builds.put(facade.getId(), facade);
-				} finally {
-					buildsLock.writeLock().unlock();
-				}
+				buildIds.computeIfAbsent(facade.getProjectId(), it -> new ProjectBuildIds()).add(facade);
 				jobNamesLock.writeLock().lock();
 				try {
 					populateJobNames(facade.getProjectId(), jobName);
@@ -220,16 +232,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 
 				@Override
 				public void run() {
-					buildsLock.writeLock().lock();
-					try {
-						for (Iterator<Map.Entry<Long, BuildFacade>> it = builds.entrySet().iterator(); it.hasNext();) {
-							BuildFacade build = it.next().getValue();
-							if (build.getProjectId().equals(projectId))
-								it.remove();
-						}
-					} finally {
-						buildsLock.writeLock().unlock();
-					}
+					buildIds.remove(projectId);
 					jobNamesLock.writeLock().lock();
 					try {
 						for (Iterator<Map.Entry<Long, Collection<String>>> it = jobNames.entrySet().iterator(); it.hasNext();) {
@@ -603,66 +606,159 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 		return maxId!=null?maxId:0;
 	}
 
-	@Override
-	public void execute() {
-		long maxId = getMaxId();
-		Collection<Long> idsToPreserve = new HashSet<>();
-		
-		sessionManager.run(new Runnable() {
+	/*
+	 * Evaluate preserved builds of each project. Projects are evaluated in parallel, and a 
+	 * project is absent from the result if its evaluation fails
+	 */
+	private Map<Long, LongHashSet> getPreservedIds() {
+		List<Long> projectIds = sessionManager.call(new Callable<List<Long>>() {
 
 			@Override
-			public void run() {
-				for (Project project: projectManager.query()) {
-					logger.debug("Populating preserved build ids of project '" + project.getName() + "'...");
-					List<BuildPreservation> preservations = project.getBuildSetting().getBuildPreservations();
-					if (preservations.isEmpty()) {
-						idsToPreserve.addAll(queryIds(project, new BuildQuery(), 0, Integer.MAX_VALUE));
-					} else {
-						for (BuildPreservation preservation: preservations) {
-							try {
-								BuildQuery query = BuildQuery.parse(project, preservation.getCondition(), false, false);
-								int count;
-								if (preservation.getCount() != null)
-									count = preservation.getCount();
-								else
-									count = Integer.MAX_VALUE;
-								idsToPreserve.addAll(queryIds(project, query, 0, count));
-							} catch (Exception e) {
-								String message = String.format("Error parsing build preserve condition(project: %s, condition: %s)", 
-										project.getName(), preservation.getCondition());
-								logger.error(message, e);
-								idsToPreserve.addAll(queryIds(project, new BuildQuery(), 0, Integer.MAX_VALUE));
-							}
-						}
-					}
-				}
+			public List<Long> call() {
+				return dao.getSession().createQuery("select id from Project", Long.class).list();
 			}
 			
 		});
+		
+		Queue<Long> projectIdQueue = new ConcurrentLinkedQueue<>(projectIds);
+		Map<Long, LongHashSet> preservedIds = new ConcurrentHashMap<>();
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i=0; i<PRESERVATION_WORKERS; i++) {
+			futures.add(executorService.submit(new Runnable() {
 
-		EntityCriteria<Build> criteria = newCriteria();
-		AtomicInteger firstResult = new AtomicInteger(0);
+				@Override
+				public void run() {
+					Long projectId;
+					while ((projectId = projectIdQueue.poll()) != null) {
+						Long currentProjectId = projectId;
+						try {
+							preservedIds.put(currentProjectId, sessionManager.call(new Callable<LongHashSet>() {
+
+								@Override
+								public LongHashSet call() {
+									return getPreservedIds(projectManager.load(currentProjectId));
+								}
+								
+							}));
+						} catch (Exception e) {
+							logger.error("Error populating preserved build ids of project (id: " + currentProjectId + ")", e);
+						}
+					}
+				}
+				
+			}));
+		}
+		for (Future<?> future: futures) {
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw ExceptionUtils.unchecked(e);
+			}
+		}
+		return preservedIds;
+	}
+	
+	private LongHashSet getPreservedIds(Project project) {
+		logger.debug("Populating preserved build ids of project '" + project.getName() + "'...");
+		LongHashSet preservedIds = new LongHashSet();
+		List<BuildPreservation> preservations = project.getBuildSetting().getBuildPreservations();
+		if (preservations.isEmpty()) {
+			for (Long id: queryIds(project, new BuildQuery(), 0, Integer.MAX_VALUE))
+				preservedIds.add(id);
+		} else {
+			for (BuildPreservation preservation: preservations) {
+				Collection<Long> ids;
+				try {
+					BuildQuery query = BuildQuery.parse(project, preservation.getCondition(), false, false);
+					int count;
+					if (preservation.getCount() != null)
+						count = preservation.getCount();
+					else
+						count = Integer.MAX_VALUE;
+					ids = queryIds(project, query, 0, count);
+				} catch (Exception e) {
+					String message = String.format("Error parsing build preserve condition(project: %s, condition: %s)", 
+							project.getName(), preservation.getCondition());
+					logger.error(message, e);
+					ids = queryIds(project, new BuildQuery(), 0, Integer.MAX_VALUE);
+				}
+				for (Long id: ids)
+					preservedIds.add(id);
+			}
+		}
+		return preservedIds;
+	}
+	
+	/**
+	 * Builds are scanned in order of id with keyset pagination, selecting only id and project 
+	 * id of finished builds. Unpreserved builds are deleted in small transactions with a pause 
+	 * in between to avoid saturating database and disk.
+	 */
+	@Override
+	public void execute() {
+		long maxId = getMaxId();
+		Map<Long, LongHashSet> preservedIds = getPreservedIds();
 		
-		while (transactionManager.call(new Callable<Boolean>() {
+		long lastId = 0;
+		while (true) {
+			long lastIdOfPreviousBatch = lastId;
+			List<Object[]> builds = sessionManager.call(new Callable<List<Object[]>>() {
 
-			@Override
-			public Boolean call() {
-				List<Build> builds = query(criteria, firstResult.get(), CLEANUP_BATCH);
-				if (!builds.isEmpty()) {
-					logger.debug("Checking build preservation: {}->{}", 
-							firstResult.get()+1, firstResult.get()+builds.size());
+				@Override
+				public List<Object[]> call() {
+					Query<Object[]> query = dao.getSession().createQuery("select id, project.id from Build "
+							+ "where id > :lastId and id <= :maxId and status in (:statuses) order by id", Object[].class);
+					query.setParameter("lastId", lastIdOfPreviousBatch);
+					query.setParameter("maxId", maxId);
+					query.setParameterList("statuses", FINISHED_STATUSES);
+					query.setMaxResults(CLEANUP_BATCH);
+					return query.list();
 				}
-				for (Build build: builds) {
-					if (build.isFinished() && build.getId() <= maxId && !idsToPreserve.contains(build.getId())) {
-						logger.debug("Deleting build " + build.getFQN() + "...");
-						delete(build);
-					}
+				
+			});
+			if (builds.isEmpty())
+				break;
+			
+			logger.debug("Checking build preservation: {}->{}", builds.get(0)[0], builds.get(builds.size()-1)[0]);
+			List<Long> idsToDelete = new ArrayList<>();
+			for (Object[] fields: builds) {
+				Long buildId = (Long) fields[0];
+				LongHashSet preservedIdsOfProject = preservedIds.get((Long) fields[1]);
+				if (preservedIdsOfProject != null && !preservedIdsOfProject.contains(buildId))
+					idsToDelete.add(buildId);
+			}
+			for (List<Long> partition: Lists.partition(idsToDelete, DELETE_BATCH)) {
+				try {
+					transactionManager.run(new Runnable() {
+
+						@Override
+						public void run() {
+							for (Long buildId: partition) {
+								// Build might be deleted or re-run since it is scanned
+								Build build = get(buildId);
+								if (build != null && build.isFinished()) {
+									logger.debug("Deleting build (id: {})...", buildId);
+									delete(build);
+								}
+							}
+						}
+						
+					});
+				} catch (Exception e) {
+					logger.error("Error deleting builds (id: " + partition.get(0) + "->" 
+							+ partition.get(partition.size()-1) + ")", e);
+				}
+				try {
+					Thread.sleep(DELETE_INTERVAL);
+				} catch (InterruptedException e) {
+					throw ExceptionUtils.unchecked(e);
 				}
-				firstResult.set(firstResult.get() + CLEANUP_BATCH);
-				return builds.size() == CLEANUP_BATCH;
 			}
 			
-		})) {}
+			if (builds.size() < CLEANUP_BATCH)
+				break;
+			lastId = (Long) builds.get(builds.size()-1)[0];
+		}
 	}
 
 	@Override
@@ -679,7 +775,8 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 		for (Object[] fields: (List<Object[]>)query.list()) {
 			Long buildId = (Long) fields[0];
 			Long projectId = (Long)fields[1];
-			builds.put(buildId, new BuildFacade(buildId, projectId, (String)fields[2]));
+			BuildFacade facade = new BuildFacade(buildId, projectId, (String)fields[2]);
+			buildIds.computeIfAbsent(projectId, it -> new ProjectBuildIds()).add(facade);
 			populateJobNames(projectId, (String)fields[3]);
 		}
 		taskId = taskScheduler.schedule(this);
@@ -788,34 +885,20 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 	
 	@Override
 	public Collection<Long> getIdsByProject(Long projectId) {
-		buildsLock.readLock().lock();
-		try {
-			Collection<Long> buildIds = new HashSet<>();
-			for (BuildFacade build: builds.values()) {
-				if (build.getProjectId().equals(projectId))
-					buildIds.add(build.getId());
-			}
-			return buildIds;
-		} finally {
-			buildsLock.readLock().unlock();
-		}
+		ProjectBuildIds buildIdsOfProject = buildIds.get(projectId);
+		if (buildIdsOfProject != null)
+			return buildIdsOfProject.getIds();
+		else
+			return new HashSet<>();
 	}
 
 	@Override
 	public Collection<Long> filterIds(Long projectId, Collection<String> commitHashes) {
-		buildsLock.readLock().lock();
-		try {
-			Collection<Long> buildIds = new HashSet<>();
-			for (BuildFacade build: builds.values()) {
-				if (build.getProjectId().equals(projectId) 
-						&& commitHashes.contains(build.getCommitHash())) {
-					buildIds.add(build.getId());
-				}
-			}
-			return buildIds;
-		} finally {
-			buildsLock.readLock().unlock();
-		}
+		ProjectBuildIds buildIdsOfProject = buildIds.get(projectId);
+		if (buildIdsOfProject != null)
+			return buildIdsOfProject.getIds(commitHashes);
+		else
+			return new HashSet<>();
 	}
 	
 	private void populateJobNames(Long projectId, String jobName) {
@@ -966,4 +1049,59 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 			build.getRequest().getBuilds().add(build);
 	}
 	
+	private static class ProjectBuildIds {
+		
+		private final LongHashSet ids = new LongHashSet();
+		
+		// Most commits only have a few builds, so plain arrays are used
+		private final Map<ObjectId, long[]> idsByCommit = new HashMap<>();
+		
+		synchronized void add(BuildFacade build) {
+			if (ids.add(build.getId())) {
+				ObjectId commitId = ObjectId.fromString(build.getCommitHash());
+				long[] idsOfCommit = idsByCommit.get(commitId);
+				if (idsOfCommit != null) {
+					idsOfCommit = Arrays.copyOf(idsOfCommit, idsOfCommit.length+1);
+					idsOfCommit[idsOfCommit.length-1] = build.getId();
+				} else {
+					idsOfCommit = new long[] {build.getId()};
+				}
+				idsByCommit.put(commitId, idsOfCommit);
+			}
+		}
+		
+		synchronized void remove(BuildFacade build) {
+			if (ids.remove(build.getId())) {
+				ObjectId commitId = ObjectId.fromString(build.getCommitHash());
+				long[] idsOfCommit = idsByCommit.get(commitId);
+				if (idsOfCommit != null) {
+					idsOfCommit = Arrays.stream(idsOfCommit).filter(it -> it != build.getId()).toArray();
+					if (idsOfCommit.length != 0)
+						idsByCommit.put(commitId, idsOfCommit);
+					else
+						idsByCommit.remove(commitId);
+				}
+			}
+		}
+		
+		synchronized Collection<Long> getIds() {
+			return ids.toCollection();
+		}
+		
+		synchronized Collection<Long> getIds(Collection<String> commitHashes) {
+			Collection<Long> idsOfCommits = new HashSet<>();
+			for (String commitHash: commitHashes) {
+				if (ObjectId.isId(commitHash)) {
+					long[] idsOfCommit = idsByCommit.get(ObjectId.fromString(commitHash));
+					if (idsOfCommit != null) {
+						for (long id: idsOfCommit)
+							idsOfCommits.add(id);
+					}
+				}
+			}
+			return idsOfCommits;
+		}
+		
+	}
+	
 }
@@ -8,8 +8,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -75,6 +74,7 @@ import io.onedev.server.search.entity.issue.IssueCriteria;
 import io.onedev.server.search.entity.issue.IssueQuery;
 import io.onedev.server.security.SecurityUtils;
 import io.onedev.server.security.permission.AccessProject;
+import io.onedev.server.util.LongHashSet;
 import io.onedev.server.util.MilestoneAndState;
 import io.onedev.server.util.ProjectScopedNumber;
 import io.onedev.server.util.facade.IssueFacade;
@@ -104,9 +104,8 @@ public class DefaultIssueManager extends BaseEntityManager<Issue> implements Iss
 	
 	private final RoleManager roleManager;
 	
-	private final Map<Long, IssueFacade> issues = new HashMap<>();
-	
-	private final ReadWriteLock issuesLock = new ReentrantReadWriteLock();
+	// Issue numbers indexed by project. Each project entry is locked separately 
+	private final Map<Long, LongHashSet> issueNumbers = new ConcurrentHashMap<>();
 	
 	@Inject
 	public DefaultIssueManager(Dao dao, IssueFieldManager issueFieldManager, 
@@ -132,8 +131,7 @@ public class DefaultIssueManager extends BaseEntityManager<Issue> implements Iss
 		
 		Query<?> query = dao.getSession().createQuery("select id, project.id, number from Issue");
 		for (Object[] fields: (List<Object[]>)query.list()) {
-			Long issueId = (Long) fields[0];
-			issues.put(issueId, new IssueFacade(issueId, (Long)fields[1], (Long)fields[2]));
+			addIssueNumber((Long)fields[1], (Long)fields[2]);
 		}
 	}
 	
@@ -189,12 +187,7 @@ public class DefaultIssueManager extends BaseEntityManager<Issue> implements Iss
 
 			@Override
 			public void run() {
-				issuesLock.writeLock().lock();
-				try {
-					issues.put(facade.getId(), facade);
-				} finally {
-					issuesLock.writeLock().unlock();
-				}
+				addIssueNumber(facade.getProjectId(), facade.getNumber());
 			}
 			
 		});
@@ -651,16 +644,16 @@ public class DefaultIssueManager extends BaseEntityManager<Issue> implements Iss
 	public void delete(Issue issue) {
 		super.delete(issue);
 		
-		Long issueId = issue.getId();
+		IssueFacade facade = issue.getFacade();
 		transactionManager.runAfterCommit(new Runnable() {
 
 			@Override
 			public void run() {
-				issuesLock.writeLock().lock();
-				try {
-					issues.remove(issueId);
-				} finally {
-					issuesLock.writeLock().unlock();
+				LongHashSet issueNumbersOfProject = issueNumbers.get(facade.getProjectId());
+				if (issueNumbersOfProject != null) {
+					synchronized (issueNumbersOfProject) {
+						issueNumbersOfProject.remove(facade.getNumber());
+					}
 				}
 			}
 		});
@@ -675,16 +668,7 @@ public class DefaultIssueManager extends BaseEntityManager<Issue> implements Iss
 
 				@Override
 				public void run() {
-					issuesLock.writeLock().lock();
-					try {
-						for (Iterator<Map.Entry<Long, IssueFacade>> it = issues.entrySet().iterator(); it.hasNext();) {
-							IssueFacade issue = it.next().getValue();
-							if (issue.getProjectId().equals(projectId))
-								it.remove();
-						}
-					} finally {
-						issuesLock.writeLock().unlock();
-					}
+					issueNumbers.remove(projectId);
 				}
 			});
 		}
@@ -692,16 +676,20 @@ public class DefaultIssueManager extends BaseEntityManager<Issue> implements Iss
 
 	@Override
 	public Collection<Long> getIssueNumbers(Long projectId) {
-		issuesLock.readLock().lock();
-		try {
-			Collection<Long> issueNumbers = new HashSet<>();
-			for (IssueFacade issue: issues.values()) {
-				if (projectId.equals(issue.getProjectId()))
-					issueNumbers.add(issue.getNumber());
+		LongHashSet issueNumbersOfProject = issueNumbers.get(projectId);
+		if (issueNumbersOfProject != null) {
+			synchronized (issueNumbersOfProject) {
+				return issueNumbersOfProject.toCollection();
 			}
-			return issueNumbers;
-		} finally {
-			issuesLock.readLock().unlock();
+		} else {
+			return new HashSet<>();
+		}
+	}
+	
+	private void addIssueNumber(Long projectId, Long issueNumber) {
+		LongHashSet issueNumbersOfProject = issueNumbers.computeIfAbsent(projectId, it -> new LongHashSet());
+		synchronized (issueNumbersOfProject) {
+			issueNumbersOfProject.add(issueNumber);
 		}
 	}
 
@@ -59,16 +59,13 @@ import io.onedev.server.event.RefUpdated;
 import io.onedev.server.event.system.SystemStarted;
 import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.git.GitUtils;
+import io.onedev.server.git.RefCache;
 import io.onedev.server.git.command.CloneCommand;
 import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.model.Build;
-import io.onedev.server.model.Group;
-import io.onedev.server.model.GroupAuthorization;
 import io.onedev.server.model.Issue;
-import io.onedev.server.model.Membership;
 import io.onedev.server.model.Project;
 import io.onedev.server.model.PullRequest;
-import io.onedev.server.model.User;
 import io.onedev.server.model.UserAuthorization;
 import io.onedev.server.model.support.BranchProtection;
 import io.onedev.server.model.support.TagProtection;
@@ -85,6 +82,8 @@ import io.onedev.server.search.entity.EntityQuery;
 import io.onedev.server.search.entity.EntitySort;
 import io.onedev.server.search.entity.EntitySort.Direction;
 import io.onedev.server.search.entity.project.ProjectQuery;
+import io.onedev.server.security.AuthorizationCache;
+import io.onedev.server.security.CachedAuthorization;
 import io.onedev.server.security.SecurityUtils;
 import io.onedev.server.security.permission.AccessProject;
 import io.onedev.server.util.patternset.PatternSet;
@@ -121,6 +120,10 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
     
     private final UserAuthorizationManager userAuthorizationManager;
     
+    private final AuthorizationCache authorizationCache;
+    
+    private final RefCache refCache;
+    
     private final String gitReceiveHook;
     
 	private final Map<Long, Repository> repositoryCache = new ConcurrentHashMap<>();
@@ -135,7 +138,7 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
     		SettingManager settingManager, TransactionManager transactionManager, 
     		SessionManager sessionManager, ListenerRegistry listenerRegistry, 
     		TaskScheduler taskScheduler, UserAuthorizationManager userAuthorizationManager, 
-    		RoleManager roleManager) {
+    		RoleManager roleManager, AuthorizationCache authorizationCache, RefCache refCache) {
     	super(dao);
     	
         this.commitInfoManager = commitInfoManager;
@@ -149,6 +152,8 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
         this.taskScheduler = taskScheduler;
         this.userAuthorizationManager = userAuthorizationManager;
         this.roleManager = roleManager;
+        this.authorizationCache = authorizationCache;
+        this.refCache = refCache;
         
         try (InputStream is = getClass().getClassLoader().getResourceAsStream("git-receive-hook")) {
         	Preconditions.checkNotNull(is);
@@ -422,6 +427,7 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
 		} catch (Exception e) {
 			throw ExceptionUtils.unchecked(e);
 		}
+    	refCache.invalidate(project.getId());
     	
     	Long projectId = project.getId();
     	transactionManager.runAfterCommit(new Runnable() {
@@ -469,6 +475,7 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
 		} catch (GitAPIException e) {
 			throw new RuntimeException(e);
 		}
+    	refCache.invalidate(project.getId());
 
     	Long projectId = project.getId();
     	transactionManager.runAfterCommit(new Runnable() {
@@ -507,29 +514,12 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
 		if (SecurityUtils.isAdministrator()) {
 			projects.addAll(query());
 		} else {
-			User user = SecurityUtils.getUser();
-			if (user != null) {
-				for (Membership membership: user.getMemberships()) {
-					for (GroupAuthorization authorization: membership.getGroup().getAuthorizations()) {
-						if (authorization.getRole().implies(permission))
-							projects.add(authorization.getProject());
-					}
-				}
-				for (UserAuthorization authorization: user.getAuthorizations()) { 
-					if (authorization.getRole().implies(permission))
-						projects.add(authorization.getProject());
-				}
-			}
-			Group group = groupManager.findAnonymous();
-			if (group != null) {
-				if (group.isAdministrator()) {
-					projects.addAll(query());
-				} else {
-					for (GroupAuthorization authorization: group.getAuthorizations()) { 
-						if (authorization.getRole().implies(permission))
-							projects.add(authorization.getProject());
-					}
-				}
+			CachedAuthorization authorization = authorizationCache.get(SecurityUtils.getUserId());
+			if (authorization.isAllProjects()) {
+				projects.addAll(query());
+			} else {
+				for (Long projectId: authorization.getProjectIds(permission))
+					projects.add(load(projectId));
 			}
 		}
 		
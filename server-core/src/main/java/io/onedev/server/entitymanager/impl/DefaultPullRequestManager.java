@@ -67,6 +67,7 @@ import io.onedev.server.entitymanager.PullRequestManager;
 import io.onedev.server.entitymanager.PullRequestReviewManager;
 import io.onedev.server.entitymanager.PullRequestUpdateManager;
 import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.RefsUpdated;
 import io.onedev.server.event.build.BuildEvent;
 import io.onedev.server.event.entity.EntityRemoved;
 import io.onedev.server.event.pullrequest.PullRequestBuildEvent;
@@ -77,6 +78,7 @@ import io.onedev.server.event.pullrequest.PullRequestMergePreviewCalculated;
 import io.onedev.server.event.pullrequest.PullRequestOpened;
 import io.onedev.server.event.pullrequest.PullRequestUpdated;
 import io.onedev.server.git.GitUtils;
+import io.onedev.server.git.RefCache;
 import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.model.Build;
 import io.onedev.server.model.Group;
@@ -136,6 +138,8 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 	
 	private static final int PREVIEW_CALC_PRIORITY = 50;
 	
+	private static final int MAX_BRANCHES_PER_QUERY = 1000;
+	
 	private final PullRequestUpdateManager pullRequestUpdateManager;
 	
 	private final ProjectManager projectManager;
@@ -160,6 +164,8 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 	
 	private final ExecutorService executorService;
 	
+	private final RefCache refCache;
+	
 	@Inject
 	public DefaultPullRequestManager(Dao dao, PullRequestUpdateManager pullRequestUpdateManager,  
 			PullRequestReviewManager pullRequestReviewManager, MarkdownManager markdownManager, 
@@ -167,7 +173,8 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 			SessionManager sessionManager, PullRequestChangeManager pullRequestChangeManager, 
 			ExecutorService executorService, BuildManager buildManager, 
 			TransactionManager transactionManager, ProjectManager projectManager, 
-			CommitInfoManager commitInfoManager, PullRequestAssignmentManager pullRequestAssignmentManager) {
+			CommitInfoManager commitInfoManager, PullRequestAssignmentManager pullRequestAssignmentManager, 
+			RefCache refCache) {
 		super(dao);
 		
 		this.pullRequestUpdateManager = pullRequestUpdateManager;
@@ -181,6 +188,7 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 		this.executorService = executorService;
 		this.projectManager = projectManager;
 		this.commitInfoManager = commitInfoManager;
+		this.refCache = refCache;
 		this.pullRequestAssignmentManager = pullRequestAssignmentManager;
 	}
 	
@@ -209,6 +217,7 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 			} catch (Exception e) {
 				throw ExceptionUtils.unchecked(e);
 			}
+			refCache.invalidate(request.getSourceProject().getId());
 			request.getSourceProject().cacheObjectId(request.getSourceBranch(), latestCommit.copy());
 			
 			PullRequestChange change = new PullRequestChange();
@@ -355,6 +364,7 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 		refUpdate.setExpectedOldObjectId(targetHeadCommitId);
 		refUpdate.setNewObjectId(mergeCommitId);
 		GitUtils.updateRef(refUpdate);
+		refCache.invalidate(request.getTargetProject().getId());
 		
 		request.getTargetProject().cacheObjectId(request.getTargetRef(), mergeCommitId);
 		
@@ -465,11 +475,13 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 						pullRequestReviewManager.saveReviews(request);
 						
 						Long requestId = request.getId();
+						Long targetProjectId = request.getTargetProject().getId();
 						transactionManager.runAfterCommit(new Runnable() {
 							
 							@Override
 							public void run() {
-								BatchWorker previewCalcWorker = new BatchWorker("request-" + requestId + "-previewMerge", 1) {
+								BatchWorker previewCalcWorker = new BatchWorker("project-" + targetProjectId, 
+										"request-" + requestId + "-previewMerge", 1) {
 
 									@Override
 									public void doWorks(Collection<Prioritized> works) {
@@ -545,7 +557,7 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 	@Listen
 	public void on(RefUpdated event) {
 		String branch = GitUtils.ref2branch(event.getRefName());
-		if (branch != null && !event.getOldCommitId().equals(ObjectId.zeroId())) {
+		if (!event.isBatched() && branch != null && !event.getOldCommitId().equals(ObjectId.zeroId())) {
 			ProjectAndBranch projectAndBranch = new ProjectAndBranch(event.getProject(), branch);
 			Criterion criterion = Restrictions.and(
 					ofOpen(), 
@@ -553,6 +565,29 @@ public class DefaultPullRequestManager extends BaseEntityManager<PullRequest> im
 			checkAsync(query(EntityCriteria.of(PullRequest.class).add(criterion)));
 		}
 	}
+	
+	@Transactional
+	@Listen
+	public void on(RefsUpdated event) {
+		List<String> branches = new ArrayList<>();
+		for (RefUpdated refUpdated: event.getRefUpdates()) {
+			String branch = GitUtils.ref2branch(refUpdated.getRefName());
+			if (branch != null && !refUpdated.getOldCommitId().equals(ObjectId.zeroId()))
+				branches.add(branch);
+		}
+		
+		Project project = event.getProject();
+		Collection<PullRequest> requests = new HashSet<>();
+		for (List<String> partition: Lists.partition(branches, MAX_BRANCHES_PER_QUERY)) {
+			Criterion criterion = Restrictions.and(
+					ofOpen(), 
+					Restrictions.or(
+							Restrictions.and(ofSourceProject(project), Restrictions.in("sourceBranch", partition)), 
+							Restrictions.and(ofTargetProject(project), Restrictions.in("targetBranch", partition))));
+			requests.addAll(query(EntityCriteria.of(PullRequest.class).add(criterion)));
+		}
+		checkAsync(requests);
+	}
 
 	@Sessional
 	@Override
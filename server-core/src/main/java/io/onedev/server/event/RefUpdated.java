@@ -18,6 +18,8 @@ public class RefUpdated extends ProjectEvent implements CommitAware {
 	
 	private transient ProjectScopedCommit commit;
 	
+	private transient boolean batched;
+	
 	public RefUpdated(Project project, String refName, ObjectId oldCommitId, ObjectId newCommitId) {
 		super(null, new Date(), project);
 		this.refName = refName;
@@ -37,6 +39,18 @@ public class RefUpdated extends ProjectEvent implements CommitAware {
 		return newCommitId;
 	}
 
+	/**
+	 * @return
+	 * 			<tt>true</tt> if this event is also delivered as part of a {@link RefsUpdated} event
+	 */
+	public boolean isBatched() {
+		return batched;
+	}
+
+	void setBatched(boolean batched) {
+		this.batched = batched;
+	}
+
 	@Override
 	public ProjectScopedCommit getCommit() {
 		if (commit == null)
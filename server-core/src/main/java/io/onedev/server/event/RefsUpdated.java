@@ -0,0 +1,36 @@
+package io.onedev.server.event;
+
+import java.util.Collection;
+import java.util.Date;
+
+import io.onedev.server.model.Project;
+
+/**
+ * Posted once for all refs updated by a single push, before individual {@link RefUpdated}
+ * events of the push. Listeners handling a push as a whole should listen to this event, and
+ * ignore {@link RefUpdated} events whose {@link RefUpdated#isBatched()} returns <tt>true</tt>
+ *
+ */
+public class RefsUpdated extends Event {
+
+	private final Project project;
+
+	private final Collection<RefUpdated> refUpdates;
+
+	public RefsUpdated(Project project, Collection<RefUpdated> refUpdates) {
+		super(null, new Date());
+		this.project = project;
+		this.refUpdates = refUpdates;
+		for (RefUpdated refUpdated: refUpdates)
+			refUpdated.setBatched(true);
+	}
+
+	public Project getProject() {
+		return project;
+	}
+
+	public Collection<RefUpdated> getRefUpdates() {
+		return refUpdates;
+	}
+
+}
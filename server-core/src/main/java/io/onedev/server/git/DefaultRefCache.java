@@ -0,0 +1,139 @@
+package io.onedev.server.git;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.onedev.commons.launcher.loader.Listen;
+import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.entity.EntityRemoved;
+import io.onedev.server.model.Project;
+
+@Singleton
+public class DefaultRefCache implements RefCache {
+
+	// Bound memory usage by total number of cached refs
+	private static final int MAX_CACHED_REFS = 500000;
+	
+	private static final String[] SEARCH_PREFIXES = new String[] {Constants.R_TAGS, Constants.R_HEADS};
+	
+	private final Cache<Long, Refs> cache = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_CACHED_REFS)
+			.weigher((Long projectId, Refs refs) -> refs.refs.size() + 1)
+			.build();
+	
+	// Increased on every invalidation to detect refs loaded before the change
+	private final AtomicLong version = new AtomicLong(0);
+	
+	private Refs getRefs(Project project) {
+		Refs refs = cache.getIfPresent(project.getId());
+		if (refs == null) {
+			long versionBefore = version.get();
+			refs = new Refs(project.getRepository());
+			cache.put(project.getId(), refs);
+			if (version.get() != versionBefore)
+				cache.invalidate(project.getId());
+		}
+		return refs;
+	}
+	
+	@Override
+	public Ref findRef(Project project, String revision) {
+		Refs refs = getRefs(project);
+		if (revision.startsWith(Constants.R_HEADS) || revision.startsWith(Constants.R_TAGS)) 
+			return refs.refs.get(revision);
+		for (String prefix: SEARCH_PREFIXES) {
+			Ref ref = refs.refs.get(prefix + revision);
+			if (ref != null)
+				return ref;
+		}
+		return null;
+	}
+
+	@Override
+	public List<Ref> getRefs(Project project, String prefix) {
+		Preconditions.checkArgument(prefix.startsWith(Constants.R_HEADS) || prefix.startsWith(Constants.R_TAGS));
+		List<Ref> refsWithPrefix = new ArrayList<>();
+		for (Ref ref: getRefs(project).refs.tailMap(prefix, true).values()) {
+			if (ref.getName().startsWith(prefix))
+				refsWithPrefix.add(ref);
+			else
+				break;
+		}
+		return refsWithPrefix;
+	}
+
+	@Override
+	public RevCommit getLastCommit(Project project) {
+		Refs refs = getRefs(project);
+		if (refs.lastCommit == null) {
+			RevCommit lastCommit = null;
+			try (RevWalk revWalk = new RevWalk(project.getRepository())) {
+				for (Ref ref: getRefs(project, Constants.R_HEADS)) {
+					RevCommit commit = GitUtils.parseCommit(revWalk, ref.getObjectId());
+					if (commit != null 
+							&& (lastCommit == null || commit.getCommitTime() > lastCommit.getCommitTime())) {
+						lastCommit = commit;
+					}
+				}
+			}
+			refs.lastCommit = Optional.fromNullable(lastCommit);
+		}
+		return refs.lastCommit.orNull();
+	}
+
+	@Override
+	public void invalidate(Long projectId) {
+		version.incrementAndGet();
+		cache.invalidate(projectId);
+	}
+	
+	@Listen
+	public void on(RefUpdated event) {
+		invalidate(event.getProject().getId());
+	}
+	
+	@Listen
+	public void on(EntityRemoved event) {
+		if (event.getEntity() instanceof Project)
+			invalidate(event.getEntity().getId());
+	}
+	
+	private static class Refs {
+		
+		private final NavigableMap<String, Ref> refs = new TreeMap<>();
+		
+		private volatile Optional<RevCommit> lastCommit;
+		
+		Refs(Repository repository) {
+			try {
+				RefDatabase refDatabase = repository.getRefDatabase();
+				for (Ref ref: refDatabase.getRefsByPrefix(Constants.R_HEADS))
+					refs.put(ref.getName(), ref);
+				for (Ref ref: refDatabase.getRefsByPrefix(Constants.R_TAGS))
+					refs.put(ref.getName(), refDatabase.peel(ref));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+	}
+	
+}
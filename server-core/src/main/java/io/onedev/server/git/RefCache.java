@@ -0,0 +1,49 @@
+package io.onedev.server.git;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import io.onedev.server.model.Project;
+
+/**
+ * Server-wide cache of branch and tag refs of project repositories. Refs of a project are 
+ * loaded in one go and kept until refs of the project are changed. Code changing branches or
+ * tags without firing <tt>RefUpdated</tt> synchronously should call {@link #invalidate(Long)}
+ * right after the change.
+ */
+public interface RefCache {
+
+	/**
+	 * Find branch or tag ref by name, with same precedence as <tt>Repository.findRef</tt>
+	 * 
+	 * @param revision
+	 * 			full ref name, or short name of branch or tag
+	 * @return
+	 * 			ref with peeled object id populated, or <tt>null</tt> if specified revision does 
+	 * 			not name a branch or tag
+	 */
+	@Nullable
+	Ref findRef(Project project, String revision);
+	
+	/**
+	 * Get refs with specified prefix ordered by name
+	 * 
+	 * @param prefix
+	 * 			prefix of refs, must start with <tt>refs/heads/</tt> or <tt>refs/tags/</tt> 
+	 */
+	List<Ref> getRefs(Project project, String prefix);
+	
+	/**
+	 * @return
+	 * 			most recent commit of all branches, or <tt>null</tt> if there is no branch
+	 */
+	@Nullable
+	RevCommit getLastCommit(Project project);
+	
+	void invalidate(Long projectId);
+	
+}
@@ -2,6 +2,7 @@ package io.onedev.server.git.hookcallback;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -24,7 +25,9 @@ import io.onedev.commons.launcher.loader.ListenerRegistry;
 import io.onedev.commons.utils.StringUtils;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.RefsUpdated;
 import io.onedev.server.git.GitUtils;
+import io.onedev.server.git.RefCache;
 import io.onedev.server.model.Project;
 import io.onedev.server.persistence.SessionManager;
 import io.onedev.server.security.SecurityUtils;
@@ -43,11 +46,15 @@ public class GitPostReceiveCallback extends HttpServlet {
     
     private final SessionManager sessionManager;
     
+    private final RefCache refCache;
+    
     @Inject
-    public GitPostReceiveCallback(ProjectManager projectManager, SessionManager sessionManager, ListenerRegistry listenerRegistry) {
+    public GitPostReceiveCallback(ProjectManager projectManager, SessionManager sessionManager, 
+    		ListenerRegistry listenerRegistry, RefCache refCache) {
     	this.projectManager = projectManager;
     	this.sessionManager = sessionManager;
         this.listenerRegistry = listenerRegistry;
+        this.refCache = refCache;
     }
 
     @Override
@@ -89,6 +96,9 @@ public class GitPostReceiveCallback extends HttpServlet {
         fields.clear();
         fields.addAll(StringUtils.splitAndTrim(refUpdateInfo, " "));
         
+        // Invalidate before responding, so that refs read after the push see the update
+        refCache.invalidate(projectId);
+        
         sessionManager.runAsync(new Runnable() {
 
 			@Override
@@ -96,6 +106,7 @@ public class GitPostReceiveCallback extends HttpServlet {
 		        try {
 		            Project project = projectManager.load(projectId);
 		            
+		            List<RefUpdated> refUpdates = new ArrayList<>();
 			        int pos = 0;
 			        while (true) {
 			        	String refName = StringUtils.reverse(fields.get(pos));
@@ -118,7 +129,7 @@ public class GitPostReceiveCallback extends HttpServlet {
 			        		GitUtils.linkRef(refUpdate, refName);
 			        	}
 
-			        	listenerRegistry.post(new RefUpdated(project, refName, oldObjectId, newObjectId));
+			        	refUpdates.add(new RefUpdated(project, refName, oldObjectId, newObjectId));
 			    		
 			        	field = field.substring(40);
 			        	if (field.length() == 0)
@@ -126,6 +137,15 @@ public class GitPostReceiveCallback extends HttpServlet {
 			        	else
 			        		fields.set(pos, field);
 			        }
+			        
+			        /*
+			         * Post the batch first so that pull requests, builds, indexing and commit information 
+			         * are handled in one pass even if a mirror with thousands of tags is pushed. Individual 
+			         * events are still posted for listeners interested in a single ref 
+			         */
+			        listenerRegistry.post(new RefsUpdated(project, refUpdates));
+			        for (RefUpdated refUpdated: refUpdates)
+			        	listenerRegistry.post(refUpdated);
 		        } catch (Exception e) {
 		        	logger.error("Error executing post-receive callback", e);
 				}
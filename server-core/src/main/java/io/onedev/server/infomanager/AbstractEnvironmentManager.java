@@ -2,20 +2,33 @@ package io.onedev.server.infomanager;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
 import org.eclipse.jgit.lib.ObjectId;
 
 import io.onedev.commons.launcher.loader.Listen;
+import io.onedev.commons.utils.ExceptionUtils;
 import io.onedev.commons.utils.FileUtils;
 import io.onedev.server.event.system.SystemStopping;
 import jetbrains.exodus.ArrayByteIterable;
@@ -27,7 +40,22 @@ import jetbrains.exodus.env.Store;
 import jetbrains.exodus.env.StoreConfig;
 import jetbrains.exodus.env.Transaction;
 import jetbrains.exodus.env.TransactionalComputable;
+import jetbrains.exodus.env.TransactionalExecutable;
 
+/**
+ * Base class of managers storing information in Xodus environments. 
+ * <p>
+ * Environments returned by {@link #getEnv(String)} are lightweight handles. The underlying Xodus 
+ * environment is opened on first use, and closed again when it is idle for some time, or when too 
+ * many environments are open across all managers, least recently used first. A closed environment 
+ * is re-opened transparently if its handle is used again. All environments share a single log 
+ * cache, so that memory usage does not grow with number of open environments.
+ * <p>
+ * Stores returned by {@link #getStore(Environment, String)} are handles as well, and can be kept 
+ * across calls. Each call is delegated to the store opened in environment of the transaction 
+ * passed in. Operations spanning multiple calls against the underlying environment itself, such 
+ * as backup, should be run with {@link #callWithEnvOpen(Environment, Callable)}.
+ */
 public abstract class AbstractEnvironmentManager {
 	
 	private static final String VERSION_FILE = "version.txt";
@@ -36,6 +64,16 @@ public abstract class AbstractEnvironmentManager {
 	
 	private static final int MEMORY_USAGE_PERCENT = 25;
 	
+	private static final int MAX_OPEN_ENVS = 200;
+	
+	// Recently accessed environments are kept open even if there are too many open environments
+	private static final long MIN_IDLE_MILLIS = 60000L;
+	
+	private static final long MAX_IDLE_MILLIS = 30*60000L;
+	
+	// Open environments of all managers
+	private static final Set<PooledEnvironment> openEnvs = ConcurrentHashMap.newKeySet();
+	
 	private final Map<String, Environment> envs = new ConcurrentHashMap<>();
 	
 	protected void checkVersion(String envKey) {
@@ -74,32 +112,42 @@ public abstract class AbstractEnvironmentManager {
 		if (env == null) synchronized (envs) {
 			env = envs.get(envKey);
 			if (env == null) {
-				checkVersion(envKey);
-				EnvironmentConfig config = new EnvironmentConfig();
-				config.setEnvCloseForcedly(true);
-				config.setMemoryUsagePercentage(MEMORY_USAGE_PERCENT);
-				config.setLogFileSize(getLogFileSize());
-				env = Environments.newInstance(getEnvDir(envKey), config);
+				env = (Environment) Proxy.newProxyInstance(Environment.class.getClassLoader(), 
+						new Class<?>[] {Environment.class}, new PooledEnvironment(envKey));
 				envs.put(envKey, env);
 			}
 		}
 		return env;
 	}
 	
+	/**
+	 * Get store of specified environment. Stores are opened once and re-opened along with the 
+	 * environment
+	 */
 	protected Store getStore(Environment env, String storeName) {
-		return env.computeInTransaction(new TransactionalComputable<Store>() {
-		    @Override
-		    public Store compute(Transaction txn) {
-		        return env.openStore(storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
-		    }
-		});		
+		return ((PooledEnvironment) Proxy.getInvocationHandler(env)).getStore(storeName);
+	}
+
+	/**
+	 * Call specified callable with specified environment kept open
+	 */
+	protected <T> T callWithEnvOpen(Environment env, Callable<T> callable) {
+		PooledEnvironment pooledEnv = (PooledEnvironment) Proxy.getInvocationHandler(env);
+		pooledEnv.acquire();
+		try {
+			return callable.call();
+		} catch (Exception e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			pooledEnv.release();
+		}
 	}
 
 	protected void removeEnv(String envKey) {
 		synchronized (envs) {
 			Environment env = envs.remove(envKey);
 			if (env != null)
-				env.close();
+				((PooledEnvironment) Proxy.getInvocationHandler(env)).close();
 		}
 	}
 
@@ -107,10 +155,48 @@ public abstract class AbstractEnvironmentManager {
 	public void on(SystemStopping event) {
 		synchronized (envs) {
 			for (Environment env: envs.values())
-				env.close();
+				((PooledEnvironment) Proxy.getInvocationHandler(env)).close();
 			envs.clear();
 		}
 	}
+	
+	/**
+	 * @return
+	 * 			metrics of environments of this manager, including those currently closed
+	 */
+	public List<EnvironmentMetrics> getEnvironmentMetrics() {
+		List<EnvironmentMetrics> metrics = new ArrayList<>();
+		for (Map.Entry<String, Environment> entry: envs.entrySet()) {
+			PooledEnvironment pooledEnv = (PooledEnvironment) Proxy.getInvocationHandler(entry.getValue());
+			File envDir = getEnvDir(entry.getKey());
+			long diskSize = envDir.exists()? FileUtils.sizeOfDirectory(envDir): 0;
+			metrics.add(new EnvironmentMetrics(entry.getKey(), pooledEnv.isOpen(), diskSize, 
+					pooledEnv.hits.get(), pooledEnv.opens.get(), new Date(pooledEnv.lastAccess)));
+		}
+		return metrics;
+	}
+	
+	/*
+	 * Close environments idle for too long, as well as least recently used idle environments 
+	 * if there are too many open environments
+	 */
+	private static void closeIdleEnvs() {
+		synchronized (openEnvs) {
+			List<PooledEnvironment> candidates = new ArrayList<>(openEnvs);
+			candidates.sort(Comparator.comparingLong(it -> it.lastAccess));
+			int openCount = candidates.size();
+			long now = System.currentTimeMillis();
+			for (PooledEnvironment candidate: candidates) {
+				long idleMillis = now - candidate.lastAccess;
+				if (idleMillis < MIN_IDLE_MILLIS)
+					break;
+				if ((openCount > MAX_OPEN_ENVS || idleMillis >= MAX_IDLE_MILLIS) 
+						&& candidate.closeIfNotInUse()) {
+					openCount--;
+				}
+			}
+		}
+	}
 
 	@Nullable 
 	protected byte[] readBytes(Store store, Transaction txn, ByteIterable key) {
@@ -242,4 +328,210 @@ public abstract class AbstractEnvironmentManager {
 		}
 	}
 
+	private class PooledEnvironment implements InvocationHandler {
+
+		private final String envKey;
+		
+		private final Map<String, Store> storeHandles = new ConcurrentHashMap<>();
+		
+		// Stores opened in current environment, guarded by this
+		private final Map<String, Store> stores = new HashMap<>();
+		
+		private final AtomicLong hits = new AtomicLong(0);
+		
+		private final AtomicLong opens = new AtomicLong(0);
+		
+		private volatile long lastAccess = System.currentTimeMillis();
+		
+		// Guarded by this
+		private Environment env;
+		
+		// Number of ongoing calls against the environment, guarded by this
+		private int inUse;
+		
+		PooledEnvironment(String envKey) {
+			this.envKey = envKey;
+		}
+		
+		Environment acquire() {
+			boolean opened = false;
+			Environment env;
+			synchronized (this) {
+				if (this.env == null) {
+					checkVersion(envKey);
+					EnvironmentConfig config = new EnvironmentConfig();
+					config.setEnvCloseForcedly(true);
+					config.setLogCacheShared(true);
+					config.setMemoryUsagePercentage(MEMORY_USAGE_PERCENT);
+					config.setLogFileSize(getLogFileSize());
+					this.env = Environments.newInstance(getEnvDir(envKey), config);
+					openStores();
+					openEnvs.add(this);
+					opens.incrementAndGet();
+					opened = true;
+				} else {
+					hits.incrementAndGet();
+				}
+				inUse++;
+				lastAccess = System.currentTimeMillis();
+				env = this.env;
+			}
+			if (opened)
+				closeIdleEnvs();
+			return env;
+		}
+		
+		synchronized void release() {
+			inUse--;
+			lastAccess = System.currentTimeMillis();
+		}
+		
+		synchronized boolean isOpen() {
+			return env != null;
+		}
+		
+		synchronized boolean closeIfNotInUse() {
+			if (inUse == 0) {
+				close();
+				return true;
+			} else {
+				return false;
+			}
+		}
+		
+		synchronized void close() {
+			if (env != null) {
+				stores.clear();
+				openEnvs.remove(this);
+				env.close();
+				env = null;
+			}
+		}
+		
+		/*
+		 * Re-open stores of a newly opened environment, guarded by this. Nobody else can access 
+		 * the environment until it is returned from acquire
+		 */
+		private void openStores() {
+			Environment env = this.env;
+			env.executeInTransaction(new TransactionalExecutable() {
+				
+				@Override
+				public void execute(Transaction txn) {
+					for (String storeName: storeHandles.keySet())
+						stores.put(storeName, env.openStore(storeName, StoreConfig.WITHOUT_DUPLICATES, txn));
+				}
+				
+			});
+		}
+		
+		Store getStore(String storeName) {
+			// Register store name first so that it is opened whenever environment is re-opened
+			Store storeHandle = storeHandles.computeIfAbsent(storeName, it -> (Store) Proxy.newProxyInstance(
+					Store.class.getClassLoader(), new Class<?>[] {Store.class}, new StoreHandle(storeName)));
+			synchronized (this) {
+				if (this.env == null || stores.containsKey(storeName))
+					return storeHandle;
+			}
+			Environment env = acquire();
+			try {
+				Store store = env.computeInTransaction(new TransactionalComputable<Store>() {
+				    @Override
+				    public Store compute(Transaction txn) {
+				        return env.openStore(storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+				    }
+				});		
+				synchronized (this) {
+					if (this.env == env)
+						stores.putIfAbsent(storeName, store);
+				}
+			} finally {
+				release();
+			}
+			return storeHandle;
+		}
+		
+		synchronized Store getOpenedStore(Environment env, String storeName) {
+			Store store = this.env == env? stores.get(storeName): null;
+			if (store == null)
+				throw new IllegalStateException("Store not opened in environment of the transaction: " + storeName);
+			return store;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					return "Environment (" + getEnvDir(envKey).getAbsolutePath() + ")";
+				}
+			} else if (method.getName().equals("close") && method.getParameterCount() == 0) {
+				close();
+				return null;
+			} else {
+				Environment env = acquire();
+				try {
+					return method.invoke(env, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				} finally {
+					release();
+				}
+			}
+		}
+		
+		private class StoreHandle implements InvocationHandler {
+			
+			private final String storeName;
+			
+			StoreHandle(String storeName) {
+				this.storeName = storeName;
+			}
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					switch (method.getName()) {
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return "Store (" + storeName + ")";
+					}
+				} else if (method.getName().equals("getName") && method.getParameterCount() == 0) {
+					return storeName;
+				}
+				
+				Transaction txn = null;
+				if (args != null) {
+					for (Object arg: args) {
+						if (arg instanceof Transaction)
+							txn = (Transaction) arg;
+					}
+				}
+				
+				/*
+				 * Environment of the transaction is in use until the transaction finishes, so store 
+				 * opened in it stays valid during the call
+				 */
+				Environment env = txn != null? txn.getEnvironment(): acquire();
+				try {
+					return method.invoke(getOpenedStore(env, storeName), args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				} finally {
+					if (txn == null)
+						release();
+				}
+			}
+			
+		}
+		
+	}
+
 }
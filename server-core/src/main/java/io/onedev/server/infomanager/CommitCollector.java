@@ -0,0 +1,160 @@
+package io.onedev.server.infomanager;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.server.git.command.FileChange;
+import io.onedev.server.git.command.GitCommit;
+
+/**
+ * Read commits of a range in-process with JGit, as what <tt>git log --name-status --find-renames</tt>
+ * does. Commits are listed in a single walk with bodies discarded, and then parsed and diffed
+ * against first parent in batches concurrently, with each batch using its own object reader.
+ * Commits are still passed to consumer in walk order in calling thread.
+ */
+class CommitCollector {
+
+	private static final int DIFF_BATCH_SIZE = 100;
+
+	private static final int DIFF_WORKERS = Runtime.getRuntime().availableProcessors();
+
+	private static final int RENAME_LIMIT = 1000;
+
+	private final Repository repository;
+
+	private final ExecutorService executorService;
+
+	CommitCollector(Repository repository, ExecutorService executorService) {
+		this.repository = repository;
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Read commits reachable from <tt>untilCommitId</tt> but not from <tt>sinceCommitId</tt>,
+	 * newest first
+	 */
+	void collect(ObjectId untilCommitId, @Nullable ObjectId sinceCommitId, Consumer<GitCommit> consumer) {
+		Deque<Future<List<GitCommit>>> futures = new ArrayDeque<>();
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			revWalk.setRetainBody(false);
+			revWalk.markStart(revWalk.parseCommit(untilCommitId));
+			if (sinceCommitId != null)
+				revWalk.markUninteresting(revWalk.parseCommit(sinceCommitId));
+
+			List<ObjectId> batch = new ArrayList<>();
+			for (RevCommit commit: revWalk) {
+				batch.add(commit.copy());
+				if (batch.size() == DIFF_BATCH_SIZE) {
+					futures.add(submit(batch));
+					batch = new ArrayList<>();
+					// Limit number of batches in flight to bound memory usage
+					if (futures.size() > DIFF_WORKERS*2)
+						consume(futures.remove(), consumer);
+				}
+			}
+			if (!batch.isEmpty())
+				futures.add(submit(batch));
+			while (!futures.isEmpty())
+				consume(futures.remove(), consumer);
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			for (Future<List<GitCommit>> future: futures)
+				future.cancel(true);
+		}
+	}
+
+	private void consume(Future<List<GitCommit>> future, Consumer<GitCommit> consumer)
+			throws InterruptedException, ExecutionException {
+		for (GitCommit commit: future.get())
+			consumer.accept(commit);
+	}
+
+	private Future<List<GitCommit>> submit(List<ObjectId> commitIds) {
+		return executorService.submit(() -> read(commitIds));
+	}
+
+	private List<GitCommit> read(List<ObjectId> commitIds) throws Exception {
+		List<GitCommit> commits = new ArrayList<>();
+		try (	ObjectReader reader = repository.newObjectReader();
+				RevWalk revWalk = new RevWalk(reader);
+				TreeWalk treeWalk = new TreeWalk(reader)) {
+			treeWalk.setRecursive(true);
+			treeWalk.setFilter(TreeFilter.ANY_DIFF);
+			RenameDetector renameDetector = new RenameDetector(repository);
+			renameDetector.setRenameLimit(RENAME_LIMIT);
+
+			for (ObjectId commitId: commitIds) {
+				RevCommit commit = revWalk.parseCommit(commitId);
+				List<String> parentHashes = new ArrayList<>();
+				for (RevCommit parent: commit.getParents())
+					parentHashes.add(parent.name());
+
+				// Same as git log, changes of merge commits are not reported
+				List<FileChange> fileChanges = new ArrayList<>();
+				if (commit.getParentCount() <= 1) {
+					treeWalk.reset();
+					if (commit.getParentCount() == 0)
+						treeWalk.addTree(new EmptyTreeIterator());
+					else
+						treeWalk.addTree(revWalk.parseCommit(commit.getParent(0)).getTree());
+					treeWalk.addTree(commit.getTree());
+					renameDetector.reset();
+					renameDetector.addAll(DiffEntry.scan(treeWalk));
+					for (DiffEntry entry: renameDetector.compute(reader, NullProgressMonitor.INSTANCE)) {
+						switch (entry.getChangeType()) {
+						case ADD:
+							fileChanges.add(new FileChange(null, entry.getNewPath(), -1, -1));
+							break;
+						case DELETE:
+							fileChanges.add(new FileChange(entry.getOldPath(), null, -1, -1));
+							break;
+						case MODIFY:
+						case RENAME:
+							fileChanges.add(new FileChange(entry.getOldPath(), entry.getNewPath(), -1, -1));
+							break;
+						default:
+						}
+					}
+				}
+
+				String body = null;
+				String message = commit.getFullMessage();
+				int index = message.indexOf("\n\n");
+				if (index != -1) {
+					body = message.substring(index).trim();
+					if (body.length() == 0)
+						body = null;
+				}
+
+				commits.add(new GitCommit(commit.name(), parentHashes, commit.getCommitterIdent(),
+						commit.getAuthorIdent(), commit.getCommitterIdent().getWhen(),
+						commit.getShortMessage(), body, fileChanges));
+			}
+		}
+		return commits;
+	}
+
+}
@@ -0,0 +1,616 @@
+package io.onedev.server.infomanager;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.commons.utils.FileUtils;
+
+/**
+ * Persistent commit graph of a repository, answering ancestry, descendant and merge base
+ * queries with primitive int traversal instead of parsing commits.
+ * <p>
+ * Commits are identified by their position in the graph. A commit is always appended after
+ * its parents, so that ancestors of a commit have smaller positions, and the graph files can
+ * be extended incrementally. File <tt>commits</tt> starts with a version int, followed by a
+ * fixed size record of each commit: 20 bytes hash, generation number, position of first
+ * parent and position of second parent. For commits with more than two parents, second parent
+ * field stores <tt>-(offset+2)</tt>, where offset points to file <tt>extra-parents</tt>
+ * containing number of additional parents followed by their positions. Position <tt>-1</tt>
+ * means absence of parent.
+ * <p>
+ * Graph files are read into int arrays once with positional reads and are not memory mapped,
+ * as mapped files can not be deleted or truncated on Windows until the mapping is garbage
+ * collected. Instances are immutable and safe to be accessed concurrently. Appending commits
+ * returns a new instance sharing arrays with this one: a graph never reads positions at or
+ * after its own size, so the new instance writes its commits after that in place, and only
+ * copies arrays running out of capacity.
+ */
+class CommitGraph {
+
+	private static final Logger logger = LoggerFactory.getLogger(CommitGraph.class);
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = Integer.BYTES;
+
+	private static final int RECORD_SIZE = 32;
+
+	private static final int HASH_WORDS = Constants.OBJECT_ID_LENGTH / Integer.BYTES;
+
+	private static final int READ_BUFFER_SIZE = 64*1024;
+
+	private static final String COMMITS_FILE = "commits";
+
+	private static final String EXTRA_PARENTS_FILE = "extra-parents";
+
+	private final File dir;
+
+	private final int size;
+
+	// Commit hashes, HASH_WORDS ints per commit
+	private final int[] hashes;
+
+	private final int[] generations;
+
+	private final int[] parents1;
+
+	private final int[] parents2;
+
+	private final int extraParentsSize;
+
+	private final int[] extraParents;
+
+	// Open addressing table of position+1, keyed by first word of commit hash
+	private final int[] hashTable;
+
+	/*
+	 * Size of latest graph sharing arrays with this graph. Arrays are only written in place 
+	 * when appending to the latest graph
+	 */
+	private final AtomicInteger sharedSize;
+
+	private volatile int[] childOffsets;
+
+	private volatile int[] children;
+
+	private CommitGraph(File dir, int size, int[] hashes, int[] generations, int[] parents1,
+			int[] parents2, int extraParentsSize, int[] extraParents, int[] hashTable,
+			AtomicInteger sharedSize) {
+		this.dir = dir;
+		this.size = size;
+		this.hashes = hashes;
+		this.generations = generations;
+		this.parents1 = parents1;
+		this.parents2 = parents2;
+		this.extraParentsSize = extraParentsSize;
+		this.extraParents = extraParents;
+		this.hashTable = hashTable;
+		this.sharedSize = sharedSize;
+	}
+
+	/**
+	 * Load commit graph stored in specified directory. An empty graph is returned if graph
+	 * files do not exist or are of a different version
+	 */
+	static CommitGraph load(File dir) {
+		File commitsFile = new File(dir, COMMITS_FILE);
+		File extraParentsFile = new File(dir, EXTRA_PARENTS_FILE);
+		try {
+			if (commitsFile.exists()) {
+				try (FileChannel channel = FileChannel.open(commitsFile.toPath(), StandardOpenOption.READ)) {
+					// Ignore partially written record if any
+					int size = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+					if (size >= 0 && read(channel, 0, HEADER_SIZE).getInt() == VERSION) {
+						int[] hashes = new int[size*HASH_WORDS];
+						int[] generations = new int[size];
+						int[] parents1 = new int[size];
+						int[] parents2 = new int[size];
+						int recordsPerRead = READ_BUFFER_SIZE / RECORD_SIZE;
+						for (int position=0; position<size; position+=recordsPerRead) {
+							int count = Math.min(recordsPerRead, size-position);
+							IntBuffer records = read(channel, HEADER_SIZE + (long)position*RECORD_SIZE,
+									count*RECORD_SIZE).asIntBuffer();
+							for (int i=position; i<position+count; i++) {
+								records.get(hashes, i*HASH_WORDS, HASH_WORDS);
+								generations[i] = records.get();
+								parents1[i] = records.get();
+								parents2[i] = records.get();
+							}
+						}
+
+						int[] extraParents;
+						if (extraParentsFile.exists()) {
+							extraParents = new int[(int) (extraParentsFile.length() / Integer.BYTES)];
+							try (DataInputStream is = new DataInputStream(
+									new BufferedInputStream(new FileInputStream(extraParentsFile)))) {
+								for (int i=0; i<extraParents.length; i++)
+									extraParents[i] = is.readInt();
+							}
+						} else {
+							extraParents = new int[0];
+						}
+
+						int[] hashTable = new int[getHashTableCapacity(size)];
+						for (int position=0; position<size; position++)
+							addToHashTable(hashTable, hashes, position);
+
+						return new CommitGraph(dir, size, hashes, generations, parents1, parents2,
+								extraParents.length, extraParents, hashTable, new AtomicInteger(size));
+					}
+				}
+				logger.warn("Discarding incompatible commit graph: " + dir.getAbsolutePath());
+				FileUtils.cleanDir(dir);
+			}
+			return new CommitGraph(dir, 0, new int[0], new int[0], new int[0], new int[0],
+					0, new int[0], new int[getHashTableCapacity(0)], new AtomicInteger(0));
+		} catch (IOException e) {
+			throw ExceptionUtils.unchecked(e);
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1)
+				throw new EOFException();
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int getHashTableCapacity(int size) {
+		return Integer.highestOneBit(Math.max(size, 8) * 2 - 1) << 1;
+	}
+
+	private static void addToHashTable(int[] hashTable, int[] hashes, int position) {
+		int mask = hashTable.length - 1;
+		int slot = hashes[position*HASH_WORDS] & mask;
+		while (hashTable[slot] != 0)
+			slot = (slot+1) & mask;
+		hashTable[slot] = position+1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return
+	 * 			position of specified commit, or <tt>-1</tt> if commit is not in this graph
+	 */
+	int positionOf(AnyObjectId commitId) {
+		ByteBuffer hash = ByteBuffer.allocate(Constants.OBJECT_ID_LENGTH);
+		commitId.copyRawTo(hash);
+		int word1 = hash.getInt(0);
+		int mask = hashTable.length - 1;
+		int slot = word1 & mask;
+		int value;
+		while ((value = hashTable[slot]) != 0) {
+			int position = value-1;
+			// Skip commits appended by later graphs sharing the hash table
+			if (position < size) {
+				int offset = position*HASH_WORDS;
+				if (hashes[offset] == word1
+						&& hashes[offset+1] == hash.getInt(4)
+						&& hashes[offset+2] == hash.getInt(8)
+						&& hashes[offset+3] == hash.getInt(12)
+						&& hashes[offset+4] == hash.getInt(16)) {
+					return position;
+				}
+			}
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	ObjectId getCommitId(int position) {
+		return ObjectId.fromRaw(hashes, position*HASH_WORDS);
+	}
+
+	int getGeneration(int position) {
+		return generations[position];
+	}
+
+	int getParentCount(int position) {
+		if (parents1[position] == -1)
+			return 0;
+		int parent2 = parents2[position];
+		if (parent2 == -1)
+			return 1;
+		else if (parent2 >= 0)
+			return 2;
+		else
+			return 1 + extraParents[-(parent2+2)];
+	}
+
+	int getParent(int position, int index) {
+		if (index == 0)
+			return parents1[position];
+		int parent2 = parents2[position];
+		if (parent2 >= 0)
+			return parent2;
+		else
+			return extraParents[-(parent2+2) + index];
+	}
+
+	/**
+	 * @return
+	 * 			<tt>true</tt> if commit at <tt>ancestor</tt> is reachable from commit at
+	 * 			<tt>descendant</tt>, including the case they are the same commit
+	 */
+	boolean isAncestor(int ancestor, int descendant) {
+		if (ancestor == descendant)
+			return true;
+		if (ancestor > descendant)
+			return false;
+		int ancestorGeneration = getGeneration(ancestor);
+		if (ancestorGeneration >= getGeneration(descendant))
+			return false;
+
+		BitSet visited = new BitSet(descendant+1);
+		IntStack stack = new IntStack();
+		stack.push(descendant);
+		while (!stack.isEmpty()) {
+			int current = stack.pop();
+			for (int i=0, count=getParentCount(current); i<count; i++) {
+				int parent = getParent(current, i);
+				if (parent == ancestor)
+					return true;
+				if (parent > ancestor && !visited.get(parent) && getGeneration(parent) > ancestorGeneration) {
+					visited.set(parent);
+					stack.push(parent);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find a best common ancestor of specified commits. Commits are visited in descending
+	 * order of generation number, so that a commit is only visited after all its children,
+	 * and the first commit reachable from both sides has no descendant being common ancestor
+	 *
+	 * @return
+	 * 			position of merge base, or <tt>-1</tt> if commits do not have common history
+	 */
+	int getMergeBase(int position1, int position2) {
+		if (position1 == position2)
+			return position1;
+		byte[] flags = new byte[Math.max(position1, position2) + 1];
+		GenerationHeap heap = new GenerationHeap();
+		flags[position1] = 1;
+		flags[position2] = 2;
+		heap.push(position1);
+		heap.push(position2);
+		while (!heap.isEmpty()) {
+			int current = heap.pop();
+			byte flagsOfCurrent = flags[current];
+			if (flagsOfCurrent == 3)
+				return current;
+			for (int i=0, count=getParentCount(current); i<count; i++) {
+				int parent = getParent(current, i);
+				if ((flags[parent] | flagsOfCurrent) != flags[parent]) {
+					boolean queued = flags[parent] != 0;
+					flags[parent] |= flagsOfCurrent;
+					if (!queued)
+						heap.push(parent);
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return
+	 * 			positions of specified commits and all their descendants
+	 */
+	BitSet getDescendants(Collection<Integer> positions) {
+		buildChildren();
+		int[] childOffsets = this.childOffsets;
+		int[] children = this.children;
+		BitSet descendants = new BitSet(size);
+		IntStack stack = new IntStack();
+		for (int position: positions) {
+			if (!descendants.get(position)) {
+				descendants.set(position);
+				stack.push(position);
+			}
+		}
+		while (!stack.isEmpty()) {
+			int current = stack.pop();
+			for (int i=childOffsets[current]; i<childOffsets[current+1]; i++) {
+				int child = children[i];
+				if (!descendants.get(child)) {
+					descendants.set(child);
+					stack.push(child);
+				}
+			}
+		}
+		return descendants;
+	}
+
+	private void buildChildren() {
+		if (children == null) synchronized (this) {
+			if (children == null) {
+				int[] childOffsets = new int[size+1];
+				for (int position=0; position<size; position++) {
+					for (int i=0, count=getParentCount(position); i<count; i++)
+						childOffsets[getParent(position, i)+1]++;
+				}
+				for (int position=0; position<size; position++)
+					childOffsets[position+1] += childOffsets[position];
+				int[] children = new int[childOffsets[size]];
+				int[] filled = Arrays.copyOf(childOffsets, size);
+				for (int position=0; position<size; position++) {
+					for (int i=0, count=getParentCount(position); i<count; i++) {
+						int parent = getParent(position, i);
+						children[filled[parent]++] = position;
+					}
+				}
+				this.childOffsets = childOffsets;
+				this.children = children;
+			}
+		}
+	}
+
+	/**
+	 * Append commits reachable from specified commit but not yet in this graph. Graph files
+	 * are extended, and a new graph instance is returned. Callers should serialize appending
+	 * to the same graph
+	 */
+	CommitGraph append(Repository repository, AnyObjectId commitId) {
+		if (positionOf(commitId) != -1)
+			return this;
+
+		Map<ObjectId, Integer> newPositions = new HashMap<>();
+		List<RevCommit> newCommits = new ArrayList<>();
+		Set<ObjectId> missingCommits = new HashSet<>();
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			revWalk.setRetainBody(false);
+
+			// Visit commits in post order so that parents are appended before children
+			Deque<RevCommit> stack = new ArrayDeque<>();
+			stack.push(revWalk.parseCommit(commitId));
+			while (!stack.isEmpty()) {
+				RevCommit current = stack.peek();
+				if (newPositions.containsKey(current)) {
+					stack.pop();
+					continue;
+				}
+				boolean parentsPending = false;
+				for (RevCommit parent: current.getParents()) {
+					if (!newPositions.containsKey(parent) && !missingCommits.contains(parent)
+							&& positionOf(parent) == -1) {
+						try {
+							revWalk.parseHeaders(parent);
+							stack.push(parent);
+							parentsPending = true;
+						} catch (MissingObjectException e) {
+							// Shallow or damaged repository, treat the commit as root
+							missingCommits.add(parent.copy());
+						}
+					}
+				}
+				if (!parentsPending) {
+					stack.pop();
+					newPositions.put(current.copy(), size + newCommits.size());
+					newCommits.add(current);
+				}
+			}
+
+			FileUtils.createDir(dir);
+			int newSize = size + newCommits.size();
+
+			// Write arrays in place only if no other graph has been appended from this graph
+			boolean inPlace = sharedSize.compareAndSet(size, newSize);
+			int[] newHashes = grow(hashes, newSize*HASH_WORDS, inPlace);
+			int[] newGenerations = grow(generations, newSize, inPlace);
+			int[] newParents1 = grow(parents1, newSize, inPlace);
+			int[] newParents2 = grow(parents2, newSize, inPlace);
+
+			List<Integer> newExtraParents = new ArrayList<>();
+			ByteBuffer newRecords;
+			if (size != 0) {
+				newRecords = ByteBuffer.allocate(newCommits.size() * RECORD_SIZE);
+			} else {
+				newRecords = ByteBuffer.allocate(HEADER_SIZE + newCommits.size() * RECORD_SIZE);
+				newRecords.putInt(VERSION);
+			}
+			ByteBuffer hash = ByteBuffer.allocate(Constants.OBJECT_ID_LENGTH);
+			for (int i=0; i<newCommits.size(); i++) {
+				RevCommit commit = newCommits.get(i);
+				int position = size + i;
+				List<Integer> parents = new ArrayList<>();
+				int generation = 1;
+				for (RevCommit parent: commit.getParents()) {
+					Integer parentPosition = newPositions.get(parent);
+					if (parentPosition == null) {
+						parentPosition = positionOf(parent);
+						if (parentPosition == -1)
+							continue;
+					}
+					parents.add(parentPosition);
+					generation = Math.max(generation, newGenerations[parentPosition]+1);
+				}
+
+				hash.clear();
+				commit.copyRawTo(hash);
+				hash.flip();
+				hash.asIntBuffer().get(newHashes, position*HASH_WORDS, HASH_WORDS);
+				newGenerations[position] = generation;
+				newParents1[position] = parents.size() >= 1? parents.get(0): -1;
+				if (parents.size() <= 2) {
+					newParents2[position] = parents.size() == 2? parents.get(1): -1;
+				} else {
+					newParents2[position] = -(extraParentsSize + newExtraParents.size() + 2);
+					newExtraParents.add(parents.size()-1);
+					newExtraParents.addAll(parents.subList(1, parents.size()));
+				}
+				newRecords.put(hash);
+				newRecords.putInt(newGenerations[position]);
+				newRecords.putInt(newParents1[position]);
+				newRecords.putInt(newParents2[position]);
+			}
+
+			int newExtraParentsSize = extraParentsSize + newExtraParents.size();
+			int[] newExtraParentsArray = grow(extraParents, newExtraParentsSize, inPlace);
+			for (int i=0; i<newExtraParents.size(); i++)
+				newExtraParentsArray[extraParentsSize+i] = newExtraParents.get(i);
+
+			int[] newHashTable;
+			if (inPlace && getHashTableCapacity(newSize) <= hashTable.length) {
+				newHashTable = hashTable;
+				for (int position=size; position<newSize; position++)
+					addToHashTable(newHashTable, newHashes, position);
+			} else {
+				newHashTable = new int[getHashTableCapacity(newSize)];
+				for (int position=0; position<newSize; position++)
+					addToHashTable(newHashTable, newHashes, position);
+			}
+
+			// Extra parents are written first so that a recorded commit never refers to missing data
+			if (!newExtraParents.isEmpty()) {
+				ByteBuffer buffer = ByteBuffer.allocate(newExtraParents.size() * Integer.BYTES);
+				for (int value: newExtraParents)
+					buffer.putInt(value);
+				buffer.flip();
+				write(new File(dir, EXTRA_PARENTS_FILE), (long)extraParentsSize*Integer.BYTES, buffer);
+			}
+			newRecords.flip();
+			write(new File(dir, COMMITS_FILE), size != 0? HEADER_SIZE + (long)size*RECORD_SIZE: 0, newRecords);
+
+			logger.debug("Appended {} commits to commit graph: {}", newCommits.size(), dir.getAbsolutePath());
+			return new CommitGraph(dir, newSize, newHashes, newGenerations, newParents1, newParents2,
+					newExtraParentsSize, newExtraParentsArray, newHashTable,
+					inPlace? sharedSize: new AtomicInteger(newSize));
+		} catch (IOException e) {
+			throw ExceptionUtils.unchecked(e);
+		}
+	}
+
+	private static int[] grow(int[] array, int length, boolean inPlace) {
+		if (inPlace && array.length >= length)
+			return array;
+		else
+			return Arrays.copyOf(array, Math.max(length, array.length + array.length/2));
+	}
+
+	/*
+	 * Write data at specified position of the file. Anything after the position is truncated 
+	 * first, as a previous append might have failed with partially written data, which would 
+	 * otherwise misalign all records appended after it
+	 */
+	private static void write(File file, long position, ByteBuffer data) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE)) {
+			if (channel.size() < position)
+				throw new IllegalStateException("Commit graph file is shorter than expected: " + file.getAbsolutePath());
+			channel.truncate(position);
+			while (data.hasRemaining())
+				channel.write(data, position + data.position());
+		}
+	}
+
+	private static class IntStack {
+
+		private int[] values = new int[64];
+
+		private int size;
+
+		void push(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size*2);
+			values[size++] = value;
+		}
+
+		int pop() {
+			return values[--size];
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+	}
+
+	/*
+	 * Binary max heap of positions ordered by generation number
+	 */
+	private class GenerationHeap {
+
+		private int[] values = new int[64];
+
+		private int size;
+
+		void push(int position) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size*2);
+			int index = size++;
+			while (index > 0) {
+				int parentIndex = (index-1) / 2;
+				if (getGeneration(values[parentIndex]) >= getGeneration(position))
+					break;
+				values[index] = values[parentIndex];
+				index = parentIndex;
+			}
+			values[index] = position;
+		}
+
+		int pop() {
+			int result = values[0];
+			int last = values[--size];
+			int lastGeneration = getGeneration(last);
+			int index = 0;
+			while (true) {
+				int childIndex = index*2 + 1;
+				if (childIndex >= size)
+					break;
+				if (childIndex+1 < size && getGeneration(values[childIndex+1]) > getGeneration(values[childIndex]))
+					childIndex++;
+				if (getGeneration(values[childIndex]) <= lastGeneration)
+					break;
+				values[index] = values[childIndex];
+				index = childIndex;
+			}
+			values[index] = last;
+			return result;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+	}
+
+}
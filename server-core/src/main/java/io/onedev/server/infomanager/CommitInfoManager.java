@@ -4,6 +4,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import org.eclipse.jgit.lib.ObjectId;
 
 import io.onedev.server.git.GitContribution;
@@ -36,6 +38,31 @@ public interface CommitInfoManager {
 	 */
 	Collection<ObjectId> getDescendants(Project project, Collection<ObjectId> ancestors);
 	
+	/**
+	 * Check if a commit is merged into another commit. Commit graph of the project is consulted 
+	 * if both commits are collected, otherwise the repository will be walked
+	 * 
+	 * @param project
+	 * 			project containing specified commits
+	 * @param base
+	 * 			commit to check if being merged
+	 * @param tip
+	 * 			commit to check against
+	 * @return
+	 * 			<tt>true</tt> if base commit is ancestor of or same as tip commit 
+	 */
+	boolean isMergedInto(Project project, ObjectId base, ObjectId tip);
+	
+	/**
+	 * Get merge base of specified commits, consulting commit graph of the project if both 
+	 * commits are collected
+	 * 
+	 * @return
+	 * 			merge base of specified commits, or <tt>null</tt> if they do not have common history
+	 */
+	@Nullable
+	ObjectId getMergeBase(Project project, ObjectId commitId1, ObjectId commitId2);
+	
 	void cloneInfo(Project from, Project to);
 	
 	Collection<String> getHistoryPaths(Project project, String path);
@@ -0,0 +1,136 @@
+package io.onedev.server.infomanager;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import io.onedev.server.git.GitContribution;
+
+/**
+ * Contributions keyed by an int (user index or day value), kept column by column in primitive
+ * arrays sorted by key. Encoded form is number of entries followed by columns of keys, commits,
+ * additions and deletions.
+ */
+class ContributionColumns {
+
+	private static final int COLUMNS = 4;
+
+	private int size;
+
+	private int[] keys;
+
+	private int[] commits;
+
+	private int[] additions;
+
+	private int[] deletions;
+
+	ContributionColumns() {
+		this(8);
+	}
+
+	private ContributionColumns(int capacity) {
+		keys = new int[capacity];
+		commits = new int[capacity];
+		additions = new int[capacity];
+		deletions = new int[capacity];
+	}
+
+	static ContributionColumns decode(@Nullable byte[] bytes) {
+		if (bytes != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int size = buffer.getInt();
+			ContributionColumns columns = new ContributionColumns(size);
+			columns.size = size;
+			buffer.asIntBuffer().get(columns.keys, 0, size);
+			buffer.position(buffer.position() + size*Integer.BYTES);
+			buffer.asIntBuffer().get(columns.commits, 0, size);
+			buffer.position(buffer.position() + size*Integer.BYTES);
+			buffer.asIntBuffer().get(columns.additions, 0, size);
+			buffer.position(buffer.position() + size*Integer.BYTES);
+			buffer.asIntBuffer().get(columns.deletions, 0, size);
+			return columns;
+		} else {
+			return new ContributionColumns();
+		}
+	}
+
+	byte[] encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + size*COLUMNS*Integer.BYTES);
+		buffer.putInt(size);
+		buffer.asIntBuffer().put(keys, 0, size).put(commits, 0, size).put(additions, 0, size).put(deletions, 0, size);
+		return buffer.array();
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getKey(int index) {
+		return keys[index];
+	}
+
+	int getCommits(int index) {
+		return commits[index];
+	}
+
+	int getAdditions(int index) {
+		return additions[index];
+	}
+
+	int getDeletions(int index) {
+		return deletions[index];
+	}
+
+	int getValue(int index, GitContribution.Type type) {
+		if (type == GitContribution.Type.COMMITS)
+			return commits[index];
+		else if (type == GitContribution.Type.ADDITIONS)
+			return additions[index];
+		else
+			return deletions[index];
+	}
+
+	GitContribution getContribution(int index) {
+		return new GitContribution(commits[index], additions[index], deletions[index]);
+	}
+
+	/**
+	 * @return
+	 * 			index of first entry with key greater than or equal to specified key
+	 */
+	int ceilingIndexOf(int key) {
+		int index = Arrays.binarySearch(keys, 0, size, key);
+		return index >= 0? index: -(index+1);
+	}
+
+	void add(int key, int commitsToAdd, int additionsToAdd, int deletionsToAdd) {
+		int index = Arrays.binarySearch(keys, 0, size, key);
+		if (index < 0) {
+			index = -(index+1);
+			if (size == keys.length) {
+				int capacity = Math.max(8, size*2);
+				keys = Arrays.copyOf(keys, capacity);
+				commits = Arrays.copyOf(commits, capacity);
+				additions = Arrays.copyOf(additions, capacity);
+				deletions = Arrays.copyOf(deletions, capacity);
+			}
+			if (index < size) {
+				System.arraycopy(keys, index, keys, index+1, size-index);
+				System.arraycopy(commits, index, commits, index+1, size-index);
+				System.arraycopy(additions, index, additions, index+1, size-index);
+				System.arraycopy(deletions, index, deletions, index+1, size-index);
+			}
+			keys[index] = key;
+			commits[index] = 0;
+			additions[index] = 0;
+			deletions[index] = 0;
+			size++;
+		}
+		commits[index] += commitsToAdd;
+		additions[index] += additionsToAdd;
+		deletions[index] += deletionsToAdd;
+	}
+
+}
@@ -0,0 +1,71 @@
+package io.onedev.server.infomanager;
+
+import org.joda.time.DateTime;
+
+import io.onedev.server.util.Day;
+
+/**
+ * Rollups of daily contributions. Day values are encoded as in {@link Day#getValue()}, and
+ * months are divided into week buckets starting at day 1, 8, 15, 22 and 29, so that day, week
+ * and month rollups nest within each other. Weeks and months are keyed by value of their first
+ * day, with day of month cleared for months.
+ */
+class ContributionRollups {
+
+	enum Granularity {DAY, WEEK, MONTH}
+
+	interface RollupVisitor {
+
+		void visit(Granularity granularity, int key);
+
+	}
+
+	static int getWeekValue(int dayValue) {
+		int dayOfMonth = dayValue & 0xff;
+		return (dayValue & ~0xff) | ((dayOfMonth-1)/7*7 + 1);
+	}
+
+	static int getMonthValue(int dayValue) {
+		return dayValue & ~0xff;
+	}
+
+	/**
+	 * Visit rollups covering specified day range exactly once with as few rollups as possible:
+	 * months fully covered, week buckets fully covered, and days for the rest
+	 *
+	 * @param fromDayValue
+	 * 			value of first day of the range, inclusive
+	 * @param toDayValue
+	 * 			value of last day of the range, inclusive
+	 */
+	static void visit(int fromDayValue, int toDayValue, RollupVisitor visitor) {
+		if (fromDayValue > toDayValue)
+			return;
+		DateTime month = new Day(fromDayValue).getDate().withDayOfMonth(1);
+		int monthValue;
+		while (((monthValue = getMonthValue(new Day(month).getValue())) | 1) <= toDayValue) {
+			int lastDayOfMonth = month.dayOfMonth().getMaximumValue();
+			if (fromDayValue <= (monthValue|1) && toDayValue >= (monthValue|lastDayOfMonth)) {
+				visitor.visit(Granularity.MONTH, monthValue);
+			} else {
+				for (int weekStart=1; weekStart<=lastDayOfMonth; weekStart+=7) {
+					int weekEnd = weekStart==29? lastDayOfMonth: weekStart+6;
+					int weekStartValue = monthValue | weekStart;
+					int weekEndValue = monthValue | weekEnd;
+					if (weekEndValue < fromDayValue || weekStartValue > toDayValue) {
+						continue;
+					} else if (fromDayValue <= weekStartValue && toDayValue >= weekEndValue) {
+						visitor.visit(Granularity.WEEK, weekStartValue);
+					} else {
+						int dayValue = Math.max(weekStartValue, fromDayValue);
+						int lastDayValue = Math.min(weekEndValue, toDayValue);
+						for (; dayValue<=lastDayValue; dayValue++)
+							visitor.visit(Granularity.DAY, dayValue);
+					}
+				}
+			}
+			month = month.plusMonths(1);
+		}
+	}
+
+}
@@ -6,6 +6,8 @@ import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -13,11 +15,13 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -33,6 +37,7 @@ import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +51,7 @@ import io.onedev.commons.utils.PathUtils;
 import io.onedev.commons.utils.StringUtils;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.RefsUpdated;
 import io.onedev.server.event.entity.EntityRemoved;
 import io.onedev.server.event.system.SystemStarted;
 import io.onedev.server.git.GitContribution;
@@ -55,8 +61,6 @@ import io.onedev.server.git.command.FileChange;
 import io.onedev.server.git.command.GitCommit;
 import io.onedev.server.git.command.ListNumStatsCommand;
 import io.onedev.server.git.command.LogCommand;
-import io.onedev.server.git.command.RevListCommand;
-import io.onedev.server.git.command.RevListCommand.Order;
 import io.onedev.server.model.Project;
 import io.onedev.server.model.User;
 import io.onedev.server.persistence.SessionManager;
@@ -86,7 +90,7 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 
 	private static final Logger logger = LoggerFactory.getLogger(DefaultCommitInfoManager.class);
 	
-	private static final int INFO_VERSION = 11;
+	private static final int INFO_VERSION = 12;
 	
 	private static final long LOG_FILE_SIZE = 256*1024;
 	
@@ -100,6 +104,8 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 	
 	private static final String INFO_DIR = "commit";
 	
+	private static final String COMMIT_GRAPH_DIR = "commitGraph";
+	
 	private static final String DEFAULT_STORE = "default";
 	
 	private static final String COMMITS_STORE = "commits";
@@ -120,6 +126,12 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 	
 	private static final String DAILY_CONTRIBUTIONS_STORE = "dailyContributions";
 	
+	private static final String WEEKLY_CONTRIBUTIONS_STORE = "weeklyContributions";
+	
+	private static final String MONTHLY_CONTRIBUTIONS_STORE = "monthlyContributions";
+	
+	private static final String USER_CONTRIBUTIONS_STORE = "userContributions";
+	
 	private static final ByteIterable NEXT_PATH_INDEX_KEY = new StringByteIterable("nextPathIndex");
 	
 	private static final ByteIterable NEXT_USER_INDEX_KEY = new StringByteIterable("nextUserIndex");
@@ -282,19 +294,25 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 	
 	private final SessionManager sessionManager;
 	
+	private final ExecutorService executorService;
+	
 	private final Map<Long, List<String>> filesCache = new ConcurrentHashMap<>();
 	
 	private final Map<Long, Integer> totalCommitCountCache = new ConcurrentHashMap<>();
 	
 	private final Map<Long, List<NameAndEmail>> usersCache = new ConcurrentHashMap<>();
 	
+	private final Map<Long, CommitGraph> commitGraphs = new ConcurrentHashMap<>();
+	
 	@Inject
 	public DefaultCommitInfoManager(ProjectManager projectManager, StorageManager storageManager, 
-			BatchWorkManager batchWorkManager, SessionManager sessionManager) {
+			BatchWorkManager batchWorkManager, SessionManager sessionManager, 
+			ExecutorService executorService) {
 		this.projectManager = projectManager;
 		this.storageManager = storageManager;
 		this.batchWorkManager = batchWorkManager;
 		this.sessionManager = sessionManager;
+		this.executorService = executorService;
 	}
 	
 	private boolean isCommitCollected(byte[] commitBytes) {
@@ -320,6 +338,8 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 		Store fixCommitsStore = getStore(env, FIX_COMMITS_STORE);
 		
 		Repository repository = project.getRepository();
+		
+		updateCommitGraph(project, commitId);
 
 		Pair<byte[], ObjectId> result = env.computeInTransaction(new TransactionalComputable<Pair<byte[], ObjectId>>() {
 			
@@ -378,30 +398,10 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 							else
 								files = new HashMap<>();
 
-							new ElementPumper<GitCommit>() {
+							new CommitCollector(repository, executorService).collect(untilCommitId, sinceCommitId, new Consumer<GitCommit>() {
 
 								@Override
-								public void generate(Consumer<GitCommit> consumer) {
-									List<String> revisions = new ArrayList<>();
-									revisions.add(untilCommitId.name());
-
-									if (sinceCommitId != null)
-										revisions.add("^" + sinceCommitId.name());
-
-									EnumSet<LogCommand.Field> fields = EnumSet.allOf(LogCommand.Field.class);
-									fields.remove(LogCommand.Field.LINE_CHANGES);
-									new LogCommand(project.getGitDir()) {
-
-										@Override
-										protected void consume(GitCommit commit) {
-											consumer.accept(commit);
-										}
-										
-									}.revisions(revisions).fields(fields).call();
-								}
-
-								@Override
-								public void process(GitCommit currentCommit) {
+								public void accept(GitCommit currentCommit) {
 									ObjectId currentCommitId = ObjectId.fromString(currentCommit.getHash());
 									ByteIterable currentCommitKey = new CommitByteIterable(currentCommitId);
 									byte[] currentCommitBytes = readBytes(commitsStore, txn, currentCommitKey);
@@ -444,9 +444,9 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 											boolean addNextCommit = true;
 											for (Iterator<ObjectId> it = fixingCommits.iterator(); it.hasNext();) {
 												ObjectId fixCommit = it.next();
-												if (GitUtils.isMergedInto(project.getRepository(), null, fixCommit, currentCommitId)) { 
+												if (isMergedInto(project, fixCommit, currentCommitId)) { 
 													it.remove();
-												} else if (GitUtils.isMergedInto(project.getRepository(), null, currentCommitId, fixCommit)) {
+												} else if (isMergedInto(project, currentCommitId, fixCommit)) {
 													addNextCommit = false;
 													break;
 												}
@@ -533,7 +533,7 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 									}
 								}
 
-							}.pump();
+							});
 
 							writeInt(defaultStore, txn, COMMIT_COUNT_KEY, totalCommitCount.get());
 							totalCommitCountCache.remove(project.getId());
@@ -579,6 +579,9 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 		Store defaultStore = getStore(env, DEFAULT_STORE);
 		Store userToIndexStore = getStore(env, USER_TO_INDEX_STORE);
 		Store dailyContributionsStore = getStore(env, DAILY_CONTRIBUTIONS_STORE);	
+		Store weeklyContributionsStore = getStore(env, WEEKLY_CONTRIBUTIONS_STORE);	
+		Store monthlyContributionsStore = getStore(env, MONTHLY_CONTRIBUTIONS_STORE);	
+		Store userContributionsStore = getStore(env, USER_CONTRIBUTIONS_STORE);	
 		
 		Repository repository = project.getRepository();
 		
@@ -611,10 +614,17 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 					
 					@Override
 					public void execute(Transaction txn) {
-						Map<Integer, GitContribution> overallContributions = 
-								deserializeContributions(readBytes(defaultStore, txn, OVERALL_CONTRIBUTIONS_KEY));
+						ContributionColumns overallContributions = ContributionColumns.decode(
+								readBytes(defaultStore, txn, OVERALL_CONTRIBUTIONS_KEY));
 						
-						Map<Integer, Map<Integer, GitContribution>> dailyContributionsCache = new HashMap<>();
+						/*
+						 * Contributions of each user are kept both by day (with weekly and monthly 
+						 * rollups) for top contributors calculation, and by user for per-user charts
+						 */
+						Map<Integer, ContributionColumns> dailyContributionsCache = new HashMap<>();
+						Map<Integer, ContributionColumns> weeklyContributionsCache = new HashMap<>();
+						Map<Integer, ContributionColumns> monthlyContributionsCache = new HashMap<>();
+						Map<Integer, ContributionColumns> userContributionsCache = new HashMap<>();
 						
 						new ElementPumper<GitCommit>() {
 
@@ -646,7 +656,7 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 							public void process(GitCommit currentCommit) {
 								if (currentCommit.getCommitDate() != null && currentCommit.getParentHashes().size() <= 1) {
 									int dayValue = new Day(currentCommit.getCommitDate()).getValue();
-									updateContribution(overallContributions, dayValue, currentCommit);
+									overallContributions.add(dayValue, 1, currentCommit.getAdditions(), currentCommit.getDeletions());
 
 									if (currentCommit.getAuthor() != null) {
 										NameAndEmail author = new NameAndEmail(currentCommit.getAuthor());
@@ -654,26 +664,26 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 										int userIndex = readInt(userToIndexStore, txn, authorKey, -1);
 										Preconditions.checkState(userIndex != -1);
 
-										Map<Integer, GitContribution> contributionsOnDay = dailyContributionsCache.get(dayValue);
-										if (contributionsOnDay == null) {
-											contributionsOnDay = deserializeContributions(readBytes(
-													dailyContributionsStore, txn, new IntByteIterable(dayValue)));
-											dailyContributionsCache.put(dayValue, contributionsOnDay);
-										}
-										updateContribution(contributionsOnDay, userIndex, currentCommit);
+										addContribution(dailyContributionsStore, txn, dailyContributionsCache, 
+												dayValue, userIndex, currentCommit);
+										addContribution(weeklyContributionsStore, txn, weeklyContributionsCache, 
+												ContributionRollups.getWeekValue(dayValue), userIndex, currentCommit);
+										addContribution(monthlyContributionsStore, txn, monthlyContributionsCache, 
+												ContributionRollups.getMonthValue(dayValue), userIndex, currentCommit);
+										addContribution(userContributionsStore, txn, userContributionsCache, 
+												userIndex, dayValue, currentCommit);
 									}
 								}
 							}
 
 						}.pump();
 						
-						for (Map.Entry<Integer, Map<Integer, GitContribution>> entry: dailyContributionsCache.entrySet()) {
-							byte[] bytesOfContributionsOnDay = serializeContributions(entry.getValue());
-							dailyContributionsStore.put(txn, new IntByteIterable(entry.getKey()), 
-									new ArrayByteIterable(bytesOfContributionsOnDay));
-						}
+						writeContributions(dailyContributionsStore, txn, dailyContributionsCache);
+						writeContributions(weeklyContributionsStore, txn, weeklyContributionsCache);
+						writeContributions(monthlyContributionsStore, txn, monthlyContributionsCache);
+						writeContributions(userContributionsStore, txn, userContributionsCache);
 						defaultStore.put(txn, OVERALL_CONTRIBUTIONS_KEY, 
-								new ArrayByteIterable(serializeContributions(overallContributions)));
+								new ArrayByteIterable(overallContributions.encode()));
 						
 						defaultStore.put(txn, LAST_COMMIT_OF_CONTRIBS_KEY, new CommitByteIterable(untilCommitId));
 					}
@@ -789,23 +799,31 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 	
 	private void processCommitRange(Project project, ObjectId untilCommitId, 
 			@Nullable ObjectId sinceCommitId, CommitRangeProcessor commitRangeProcessor) {
-		RevListCommand revList = new RevListCommand(project.getGitDir());
-		List<String> revisions = new ArrayList<>();
-		revisions.add(untilCommitId.name());
-		if (sinceCommitId != null) 
-			revisions.add("^" + sinceCommitId.name());
-		revList.revisions(revisions).order(Order.TOPO);
-		
 		List<ObjectId> historyIds = new ArrayList<>();
-		for (String commitHash: revList.call()) 
-			historyIds.add(ObjectId.fromString(commitHash));
-		
-		revList = new RevListCommand(project.getGitDir());
-		revList.revisions(revisions).order(null).firstParent(true);
-		
 		Set<ObjectId> firstParentIds = new HashSet<>();
-		for (String commitHash: revList.call()) 
-			firstParentIds.add(ObjectId.fromString(commitHash));
+		try (RevWalk revWalk = new RevWalk(project.getRepository())) {
+			revWalk.setRetainBody(false);
+			revWalk.sort(RevSort.TOPO);
+			RevCommit untilCommit = revWalk.parseCommit(untilCommitId);
+			revWalk.markStart(untilCommit);
+			if (sinceCommitId != null) 
+				revWalk.markUninteresting(revWalk.parseCommit(sinceCommitId));
+			for (RevCommit commit: revWalk) 
+				historyIds.add(commit.copy());
+			
+			/*
+			 * Follow first parent chain with headers already parsed by above walk, till 
+			 * reaching a commit outside of the range
+			 */
+			Set<ObjectId> historyIdSet = new HashSet<>(historyIds);
+			RevCommit commit = untilCommit;
+			while (commit != null && historyIdSet.contains(commit)) {
+				firstParentIds.add(commit.copy());
+				commit = commit.getParentCount() != 0? commit.getParent(0): null;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 
 		/*
 		 * Instead of collecting information of master branch all at once, we identify some  
@@ -834,9 +852,12 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 		Collections.reverse(intermediateCommitIds);
 		intermediateCommitIds.add(untilCommitId);
 		
+		int processedRanges = 0;
 		for(ObjectId intermediateCommitId: intermediateCommitIds) {
 			commitRangeProcessor.process(intermediateCommitId, sinceCommitId);
 			sinceCommitId = intermediateCommitId;
+			logger.debug("Processed commit range {} of {} (project: {}, commits: {})", 
+					++processedRanges, intermediateCommitIds.size(), project.getName(), historyIds.size());
 		}		
 	}
 		
@@ -991,17 +1012,21 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 		});
 	}
 	
-	private void updateContribution(Map<Integer, GitContribution> contributions, int key, GitCommit commit) {
-		GitContribution contribution = contributions.get(key);
-		if (contribution != null) {
-			contribution = new GitContribution(
-					contribution.getCommits()+1, 
-					contribution.getAdditions()+commit.getAdditions(), 
-					contribution.getDeletions()+commit.getDeletions());
-		} else {
-			contribution = new GitContribution(1, commit.getAdditions(), commit.getDeletions());
+	private void addContribution(Store store, Transaction txn, Map<Integer, ContributionColumns> cache, 
+			int key, int columnKey, GitCommit commit) {
+		ContributionColumns contributions = cache.get(key);
+		if (contributions == null) {
+			contributions = ContributionColumns.decode(readBytes(store, txn, new IntByteIterable(key)));
+			cache.put(key, contributions);
+		}
+		contributions.add(columnKey, 1, commit.getAdditions(), commit.getDeletions());
+	}
+	
+	private void writeContributions(Store store, Transaction txn, Map<Integer, ContributionColumns> cache) {
+		for (Map.Entry<Integer, ContributionColumns> entry: cache.entrySet()) {
+			store.put(txn, new IntByteIterable(entry.getKey()), 
+					new ArrayByteIterable(entry.getValue().encode()));
 		}
-		contributions.put(key, contribution);
 	}
 	
 	@Override
@@ -1031,49 +1056,58 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 		}
 	}
 	
+	private CommitGraph getCommitGraph(Long projectId) {
+		return commitGraphs.computeIfAbsent(projectId, 
+				it -> CommitGraph.load(new File(storageManager.getProjectInfoDir(projectId), COMMIT_GRAPH_DIR)));
+	}
+	
+	/*
+	 * Called from batch worker of the project, so that commit graph of a project is never 
+	 * appended concurrently
+	 */
+	private void updateCommitGraph(Project project, ObjectId commitId) {
+		CommitGraph commitGraph = getCommitGraph(project.getId());
+		commitGraphs.put(project.getId(), commitGraph.append(project.getRepository(), commitId));
+	}
+	
 	@Override
 	public Collection<ObjectId> getDescendants(Project project, Collection<ObjectId> ancestors) {
-		Environment env = getEnv(project.getId().toString());
-		final Store store = getStore(env, COMMITS_STORE);
+		CommitGraph commitGraph = getCommitGraph(project.getId());
+		Set<ObjectId> descendants = new HashSet<>(ancestors);
+		Collection<Integer> positions = new ArrayList<>();
+		for (ObjectId ancestor: ancestors) {
+			int position = commitGraph.positionOf(ancestor);
+			if (position != -1)
+				positions.add(position);
+		}
+		BitSet descendantPositions = commitGraph.getDescendants(positions);
+		for (int i = descendantPositions.nextSetBit(0); i >= 0; i = descendantPositions.nextSetBit(i+1))
+			descendants.add(commitGraph.getCommitId(i));
+		return descendants;
+	}
 
-		return env.computeInReadonlyTransaction(new TransactionalComputable<Set<ObjectId>>() {
+	@Override
+	public boolean isMergedInto(Project project, ObjectId base, ObjectId tip) {
+		CommitGraph commitGraph = getCommitGraph(project.getId());
+		int basePosition = commitGraph.positionOf(base);
+		int tipPosition = commitGraph.positionOf(tip);
+		if (basePosition != -1 && tipPosition != -1)
+			return commitGraph.isAncestor(basePosition, tipPosition);
+		else
+			return GitUtils.isMergedInto(project.getRepository(), null, base, tip);
+	}
 
-			@Override
-			public Set<ObjectId> compute(Transaction txn) {
-				Set<ObjectId> descendants = new HashSet<>();
-				
-				// Use stack instead of recursion to avoid StackOverflowException
-				Stack<ObjectId> stack = new Stack<>();
-				descendants.addAll(ancestors);
-				stack.addAll(ancestors);
-				while (!stack.isEmpty()) {
-					ObjectId current = stack.pop();
-					byte[] valueBytes = readBytes(store, txn, new CommitByteIterable(current));
-					if (valueBytes != null) {
-						if (valueBytes.length % 20 == 0) {
-							for (int i=0; i<valueBytes.length/20; i++) {
-								ObjectId child = ObjectId.fromRaw(valueBytes, i*20);
-								if (!descendants.contains(child)) {
-									descendants.add(child);
-									stack.push(child);
-								}
-							}
-						} else { 
-							for (int i=0; i<(valueBytes.length-1)/20; i++) {
-								ObjectId child = ObjectId.fromRaw(valueBytes, i*20+1);
-								if (!descendants.contains(child)) {
-									descendants.add(child);
-									stack.push(child);
-								}
-							}
-						}
-					}
-				}
-				
-				return descendants;
-			}
-			
-		});
+	@Override
+	public ObjectId getMergeBase(Project project, ObjectId commitId1, ObjectId commitId2) {
+		CommitGraph commitGraph = getCommitGraph(project.getId());
+		int position1 = commitGraph.positionOf(commitId1);
+		int position2 = commitGraph.positionOf(commitId2);
+		if (position1 != -1 && position2 != -1) {
+			int mergeBasePosition = commitGraph.getMergeBase(position1, position2);
+			return mergeBasePosition != -1? commitGraph.getCommitId(mergeBasePosition): null;
+		} else {
+			return GitUtils.getMergeBase(project.getRepository(), commitId1, commitId2);
+		}
 	}
 
 	@Listen
@@ -1084,11 +1118,12 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 			filesCache.remove(projectId);
 			totalCommitCountCache.remove(projectId);
 			usersCache.remove(projectId);
+			commitGraphs.remove(projectId);
 		}
 	}
 	
 	private BatchWorker getBatchWorker(Long projectId) {
-		return new BatchWorker("project-" + projectId + "-collectCommitInfo") {
+		return new BatchWorker("project-" + projectId, "project-" + projectId + "-collectCommitInfo") {
 
 			@Override
 			public void doWorks(Collection<Prioritized> works) {
@@ -1146,9 +1181,7 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 	@Sessional
 	@Listen
 	public void on(RefUpdated event) {
-		if (!event.getNewCommitId().equals(ObjectId.zeroId()) 
-				&& (event.getRefName().startsWith(Constants.R_HEADS) 
-						|| event.getRefName().startsWith(Constants.R_TAGS))) {
+		if (!event.isBatched() && isCollectable(event)) {
 			try (RevWalk revWalk = new RevWalk(event.getProject().getRepository())) {
 				RevCommit commit = GitUtils.parseCommit(revWalk, event.getNewCommitId());
 				if (commit != null) {
@@ -1158,6 +1191,39 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 			}
 		}
 	}
+	
+	@Sessional
+	@Listen
+	public void on(RefsUpdated event) {
+		/*
+		 * Parse all updated commits in one walk, and collect each distinct commit only once 
+		 * as many tags may point to same commit when a mirror is pushed
+		 */
+		Map<ObjectId, CollectingWork> works = new LinkedHashMap<>();
+		try (RevWalk revWalk = new RevWalk(event.getProject().getRepository())) {
+			for (RefUpdated refUpdated: event.getRefUpdates()) {
+				if (isCollectable(refUpdated) && !works.containsKey(refUpdated.getNewCommitId())) {
+					RevCommit commit = GitUtils.parseCommit(revWalk, refUpdated.getNewCommitId());
+					if (commit != null) {
+						works.put(refUpdated.getNewCommitId(), 
+								new CollectingWork(PRIORITY, commit, refUpdated.getRefName()));
+					}
+				}
+			}
+		}
+		
+		List<CollectingWork> sortedWorks = new ArrayList<>(works.values());
+		Collections.sort(sortedWorks, new CommitTimeComparator());
+		BatchWorker batchWorker = getBatchWorker(event.getProject().getId());
+		for (CollectingWork work: sortedWorks)
+			batchWorkManager.submit(batchWorker, work);
+	}
+	
+	private boolean isCollectable(RefUpdated event) {
+		return !event.getNewCommitId().equals(ObjectId.zeroId()) 
+				&& (event.getRefName().startsWith(Constants.R_HEADS) 
+						|| event.getRefName().startsWith(Constants.R_TAGS));
+	}
 
 	@Sessional
 	@Override
@@ -1213,21 +1279,32 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 	@Sessional
 	@Override
 	public void cloneInfo(Project source, Project target) {
-		BackupStrategy backupStrategy = getEnv(source.getId().toString()).getBackupStrategy();
-		try {
-			File targetDir = getEnvDir(target.getId().toString());
-			backupStrategy.beforeBackup();
-			try {
-				for (VirtualFileDescriptor descriptor: backupStrategy.getContents()) {
-					FileUtils.copyFileToDirectory(((FileDescriptor)descriptor).getFile(), targetDir);
+		Environment env = getEnv(source.getId().toString());
+		
+		// Backup strategy is bound to current environment, which should not be closed during backup
+		callWithEnvOpen(env, new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				BackupStrategy backupStrategy = env.getBackupStrategy();
+				try {
+					File targetDir = getEnvDir(target.getId().toString());
+					backupStrategy.beforeBackup();
+					try {
+						for (VirtualFileDescriptor descriptor: backupStrategy.getContents()) {
+							FileUtils.copyFileToDirectory(((FileDescriptor)descriptor).getFile(), targetDir);
+						}
+					} finally {
+						backupStrategy.afterBackup();
+					}
+					writeVersion(target.getId().toString());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
 				}
-			} finally {
-				backupStrategy.afterBackup();
+				return null;
 			}
-			writeVersion(target.getId().toString());
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+			
+		});
 	}
 
 	@Override
@@ -1303,10 +1380,9 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 			@Override
 			public Map<Day, GitContribution> compute(Transaction txn) {
 				Map<Day, GitContribution> overallContributions = new HashMap<>();
-				for (Map.Entry<Integer, GitContribution> entry: 
-							deserializeContributions(readBytes(store, txn, OVERALL_CONTRIBUTIONS_KEY)).entrySet()) {
-					overallContributions.put(new Day(entry.getKey()), entry.getValue());
-				}
+				ContributionColumns columns = ContributionColumns.decode(readBytes(store, txn, OVERALL_CONTRIBUTIONS_KEY));
+				for (int i=0; i<columns.size(); i++) 
+					overallContributions.put(new Day(columns.getKey(i)), columns.getContribution(i));
 				return overallContributions;
 			}
 			
@@ -1321,46 +1397,54 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 		Store defaultStore = getStore(env, DEFAULT_STORE);
 		Store indexToUserStore = getStore(env, INDEX_TO_USER_STORE);
 		Store dailyContributionsStore = getStore(env, DAILY_CONTRIBUTIONS_STORE);
+		Store weeklyContributionsStore = getStore(env, WEEKLY_CONTRIBUTIONS_STORE);
+		Store monthlyContributionsStore = getStore(env, MONTHLY_CONTRIBUTIONS_STORE);
+		Store userContributionsStore = getStore(env, USER_CONTRIBUTIONS_STORE);
 		
 		return env.computeInReadonlyTransaction(new TransactionalComputable<List<GitContributor>>() {
 
 			@Override
 			public List<GitContributor> compute(Transaction txn) {
-				Map<Integer, GitContribution> overallContributions = 
-						deserializeContributions(readBytes(defaultStore, txn, OVERALL_CONTRIBUTIONS_KEY));
-				Map<Integer, GitContribution> totalContributions = new HashMap<>();
-				for (int dayValue: overallContributions.keySet()) {
-					if (dayValue >= fromDay && dayValue <= toDay) {
-						ByteIterable dayKey = new IntByteIterable(dayValue);
-						Map<Integer, GitContribution> contributionsOnDay = 
-								deserializeContributions(readBytes(dailyContributionsStore, txn, dayKey));
-						for (Map.Entry<Integer, GitContribution> entry: contributionsOnDay.entrySet()) {
-							Integer userIndex = entry.getKey();
-							GitContribution totalContribution = totalContributions.get(userIndex);
-							if (totalContribution == null) {
-								totalContribution = entry.getValue();
-							} else {
-								totalContribution = new GitContribution(
-										totalContribution.getCommits() + entry.getValue().getCommits(), 
-										totalContribution.getAdditions() + entry.getValue().getAdditions(), 
-										totalContribution.getDeletions() + entry.getValue().getDeletions());
-							}
-							totalContributions.put(userIndex, totalContribution);
-						}
+				ContributionColumns overallContributions = ContributionColumns.decode(
+						readBytes(defaultStore, txn, OVERALL_CONTRIBUTIONS_KEY));
+				if (overallContributions.size() == 0)
+					return new ArrayList<>();
+				
+				int fromDayValue = Math.max(fromDay, overallContributions.getKey(0));
+				int toDayValue = Math.min(toDay, overallContributions.getKey(overallContributions.size()-1));
+				
+				/*
+				 * Sum up contributions of the range with as few records as possible: monthly rollups 
+				 * for months fully covered, weekly rollups for week buckets fully covered, and daily 
+				 * records for the rest. Totals are accumulated in arrays indexed by user index
+				 */
+				ContributionTotals totals = new ContributionTotals();
+				ContributionRollups.visit(fromDayValue, toDayValue, new ContributionRollups.RollupVisitor() {
+
+					@Override
+					public void visit(ContributionRollups.Granularity granularity, int key) {
+						Store store;
+						if (granularity == ContributionRollups.Granularity.MONTH)
+							store = monthlyContributionsStore;
+						else if (granularity == ContributionRollups.Granularity.WEEK)
+							store = weeklyContributionsStore;
+						else
+							store = dailyContributionsStore;
+						totals.add(readContributions(store, txn, key));
 					}
-				}
+					
+				});
 				
-				List<Integer> topUserIndexes = new ArrayList<>(totalContributions.keySet());
+				List<Integer> topUserIndexes = new ArrayList<>();
+				for (int userIndex=0; userIndex<totals.size(); userIndex++) {
+					if (totals.getCommits(userIndex) != 0)
+						topUserIndexes.add(userIndex);
+				}
 				Collections.sort(topUserIndexes, new Comparator<Integer>() {
 
 					@Override
 					public int compare(Integer o1, Integer o2) {
-						if (type == GitContribution.Type.COMMITS)
-							return totalContributions.get(o2).getCommits() - totalContributions.get(o1).getCommits();
-						else if (type == GitContribution.Type.ADDITIONS)
-							return totalContributions.get(o2).getAdditions() - totalContributions.get(o1).getAdditions();
-						else
-							return totalContributions.get(o2).getDeletions() - totalContributions.get(o1).getDeletions();
+						return Integer.compare(totals.getValue(o2, type), totals.getValue(o1, type));
 					}
 					
 				});
@@ -1368,43 +1452,25 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 				if (top < topUserIndexes.size())
 					topUserIndexes = topUserIndexes.subList(0, top);
 				
-				Set<Integer> topUserIndexSet = new HashSet<>(topUserIndexes);
-				
-				Map<Integer, Map<Day, Integer>> userContributions = new HashMap<>();
-				
-				for (int dayValue: overallContributions.keySet()) {
-					if (dayValue >= fromDay && dayValue <= toDay) {
-						ByteIterable dayKey = new IntByteIterable(dayValue);
-						Map<Integer, GitContribution> contributionsOnDay = 
-								deserializeContributions(readBytes(dailyContributionsStore, txn, dayKey));
-						Day day = new Day(dayValue);
-						for (Map.Entry<Integer, GitContribution> entry: contributionsOnDay.entrySet()) {
-							Integer userIndex = entry.getKey();
-							if (topUserIndexSet.contains(userIndex)) {
-								Map<Day, Integer> contributionsByUser = userContributions.get(userIndex);
-								if (contributionsByUser == null) {
-									contributionsByUser = new HashMap<>();
-									userContributions.put(userIndex, contributionsByUser);
-								}
-								if (type == GitContribution.Type.COMMITS)
-									contributionsByUser.put(day, entry.getValue().getCommits());
-								else if (type == GitContribution.Type.ADDITIONS)
-									contributionsByUser.put(day, entry.getValue().getAdditions());
-								else
-									contributionsByUser.put(day, entry.getValue().getDeletions());
-							}
-						}
-					}
-				}
-
 				List<GitContributor> contributors = new ArrayList<>();
 				
 				for (int userIndex: topUserIndexes) {
 					byte[] userBytes = readBytes(indexToUserStore, txn, new IntByteIterable(userIndex));
-					Map<Day, Integer> contributionsByUser = userContributions.get(userIndex);
-					if (userBytes != null && contributionsByUser != null) {
+					
+					// read daily contributions of the user from user column directly
+					ContributionColumns userContributions = readContributions(userContributionsStore, txn, userIndex);
+					Map<Day, Integer> contributionsByUser = new HashMap<>();
+					for (int i=userContributions.ceilingIndexOf(fromDayValue); 
+							i<userContributions.size() && userContributions.getKey(i)<=toDayValue; 
+							i++) {
+						contributionsByUser.put(new Day(userContributions.getKey(i)), userContributions.getValue(i, type));
+					}
+					
+					if (userBytes != null && !contributionsByUser.isEmpty()) {
 						PersonIdent user = ((NameAndEmail)SerializationUtils.deserialize(userBytes)).asPersonIdent();
-						contributors.add(new GitContributor(user, totalContributions.get(userIndex), contributionsByUser));
+						GitContribution totalContribution = new GitContribution(totals.getCommits(userIndex), 
+								totals.getAdditions(userIndex), totals.getDeletions(userIndex));
+						contributors.add(new GitContributor(user, totalContribution, contributionsByUser));
 					}
 				}
 				
@@ -1413,46 +1479,9 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 			
 		});
 	}
-
-	private Map<Integer, GitContribution> deserializeContributions(byte[] bytes) {
-		if (bytes != null) {
-			Map<Integer, GitContribution> contributions = new HashMap<>();
-			int pos = 0;
-			for (int i=0; i<bytes.length/4/Integer.BYTES; i++) {
-				int key = ByteBuffer.wrap(bytes, pos, Integer.BYTES).getInt();
-				pos += Integer.BYTES;
-				int commits = ByteBuffer.wrap(bytes, pos, Integer.BYTES).getInt(); 
-				pos += Integer.BYTES;
-				int additions = ByteBuffer.wrap(bytes, pos, Integer.BYTES).getInt();
-				pos += Integer.BYTES;
-				int deletions = ByteBuffer.wrap(bytes, pos, Integer.BYTES).getInt(); 
-				pos += Integer.BYTES;
-				contributions.put(key, new GitContribution(commits, additions, deletions));
-			}
-			return contributions;
-		} else {
-			return new HashMap<>();
-		}
-	}
 	
-	private byte[] serializeContributions(Map<Integer, GitContribution> contributions) {
-		byte[] bytes = new byte[contributions.size()*Integer.BYTES*4];
-		int pos = 0;
-		for (Map.Entry<Integer, GitContribution> entry: contributions.entrySet()) {
-			byte[] keyBytes = ByteBuffer.allocate(Integer.BYTES).putInt(entry.getKey()).array(); 
-			System.arraycopy(keyBytes, 0, bytes, pos, Integer.BYTES);
-			pos += Integer.BYTES;
-			byte[] commitsBytes = ByteBuffer.allocate(Integer.BYTES).putInt(entry.getValue().getCommits()).array();
-			System.arraycopy(commitsBytes, 0, bytes, pos, Integer.BYTES);
-			pos += Integer.BYTES;
-			byte[] additionsBytes = ByteBuffer.allocate(Integer.BYTES).putInt(entry.getValue().getAdditions()).array();
-			System.arraycopy(additionsBytes, 0, bytes, pos, Integer.BYTES);
-			pos += Integer.BYTES;
-			byte[] deletionsBytes = ByteBuffer.allocate(Integer.BYTES).putInt(entry.getValue().getDeletions()).array();
-			System.arraycopy(deletionsBytes, 0, bytes, pos, Integer.BYTES);
-			pos += Integer.BYTES;
-		}
-		return bytes;
+	private ContributionColumns readContributions(Store store, Transaction txn, int key) {
+		return ContributionColumns.decode(readBytes(store, txn, new IntByteIterable(key)));
 	}
 	
 	@Override
@@ -1530,6 +1559,60 @@ public class DefaultCommitInfoManager extends AbstractEnvironmentManager impleme
 		return addedCommitCount;
 	}
 
+	/*
+	 * Contribution totals indexed by user index. User indexes are allocated sequentially, so 
+	 * plain arrays are used instead of maps to avoid boxing
+	 */
+	private static class ContributionTotals {
+		
+		private int[] commits = new int[0];
+		
+		private int[] additions = new int[0];
+		
+		private int[] deletions = new int[0];
+		
+		void add(ContributionColumns contributions) {
+			for (int i=0; i<contributions.size(); i++) {
+				int userIndex = contributions.getKey(i);
+				if (userIndex >= commits.length) {
+					int length = Math.max(userIndex+1, commits.length*2);
+					commits = Arrays.copyOf(commits, length);
+					additions = Arrays.copyOf(additions, length);
+					deletions = Arrays.copyOf(deletions, length);
+				}
+				commits[userIndex] += contributions.getCommits(i);
+				additions[userIndex] += contributions.getAdditions(i);
+				deletions[userIndex] += contributions.getDeletions(i);
+			}
+		}
+		
+		int size() {
+			return commits.length;
+		}
+		
+		int getCommits(int userIndex) {
+			return commits[userIndex];
+		}
+		
+		int getAdditions(int userIndex) {
+			return additions[userIndex];
+		}
+		
+		int getDeletions(int userIndex) {
+			return deletions[userIndex];
+		}
+		
+		int getValue(int userIndex, GitContribution.Type type) {
+			if (type == GitContribution.Type.COMMITS)
+				return commits[userIndex];
+			else if (type == GitContribution.Type.ADDITIONS)
+				return additions[userIndex];
+			else
+				return deletions[userIndex];
+		}
+		
+	}
+	
 	private static class NextIndex {
 		int user;
 		
@@ -87,7 +87,7 @@ public class DefaultPullRequestInfoManager extends AbstractEnvironmentManager
 	}
 	
 	private BatchWorker getBatchWorker(Long projectId) {
-		return new BatchWorker("project-" + projectId + "-collectPullRequestInfo") {
+		return new BatchWorker("project-" + projectId, "project-" + projectId + "-collectPullRequestInfo") {
 
 			@Override
 			public void doWorks(Collection<Prioritized> works) {
@@ -1,12 +1,24 @@
 package io.onedev.server.infomanager;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.joda.time.DateTime;
+import org.quartz.ScheduleBuilder;
+import org.quartz.SimpleScheduleBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
 
@@ -16,12 +28,17 @@ import io.onedev.server.event.entity.EntityRemoved;
 import io.onedev.server.event.issue.IssueEvent;
 import io.onedev.server.event.pullrequest.PullRequestCodeCommentEvent;
 import io.onedev.server.event.pullrequest.PullRequestEvent;
+import io.onedev.server.event.system.SystemStarted;
+import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.model.CodeComment;
 import io.onedev.server.model.Issue;
+import io.onedev.server.model.Project;
 import io.onedev.server.model.PullRequest;
 import io.onedev.server.model.User;
 import io.onedev.server.persistence.annotation.Transactional;
 import io.onedev.server.storage.StorageManager;
+import io.onedev.server.util.schedule.SchedulableTask;
+import io.onedev.server.util.schedule.TaskScheduler;
 import jetbrains.exodus.env.Environment;
 import jetbrains.exodus.env.Store;
 import jetbrains.exodus.env.Transaction;
@@ -30,13 +47,19 @@ import jetbrains.exodus.env.TransactionalExecutable;
 
 /**
  * Store project visit information here as we only need to load a single database to sort projects based on user 
- * visit information
+ * visit information. 
+ * <p>
+ * Visits are recorded in memory first and written to the database periodically in one transaction per 
+ * project, so that page views do not each result in a database write
  * 
  * @author robin
  *
  */
 @Singleton
-public class DefaultUserInfoManager extends AbstractEnvironmentManager implements UserInfoManager {
+public class DefaultUserInfoManager extends AbstractEnvironmentManager 
+		implements UserInfoManager, SchedulableTask {
+
+	private static final Logger logger = LoggerFactory.getLogger(DefaultUserInfoManager.class);
 
 	private static final int INFO_VERSION = 6;
 	
@@ -48,18 +71,64 @@ public class DefaultUserInfoManager extends AbstractEnvironmentManager implement
 
 	private static final String ISSUE_VISIT_STORE = "issueVisit";
 	
+	private static final int FLUSH_INTERVAL = 5; 
+	
+	// Flush in visiting thread if too many visits are pending
+	private static final int MAX_PENDING_VISITS = 10000;
+	
 	private final StorageManager storageManager;
 	
+	private final TaskScheduler taskScheduler;
+	
+	private final Map<Visit, Long> pendingVisits = new ConcurrentHashMap<>();
+	
+	private String taskId;
+	
 	@Inject
-	public DefaultUserInfoManager(StorageManager storageManager) {
+	public DefaultUserInfoManager(StorageManager storageManager, TaskScheduler taskScheduler) {
 		this.storageManager = storageManager;
+		this.taskScheduler = taskScheduler;
 	}
 	
 	@Transactional
 	@Listen
 	public void on(EntityRemoved event) {
-		if (event.getEntity() instanceof User)
-			removeEnv(event.getEntity().getId().toString());
+		if (event.getEntity() instanceof User) {
+			Long userId = event.getEntity().getId();
+			pendingVisits.keySet().removeIf(it -> it.userId.equals(userId));
+			removeEnv(userId.toString());
+		} else if (event.getEntity() instanceof Project) {
+			Long projectId = event.getEntity().getId();
+			pendingVisits.keySet().removeIf(it -> it.projectId.equals(projectId));
+		}
+	}
+	
+	@Listen
+	public void on(SystemStarted event) {
+		taskId = taskScheduler.schedule(this);
+	}
+	
+	@Listen
+	@Override
+	public void on(SystemStopping event) {
+		if (taskId != null)
+			taskScheduler.unschedule(taskId);
+		flush();
+		super.on(event);
+	}
+	
+	@Override
+	public void execute() {
+		try {
+			flush();
+		} catch (Exception e) {
+			logger.error("Error flushing user visits", e);
+		}
+	}
+
+	@Override
+	public ScheduleBuilder<?> getScheduleBuilder() {
+		return SimpleScheduleBuilder.repeatSecondlyForever(FLUSH_INTERVAL);
 	}
 
 	@Override
@@ -72,136 +141,132 @@ public class DefaultUserInfoManager extends AbstractEnvironmentManager implement
 		return INFO_VERSION;
 	}
 	
-	@Override
-	public void visitIssue(User user, Issue issue) {
-		Environment env = getEnv(issue.getProject().getId().toString());
-		Store store = getStore(env, ISSUE_VISIT_STORE);
-		env.executeInTransaction(new TransactionalExecutable() {
+	private void visit(Long projectId, String storeName, User user, Long entityId) {
+		long time = new DateTime().plusSeconds(1).getMillis();
+		pendingVisits.merge(new Visit(projectId, storeName, user.getId(), entityId), time, Math::max);
+		if (pendingVisits.size() > MAX_PENDING_VISITS)
+			flush();
+	}
+	
+	private synchronized void flush() {
+		Map<Long, List<Map.Entry<Visit, Long>>> visitsByProject = new HashMap<>();
+		for (Map.Entry<Visit, Long> entry: pendingVisits.entrySet()) 
+			visitsByProject.computeIfAbsent(entry.getKey().projectId, it -> new ArrayList<>()).add(entry);
+		
+		for (Map.Entry<Long, List<Map.Entry<Visit, Long>>> entry: visitsByProject.entrySet()) {
+			Environment env = getEnv(entry.getKey().toString());
+			Map<String, Store> stores = new HashMap<>();
+			for (Map.Entry<Visit, Long> visitEntry: entry.getValue()) 
+				stores.computeIfAbsent(visitEntry.getKey().storeName, it -> getStore(env, it));
+			env.executeInTransaction(new TransactionalExecutable() {
+				
+				@Override
+				public void execute(Transaction txn) {
+					for (Map.Entry<Visit, Long> visitEntry: entry.getValue()) {
+						Visit visit = visitEntry.getKey();
+						writeLong(stores.get(visit.storeName), txn, visit.getKey(), visitEntry.getValue());
+					}
+				}
+				
+			});
+			
+			// Visits updated since snapshot are kept to be written next time
+			for (Map.Entry<Visit, Long> visitEntry: entry.getValue())
+				pendingVisits.remove(visitEntry.getKey(), visitEntry.getValue());
+		}
+	}
+	
+	@Nullable
+	private Date getVisitDate(Long projectId, String storeName, User user, Long entityId) {
+		return getVisitDates(projectId, storeName, user, Lists.newArrayList(entityId)).get(entityId);
+	}
+	
+	private Map<Long, Date> getVisitDates(Long projectId, String storeName, User user, 
+			Collection<Long> entityIds) {
+		Environment env = getEnv(projectId.toString());
+		Store store = getStore(env, storeName);
+		return env.computeInReadonlyTransaction(new TransactionalComputable<Map<Long, Date>>() {
 			
 			@Override
-			public void execute(Transaction txn) {
-				long time = new DateTime().plusSeconds(1).getMillis();
-				writeLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), issue.getId())), time);
+			public Map<Long, Date> compute(Transaction txn) {
+				Map<Long, Date> visitDates = new HashMap<>();
+				for (Long entityId: entityIds) {
+					Visit visit = new Visit(projectId, storeName, user.getId(), entityId);
+					Long millis = pendingVisits.get(visit);
+					if (millis == null) 
+						millis = readLong(store, txn, visit.getKey(), -1);
+					if (millis != -1)
+						visitDates.put(entityId, new Date(millis));
+				}
+				return visitDates;
 			}
 			
 		});
 	}
+	
+	@Override
+	public void visitIssue(User user, Issue issue) {
+		visit(issue.getProject().getId(), ISSUE_VISIT_STORE, user, issue.getId());
+	}
 
 	@Override
 	public void visitPullRequest(User user, PullRequest request) {
-		Environment env = getEnv(request.getTargetProject().getId().toString());
-		Store store = getStore(env, PULL_REQUEST_VISIT_STORE);
-		env.executeInTransaction(new TransactionalExecutable() {
-			
-			@Override
-			public void execute(Transaction txn) {
-				long time = new DateTime().plusSeconds(1).getMillis();
-				writeLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), request.getId())), time);
-			}
-			
-		});
+		visit(request.getTargetProject().getId(), PULL_REQUEST_VISIT_STORE, user, request.getId());
 	}
 	
 	@Override
 	public void visitPullRequestCodeComments(User user, PullRequest request) {
-		Environment env = getEnv(request.getTargetProject().getId().toString());
-		Store store = getStore(env, PULL_REQUEST_CODE_COMMENTS_VISIT_STORE);
-		env.executeInTransaction(new TransactionalExecutable() {
-			
-			@Override
-			public void execute(Transaction txn) {
-				long time = new DateTime().plusSeconds(1).getMillis();
-				writeLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), request.getId())), time);
-			}
-			
-		});
+		visit(request.getTargetProject().getId(), PULL_REQUEST_CODE_COMMENTS_VISIT_STORE, user, request.getId());
 	}
 	
 	@Override
 	public void visitCodeComment(User user, CodeComment comment) {
-		Environment env = getEnv(comment.getProject().getId().toString());
-		Store store = getStore(env, CODE_COMMENT_VISIT_STORE);
-		env.executeInTransaction(new TransactionalExecutable() {
-			
-			@Override
-			public void execute(Transaction txn) {
-				long time = new DateTime().plusSeconds(1).getMillis();
-				writeLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), comment.getId())), time);
-			}
-			
-		});
+		visit(comment.getProject().getId(), CODE_COMMENT_VISIT_STORE, user, comment.getId());
 	}
 
 	@Override
 	public Date getPullRequestVisitDate(User user, PullRequest request) {
-		Environment env = getEnv(request.getTargetProject().getId().toString());
-		Store store = getStore(env, PULL_REQUEST_VISIT_STORE);
-		return env.computeInTransaction(new TransactionalComputable<Date>() {
-			
-			@Override
-			public Date compute(Transaction txn) {
-				long millis = readLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), request.getId())), -1);
-				if (millis != -1)
-					return new Date(millis);
-				else
-					return null;
-			}
-			
-		});
+		return getVisitDate(request.getTargetProject().getId(), PULL_REQUEST_VISIT_STORE, user, request.getId());
 	}
 
 	@Override
 	public Date getIssueVisitDate(User user, Issue issue) {
-		Environment env = getEnv(issue.getProject().getId().toString());
-		Store store = getStore(env, ISSUE_VISIT_STORE);
-		return env.computeInTransaction(new TransactionalComputable<Date>() {
-			
-			@Override
-			public Date compute(Transaction txn) {
-				long millis = readLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), issue.getId())), -1);
-				if (millis != -1)
-					return new Date(millis);
-				else
-					return null;
-			}
-			
-		});
+		return getVisitDate(issue.getProject().getId(), ISSUE_VISIT_STORE, user, issue.getId());
 	}
 	
 	@Override
 	public Date getPullRequestCodeCommentsVisitDate(User user, PullRequest request) {
-		Environment env = getEnv(request.getTargetProject().getId().toString());
-		Store store = getStore(env, PULL_REQUEST_CODE_COMMENTS_VISIT_STORE);
-		return env.computeInTransaction(new TransactionalComputable<Date>() {
-			
-			@Override
-			public Date compute(Transaction txn) {
-				long millis = readLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), request.getId())), -1);
-				if (millis != -1)
-					return new Date(millis);
-				else
-					return null;
-			}
-			
-		});
+		return getVisitDate(request.getTargetProject().getId(), PULL_REQUEST_CODE_COMMENTS_VISIT_STORE, 
+				user, request.getId());
 	}
 	
 	@Override
 	public Date getCodeCommentVisitDate(User user, CodeComment comment) {
-		Environment env = getEnv(comment.getProject().getId().toString());
-		Store store = getStore(env, CODE_COMMENT_VISIT_STORE);
-		return env.computeInTransaction(new TransactionalComputable<Date>() {
-			
-			@Override
-			public Date compute(Transaction txn) {
-				long millis = readLong(store, txn, new LongsByteIterable(Lists.newArrayList(user.getId(), comment.getId())), -1);
-				if (millis != -1)
-					return new Date(millis);
-				else
-					return null;
-			}
-			
-		});
+		return getVisitDate(comment.getProject().getId(), CODE_COMMENT_VISIT_STORE, user, comment.getId());
+	}
+
+	@Override
+	public Map<Long, Date> getIssueVisitDates(User user, Collection<Issue> issues) {
+		Map<Long, Collection<Long>> issueIds = new HashMap<>();
+		for (Issue issue: issues)
+			issueIds.computeIfAbsent(issue.getProject().getId(), it -> new ArrayList<>()).add(issue.getId());
+		Map<Long, Date> visitDates = new HashMap<>();
+		for (Map.Entry<Long, Collection<Long>> entry: issueIds.entrySet()) 
+			visitDates.putAll(getVisitDates(entry.getKey(), ISSUE_VISIT_STORE, user, entry.getValue()));
+		return visitDates;
+	}
+
+	@Override
+	public Map<Long, Date> getPullRequestVisitDates(User user, Collection<PullRequest> requests) {
+		Map<Long, Collection<Long>> requestIds = new HashMap<>();
+		for (PullRequest request: requests) {
+			requestIds.computeIfAbsent(request.getTargetProject().getId(), it -> new ArrayList<>())
+					.add(request.getId());
+		}
+		Map<Long, Date> visitDates = new HashMap<>();
+		for (Map.Entry<Long, Collection<Long>> entry: requestIds.entrySet()) 
+			visitDates.putAll(getVisitDates(entry.getKey(), PULL_REQUEST_VISIT_STORE, user, entry.getValue()));
+		return visitDates;
 	}
 
 	@Listen
@@ -227,4 +292,43 @@ public class DefaultUserInfoManager extends AbstractEnvironmentManager implement
 		}
 	}
 
+	private static class Visit {
+		
+		private final Long projectId;
+		
+		private final String storeName;
+		
+		private final Long userId;
+		
+		private final Long entityId;
+		
+		Visit(Long projectId, String storeName, Long userId, Long entityId) {
+			this.projectId = projectId;
+			this.storeName = storeName;
+			this.userId = userId;
+			this.entityId = entityId;
+		}
+		
+		LongsByteIterable getKey() {
+			return new LongsByteIterable(Lists.newArrayList(userId, entityId));
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Visit)) 
+				return false;
+			if (this == other)
+				return true;
+			Visit otherVisit = (Visit) other;
+			return projectId.equals(otherVisit.projectId) && storeName.equals(otherVisit.storeName) 
+					&& userId.equals(otherVisit.userId) && entityId.equals(otherVisit.entityId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(projectId, storeName, userId, entityId);
+		}
+		
+	}
+	
 }
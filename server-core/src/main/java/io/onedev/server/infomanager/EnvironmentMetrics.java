@@ -0,0 +1,73 @@
+package io.onedev.server.infomanager;
+
+import java.io.Serializable;
+import java.util.Date;
+
+public class EnvironmentMetrics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String envKey;
+	
+	private final boolean open;
+	
+	private final long diskSize;
+	
+	private final long hits;
+	
+	private final long opens;
+	
+	private final Date lastAccessDate;
+
+	public EnvironmentMetrics(String envKey, boolean open, long diskSize, long hits, long opens, 
+			Date lastAccessDate) {
+		this.envKey = envKey;
+		this.open = open;
+		this.diskSize = diskSize;
+		this.hits = hits;
+		this.opens = opens;
+		this.lastAccessDate = lastAccessDate;
+	}
+
+	public String getEnvKey() {
+		return envKey;
+	}
+
+	/**
+	 * @return
+	 * 			whether or not the environment is currently open
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * @return
+	 * 			size of environment files in bytes
+	 */
+	public long getDiskSize() {
+		return diskSize;
+	}
+
+	/**
+	 * @return
+	 * 			number of accesses served by an already open environment
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return
+	 * 			number of times the environment is opened, either for the first time or after 
+	 * 			being closed as idle
+	 */
+	public long getOpens() {
+		return opens;
+	}
+
+	public Date getLastAccessDate() {
+		return lastAccessDate;
+	}
+	
+}
@@ -1,6 +1,8 @@
 package io.onedev.server.infomanager;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -31,4 +33,21 @@ public interface UserInfoManager {
 	@Nullable
 	Date getCodeCommentVisitDate(User user, CodeComment comment);
 	
+	/**
+	 * Get visit dates of specified issues in one go
+	 * 
+	 * @return
+	 * 			map of issue id to visit date. Issues never visited by specified user are not included
+	 */
+	Map<Long, Date> getIssueVisitDates(User user, Collection<Issue> issues);
+	
+	/**
+	 * Get visit dates of specified pull requests in one go
+	 * 
+	 * @return
+	 * 			map of pull request id to visit date. Pull requests never visited by specified user 
+	 * 			are not included
+	 */
+	Map<Long, Date> getPullRequestVisitDates(User user, Collection<PullRequest> requests);
+	
 }
@@ -1,6 +1,9 @@
 package io.onedev.server.maintenance;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -12,9 +15,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.onedev.commons.launcher.bootstrap.Bootstrap;
-import io.onedev.commons.utils.ExceptionUtils;
-import io.onedev.commons.utils.FileUtils;
-import io.onedev.commons.utils.ZipUtils;
 import io.onedev.server.persistence.DefaultPersistManager;
 import io.onedev.server.persistence.HibernateProperties;
 import io.onedev.server.persistence.IdManager;
@@ -64,14 +64,10 @@ public class BackupDatabase extends DefaultPersistManager {
 		Metadata metadata = buildMetadata();
 		sessionFactory = metadata.getSessionFactoryBuilder().applyInterceptor(interceptor).build();
 
-		File tempDir = FileUtils.createTempDir("backup");
-		try {
-			exportData(tempDir);
-			ZipUtils.zip(tempDir, backupFile);
-		} catch (Exception e) {
-			throw ExceptionUtils.unchecked(e);
-		} finally {
-			FileUtils.deleteDir(tempDir);
+		try (OutputStream os = new FileOutputStream(backupFile)) {
+			exportData(os);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 
 		sessionFactory.close();
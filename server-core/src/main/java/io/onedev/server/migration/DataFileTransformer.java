@@ -0,0 +1,146 @@
+package io.onedev.server.migration;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.dom4j.Element;
+
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.commons.utils.FileUtils;
+
+/**
+ * Queue element transforms of data files in a data directory, and apply all queued transforms
+ * of a data file in a single streaming read/write pass when flushed. Different data files are
+ * transformed concurrently, so transforms should not modify state shared between data files.
+ */
+public class DataFileTransformer {
+
+	private static final int TRANSFORM_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private final File dataDir;
+
+	private final List<Transform> transforms = new ArrayList<>();
+
+	public DataFileTransformer(File dataDir) {
+		this.dataDir = dataDir;
+	}
+
+	/**
+	 * Queue a transform for each element of data files whose name starts with specified prefix
+	 */
+	public void transform(String fileNamePrefix, Consumer<Element> transform) {
+		transforms.add(new Transform(fileNamePrefix, transform));
+	}
+
+	/**
+	 * Read elements of data files whose name starts with specified prefix. Queued transforms of
+	 * these files are applied first
+	 */
+	public void readElements(String fileNamePrefix, Consumer<Element> consumer) {
+		List<File> files = getFiles(fileNamePrefix);
+		for (File file: files) {
+			if (transforms.stream().anyMatch(it -> file.getName().startsWith(it.fileNamePrefix))) {
+				flush();
+				break;
+			}
+		}
+		for (File file: files)
+			XmlDataFile.readElements(file, consumer);
+	}
+
+	public void flush() {
+		if (transforms.isEmpty())
+			return;
+
+		Map<File, List<Consumer<Element>>> transformsByFile = new LinkedHashMap<>();
+		for (File file: getFiles("")) {
+			for (Transform transform: transforms) {
+				if (file.getName().startsWith(transform.fileNamePrefix))
+					transformsByFile.computeIfAbsent(file, it -> new ArrayList<>()).add(transform.transform);
+			}
+		}
+		transforms.clear();
+
+		ExecutorService executor = Executors.newFixedThreadPool(TRANSFORM_THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Map.Entry<File, List<Consumer<Element>>> entry: transformsByFile.entrySet()) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						transform(entry.getKey(), entry.getValue());
+						return null;
+					}
+
+				}));
+			}
+			for (Future<?> future: futures)
+				future.get();
+		} catch (Exception e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void transform(File file, List<Consumer<Element>> transforms) throws IOException {
+		// Prefix with dot so that it will not be taken as a data file
+		File tempFile = new File(dataDir, "." + file.getName() + ".tmp");
+		try {
+			try (XmlDataFile.Writer writer = XmlDataFile.newWriter(
+					new BufferedOutputStream(new FileOutputStream(tempFile)), false)) {
+				XmlDataFile.readElements(file, new Consumer<Element>() {
+
+					@Override
+					public void accept(Element element) {
+						for (Consumer<Element> transform: transforms)
+							transform.accept(element);
+						writer.write(element);
+					}
+
+				});
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tempFile.exists())
+				FileUtils.deleteFile(tempFile);
+		}
+	}
+
+	private List<File> getFiles(String fileNamePrefix) {
+		List<File> files = new ArrayList<>();
+		for (File file: dataDir.listFiles()) {
+			if (file.isFile() && !file.getName().startsWith(".") && file.getName().startsWith(fileNamePrefix))
+				files.add(file);
+		}
+		return files;
+	}
+
+	private static class Transform {
+
+		final String fileNamePrefix;
+
+		final Consumer<Element> transform;
+
+		Transform(String fileNamePrefix, Consumer<Element> transform) {
+			this.fileNamePrefix = fileNamePrefix;
+			this.transform = transform;
+		}
+
+	}
+
+}
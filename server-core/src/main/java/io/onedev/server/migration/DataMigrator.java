@@ -30,7 +30,21 @@ import io.onedev.commons.utils.StringUtils;
 
 @Singleton
 @SuppressWarnings("unused")
-public class DataMigrator {
+public class DataMigrator implements PipelinedMigrator {
+	
+	private DataFileTransformer transformer;
+	
+	private DataFileTransformer getTransformer(File dataDir) {
+		if (transformer == null)
+			transformer = new DataFileTransformer(dataDir);
+		return transformer;
+	}
+	
+	@Override
+	public void flush() {
+		if (transformer != null)
+			transformer.flush();
+	}
 	
 	private void migrate1(File dataDir, Stack<Integer> versions) {
 		for (File file: dataDir.listFiles()) {
@@ -2158,20 +2172,15 @@ public class DataMigrator {
 	}
 	
 	// Migrate to 3.2.2
+	@Pipelined
 	private void migrate43(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Settings.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					if (element.elementTextTrim("key").equals("ISSUE")) {
-						Element valueElement = element.element("value");
-						if (valueElement != null)
-							valueElement.addElement("issueTemplates");
-					}
-				}
-				dom.writeToFile(file, false);
+		getTransformer(dataDir).transform("Settings.xml", element -> {
+			if (element.elementTextTrim("key").equals("ISSUE")) {
+				Element valueElement = element.element("value");
+				if (valueElement != null)
+					valueElement.addElement("issueTemplates");
 			}
-		}
+		});
 	}
 	
 	private void migrate44_abbreviate(Element element, int maxLen) {
@@ -2182,154 +2191,108 @@ public class DataMigrator {
 	}
 	
 	// Migrate to 4.0.5
+	@Pipelined
 	private void migrate44(File dataDir, Stack<Integer> versions) {
+		DataFileTransformer transformer = getTransformer(dataDir);
 		Map<String, String> verifications = new HashMap<>();
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("PullRequestVerifications.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					verifications.put(element.elementTextTrim("build"), element.elementTextTrim("request"));
-				}
-			}
-		}
+		transformer.readElements("PullRequestVerifications.xml", element -> {
+			verifications.put(element.elementTextTrim("build"), element.elementTextTrim("request"));
+		});
 		
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Builds.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					element.addElement("triggerId").setText(UUID.randomUUID().toString());
-					String requestId = verifications.get(element.elementTextTrim("id"));
-					if (requestId != null)
-						element.addElement("request").setText(requestId);
-					Element updatedRefElement = element.element("updatedRef");
-					if (updatedRefElement != null)
-						updatedRefElement.setName("refName");
-					migrate44_abbreviate(element.element("errorMessage"), 12000);
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("Issues.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					migrate44_abbreviate(element.element("description"), 14000);
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("CodeComments.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					migrate44_abbreviate(element.element("content"), 14000);
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("CodeCommentReplys.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					migrate44_abbreviate(element.element("content"), 14000);
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("IssueComments.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					migrate44_abbreviate(element.element("content"), 15000);
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("Projects.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					migrate44_abbreviate(element.element("description"), 15000);
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("PullRequests.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					migrate44_abbreviate(element.element("description"), 12000);
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("PullRequestComments.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					migrate44_abbreviate(element.element("content"), 14000);
-				}
-				dom.writeToFile(file, false);
-			}
-		}
+		transformer.transform("Builds.xml", element -> {
+			element.addElement("triggerId").setText(UUID.randomUUID().toString());
+			String requestId = verifications.get(element.elementTextTrim("id"));
+			if (requestId != null)
+				element.addElement("request").setText(requestId);
+			Element updatedRefElement = element.element("updatedRef");
+			if (updatedRefElement != null)
+				updatedRefElement.setName("refName");
+			migrate44_abbreviate(element.element("errorMessage"), 12000);
+		});
+		transformer.transform("Issues.xml", element -> {
+			migrate44_abbreviate(element.element("description"), 14000);
+		});
+		transformer.transform("CodeComments.xml", element -> {
+			migrate44_abbreviate(element.element("content"), 14000);
+		});
+		transformer.transform("CodeCommentReplys.xml", element -> {
+			migrate44_abbreviate(element.element("content"), 14000);
+		});
+		transformer.transform("IssueComments.xml", element -> {
+			migrate44_abbreviate(element.element("content"), 15000);
+		});
+		transformer.transform("Projects.xml", element -> {
+			migrate44_abbreviate(element.element("description"), 15000);
+		});
+		transformer.transform("PullRequests.xml", element -> {
+			migrate44_abbreviate(element.element("description"), 12000);
+		});
+		transformer.transform("PullRequestComments.xml", element -> {
+			migrate44_abbreviate(element.element("content"), 14000);
+		});
 	}
 	
 	// Migrate to 4.0.6
+	@Pipelined
 	private void migrate45(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Builds.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) 
-					element.element("triggerId").detach();
-				dom.writeToFile(file, false);
-			}
-		}
+		getTransformer(dataDir).transform("Builds.xml", element -> {
+			element.element("triggerId").detach();
+		});
 	}
 
 	// migrate to 4.0.7
+	@Pipelined
 	private void migrate46(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Settings.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					if (element.elementTextTrim("key").equals("JOB_EXECUTORS")) {
-						Element valueElement = element.element("value");
-						for (Element executorElement: valueElement.elements()) {
-							if (executorElement.getName().contains("KubernetesExecutor")) {
-								Element serviceAccountElement = executorElement.element("serviceAccount");
-								if (serviceAccountElement != null)
-									serviceAccountElement.detach();
-							}
-						}
+		getTransformer(dataDir).transform("Settings.xml", element -> {
+			if (element.elementTextTrim("key").equals("JOB_EXECUTORS")) {
+				Element valueElement = element.element("value");
+				for (Element executorElement: valueElement.elements()) {
+					if (executorElement.getName().contains("KubernetesExecutor")) {
+						Element serviceAccountElement = executorElement.element("serviceAccount");
+						if (serviceAccountElement != null)
+							serviceAccountElement.detach();
 					}
 				}
-				dom.writeToFile(file, false);
 			}
-		}
+		});
 	}
 	
 	// migrate to 4.0.8
+	@Pipelined
 	private void migrate47(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Builds.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					Element refNameElement = element.element("refName");
-					if (refNameElement == null)
-						element.addElement("refName").setText("unknown");
-				}
-				dom.writeToFile(file, false);
-			}
+		getTransformer(dataDir).transform("Builds.xml", element -> {
+			Element refNameElement = element.element("refName");
+			if (refNameElement == null)
+				element.addElement("refName").setText("unknown");
+		});
+	}
+	
+	private void migrate48_replace(Element element) {
+		if (element.elements().isEmpty()) {
+			String text = element.getText();
+			String replaced = StringUtils.replace(text, "\" is before \"", "\" is until \"");
+			replaced = StringUtils.replace(replaced, "\" is after \"", "\" is since \"");
+			if (!replaced.equals(text))
+				element.setText(replaced);
+		} else {
+			for (Element child: element.elements())
+				migrate48_replace(child);
 		}
 	}
 	
 	// migrate to 4.1.0
+	@Pipelined
 	private void migrate48(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			try {
-				String content = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
-				content = StringUtils.replace(content, 
-						"\" is before \"", "\" is until \"");
-				content = StringUtils.replace(content, 
-						"\" is after \"", "\" is since \"");
-				FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}	
+		getTransformer(dataDir).transform("", element -> migrate48_replace(element));
 	}
 	
 	// migrate to 4.2.0
+	@Pipelined
 	private void migrate49(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Projects.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					Element buildSettingElement = element.element("buildSetting");
-					buildSettingElement.addElement("defaultFixedIssueFilters");
-				}
-				dom.writeToFile(file, false);
-			}
-		}
+		getTransformer(dataDir).transform("Projects.xml", element -> {
+			Element buildSettingElement = element.element("buildSetting");
+			buildSettingElement.addElement("defaultFixedIssueFilters");
+		});
 	}
 	
 }
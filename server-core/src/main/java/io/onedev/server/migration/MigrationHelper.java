@@ -145,6 +145,8 @@ public class MigrationHelper {
 						String.valueOf(previousVersion), 
 						String.valueOf(currentVersion)};
 				logger.debug("Migrating data (migrator: {}, from version: {}, " + "to version: {})", params);
+				if (migrator instanceof PipelinedMigrator && migrateMethod.getAnnotation(Pipelined.class) == null)
+					((PipelinedMigrator) migrator).flush();
 				try {
 					migrateMethod.invoke(migrator, customData, versionParts);
 				} catch (Exception e) {
@@ -154,6 +156,8 @@ public class MigrationHelper {
 			}
 			current = current.getSuperclass();
 		}
+		if (migrator instanceof PipelinedMigrator)
+			((PipelinedMigrator) migrator).flush();
 		return migrated;
 	}	
 }
@@ -0,0 +1,17 @@
+package io.onedev.server.migration;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a migrate method of a {@link PipelinedMigrator} which only queues element transforms
+ * instead of rewriting data files itself. Consecutive pipelined migrate methods are applied
+ * to each data file in a single read/write pass.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Pipelined {
+
+}
@@ -0,0 +1,12 @@
+package io.onedev.server.migration;
+
+public interface PipelinedMigrator {
+
+	/**
+	 * Apply transforms queued by previous {@link Pipelined} migrate methods. This is called by
+	 * {@link MigrationHelper} before invoking a migrate method not marked as pipelined, and after
+	 * all migrate methods are invoked
+	 */
+	void flush();
+
+}
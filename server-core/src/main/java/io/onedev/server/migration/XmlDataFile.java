@@ -0,0 +1,135 @@
+package io.onedev.server.migration;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.IOUtils;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.ElementHandler;
+import org.dom4j.ElementPath;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.dom4j.io.XMLWriter;
+import org.xml.sax.SAXException;
+
+import io.onedev.commons.utils.ExceptionUtils;
+
+/**
+ * Stream elements of exported data files, which are in form of <tt>&lt;list&gt;</tt> element
+ * containing one child element per entity. Elements are read and written one by one so that
+ * memory usage does not depend on file size.
+ */
+public class XmlDataFile {
+
+	private static final String XML_10_DECLARATION = "<?xml version=\"1.0\"";
+
+	private static final String XML_11_DECLARATION = "<?xml version=\"1.1\"";
+
+	private static final String LIST_ELEMENT = "list";
+
+	/**
+	 * Read child elements of specified data file one by one. Passed elements are detached from
+	 * the document and can be modified freely. Data files may contain characters only valid in
+	 * XML 1.1, so they are parsed as XML 1.1 as {@link VersionedXmlDoc#fromXML(String)} does
+	 */
+	public static void readElements(File file, Consumer<Element> consumer) {
+		SAXReader reader = new SAXReader();
+		reader.setDefaultHandler(new ElementHandler() {
+
+			@Override
+			public void onStart(ElementPath elementPath) {
+			}
+
+			@Override
+			public void onEnd(ElementPath elementPath) {
+				if (elementPath.size() == 2) {
+					Element element = elementPath.getCurrent();
+					element.detach();
+					consumer.accept(element);
+				}
+			}
+
+		});
+
+		try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+			byte[] declaration = XML_10_DECLARATION.getBytes(StandardCharsets.UTF_8);
+			byte[] buffer = new byte[declaration.length];
+			is.mark(buffer.length);
+			if (IOUtils.read(is, buffer) == buffer.length && Arrays.equals(buffer, declaration)) {
+				byte[] replacement = XML_11_DECLARATION.getBytes(StandardCharsets.UTF_8);
+				reader.read(new SequenceInputStream(new ByteArrayInputStream(replacement), is));
+			} else {
+				is.reset();
+				reader.read(is);
+			}
+		} catch (IOException | DocumentException e) {
+			throw ExceptionUtils.unchecked(e);
+		}
+	}
+
+	public static Writer newWriter(OutputStream os, boolean pretty) {
+		return new Writer(os, pretty);
+	}
+
+	public static class Writer implements Closeable {
+
+		private final OutputStream os;
+
+		private final XMLWriter xmlWriter;
+
+		private final Element listElement = DocumentHelper.createElement(LIST_ELEMENT);
+
+		Writer(OutputStream os, boolean pretty) {
+			this.os = os;
+			OutputFormat format = new OutputFormat();
+			format.setIndent(pretty);
+			format.setNewlines(pretty);
+			format.setEncoding(StandardCharsets.UTF_8.name());
+			try {
+				xmlWriter = new XMLWriter(os, format);
+				xmlWriter.startDocument();
+				xmlWriter.writeOpen(listElement);
+			} catch (IOException | SAXException e) {
+				throw ExceptionUtils.unchecked(e);
+			}
+		}
+
+		public void write(Element element) {
+			try {
+				xmlWriter.write(element);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Finish the list element and close underlying output stream
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				xmlWriter.writeClose(listElement);
+				xmlWriter.endDocument();
+				xmlWriter.flush();
+			} catch (SAXException e) {
+				throw new IOException(e);
+			} finally {
+				os.close();
+			}
+		}
+
+	}
+
+}
@@ -20,6 +20,7 @@ import java.util.Set;
 import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -87,6 +88,7 @@ import io.onedev.server.git.Blob;
 import io.onedev.server.git.BlobIdent;
 import io.onedev.server.git.BlobIdentFilter;
 import io.onedev.server.git.GitUtils;
+import io.onedev.server.git.RefCache;
 import io.onedev.server.git.RefInfo;
 import io.onedev.server.git.Submodule;
 import io.onedev.server.git.command.BlameCommand;
@@ -316,8 +318,6 @@ public class Project extends AbstractEntity {
     
     private transient Optional<CommitQuerySetting> commitQuerySettingOfCurrentUserHolder;
     
-    private transient Optional<RevCommit> lastCommitHolder;
-    
 	private transient List<Milestone> sortedMilestones;
 	
 	@Editable(order=100)
@@ -442,7 +442,7 @@ public class Project extends AbstractEntity {
 	
 	public List<RefInfo> getRefInfos(String prefix) {
 		try (RevWalk revWalk = new RevWalk(getRepository())) {
-			List<Ref> refs = new ArrayList<Ref>(getRepository().getRefDatabase().getRefsByPrefix(prefix));
+			List<Ref> refs = getRefs(prefix);
 			List<RefInfo> refInfos = refs.stream()
 					.map(ref->new RefInfo(revWalk, ref))
 					.filter(refInfo->refInfo.getPeeledObj() instanceof RevCommit)
@@ -450,8 +450,6 @@ public class Project extends AbstractEntity {
 			Collections.sort(refInfos);
 			Collections.reverse(refInfos);
 			return refInfos;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
 		}
     }
 
@@ -647,7 +645,11 @@ public class Project extends AbstractEntity {
 		
 		Optional<ObjectId> optional = objectIdCache.get(revision);
 		if (optional == null) {
-			optional = Optional.fromNullable(GitUtils.resolve(getRepository(), revision));
+			Ref ref = getRefCache().findRef(this, revision);
+			if (ref != null)
+				optional = Optional.of(ref.getObjectId());
+			else
+				optional = Optional.fromNullable(GitUtils.resolve(getRepository(), revision));
 			objectIdCache.put(revision, optional);
 		}
 		if (mustExist && !optional.isPresent())
@@ -710,21 +712,48 @@ public class Project extends AbstractEntity {
 			buildSpecCache = new HashMap<>();
 		Optional<BuildSpec> buildSpec = buildSpecCache.get(commitId);
 		if (buildSpec == null) {
-			Blob blob = getBlob(new BlobIdent(commitId.name(), BuildSpec.BLOB_PATH, FileMode.TYPE_FILE), false);
-			if (blob != null) {  
-				buildSpec = Optional.fromNullable(BuildSpec.parse(blob.getBytes()));
-			} else { 
-				Blob oldBlob = getBlob(new BlobIdent(commitId.name(), ".onedev-buildspec", FileMode.TYPE_FILE), false);
-				if (oldBlob != null)
-					buildSpec = Optional.fromNullable(BuildSpec.parse(oldBlob.getBytes()));
-				else
-					buildSpec = Optional.absent();
+			// only resolve blob id here, blob content is read only if not parsed before
+			ObjectId blobId = getFileId(commitId, BuildSpec.BLOB_PATH);
+			if (blobId == null)
+				blobId = getFileId(commitId, ".onedev-buildspec");
+			if (blobId != null) {
+				ObjectId buildSpecBlobId = blobId;
+				buildSpec = Optional.fromNullable(BuildSpec.parse(buildSpecBlobId, new Supplier<byte[]>() {
+
+					@Override
+					public byte[] get() {
+						try {
+							return getRepository().open(buildSpecBlobId, Constants.OBJ_BLOB).getCachedBytes();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+					
+				}));
+			} else {
+				buildSpec = Optional.absent();
 			}
 			buildSpecCache.put(commitId, buildSpec);
 		}
 		return buildSpec.orNull();
 	}
 	
+	@Nullable
+	private ObjectId getFileId(ObjectId commitId, String path) {
+		try (RevWalk revWalk = new RevWalk(getRepository())) {
+			RevCommit commit = GitUtils.parseCommit(revWalk, commitId);
+			if (commit != null) {
+				try (TreeWalk treeWalk = TreeWalk.forPath(getRepository(), path, commit.getTree())) {
+					if (treeWalk != null && (treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE)
+						return treeWalk.getObjectId(0);
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public List<String> getJobNames() {
 		List<String> jobNames = new ArrayList<>();
 		if (getDefaultBranch() != null) {
@@ -735,27 +764,13 @@ public class Project extends AbstractEntity {
 		return jobNames;
 	}
 	
+	private RefCache getRefCache() {
+		return OneDev.getInstance(RefCache.class);
+	}
+	
+	@Nullable
 	public RevCommit getLastCommit() {
-		if (lastCommitHolder == null) {
-			RevCommit lastCommit = null;
-			try {
-				for (Ref ref: getRepository().getRefDatabase().getRefsByPrefix(Constants.R_HEADS)) {
-					RevCommit commit = getRevCommit(ref.getObjectId(), false);
-					if (commit != null) {
-						if (lastCommit != null) {
-							if (commit.getCommitTime() > lastCommit.getCommitTime())
-								lastCommit = commit;
-						} else {
-							lastCommit = commit;
-						}
-					}
-				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-			lastCommitHolder = Optional.fromNullable(lastCommit);
-		}
-		return lastCommitHolder.orNull();
+		return getRefCache().getLastCommit(this);
 	}
 	
 	public LastCommitsOfChildren getLastCommitsOfChildren(String revision, @Nullable String path) {
@@ -840,11 +855,15 @@ public class Project extends AbstractEntity {
 			refCache = new HashMap<>();
 		Optional<Ref> optional = refCache.get(revision);
 		if (optional == null) {
-			try {
-				optional = Optional.fromNullable(getRepository().findRef(revision));
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+			Ref ref = getRefCache().findRef(this, revision);
+			if (ref == null) {
+				try {
+					ref = getRepository().findRef(revision);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
 			}
+			optional = Optional.fromNullable(ref);
 			refCache.put(revision, optional);
 		}
 		return optional.orNull();
@@ -905,11 +924,15 @@ public class Project extends AbstractEntity {
 	}
 	
 	public List<Ref> getRefs(String prefix) {
-		try {
-			return getRepository().getRefDatabase().getRefsByPrefix(prefix);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} 
+		if (prefix.startsWith(Constants.R_HEADS) || prefix.startsWith(Constants.R_TAGS)) {
+			return getRefCache().getRefs(this, prefix);
+		} else {
+			try {
+				return getRepository().getRefDatabase().getRefsByPrefix(prefix);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} 
+		}
 	}
 	
 	public Map<String, String> getSubmodules(String revision) {
@@ -946,6 +969,7 @@ public class Project extends AbstractEntity {
 			RevCommit commit = getRevCommit(branchRevision, true);
 			command.setStartPoint(getRevCommit(branchRevision, true));
 			command.call();
+			getRefCache().invalidate(getId());
 			String refName = GitUtils.branch2ref(branchName); 
 			cacheObjectId(refName, commit);
 			
@@ -981,6 +1005,7 @@ public class Project extends AbstractEntity {
 			tag.setTagger(taggerIdent);
 			tag.setObjectId(getRevCommit(tagRevision, true));
 			tag.call();
+			getRefCache().invalidate(getId());
 			
 			String refName = GitUtils.tag2ref(tagName);
 			cacheObjectId(refName, tag.getObjectId());
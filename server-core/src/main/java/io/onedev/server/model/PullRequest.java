@@ -54,6 +54,7 @@ import com.google.common.collect.Lists;
 import io.onedev.server.OneDev;
 import io.onedev.server.entitymanager.UserManager;
 import io.onedev.server.git.GitUtils;
+import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.infomanager.PullRequestInfoManager;
 import io.onedev.server.infomanager.UserInfoManager;
 import io.onedev.server.model.support.BranchProtection;
@@ -810,7 +811,7 @@ public class PullRequest extends AbstractEntity implements Referenceable, Attach
 	
 	public boolean isMergedIntoTarget() {
 		if (mergedIntoTarget == null) { 
-			mergedIntoTarget = GitUtils.isMergedInto(getTargetProject().getRepository(), null, 
+			mergedIntoTarget = OneDev.getInstance(CommitInfoManager.class).isMergedInto(getTargetProject(), 
 					ObjectId.fromString(getLatestUpdate().getHeadCommitHash()), getTarget().getObjectId());
 		}
 		return mergedIntoTarget;
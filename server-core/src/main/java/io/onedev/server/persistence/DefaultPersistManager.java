@@ -1,8 +1,10 @@
 package io.onedev.server.persistence;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.sql.Connection;
@@ -15,16 +17,25 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.ManyToOne;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Root;
 import javax.persistence.metamodel.EntityType;
 
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
+import org.hibernate.CacheMode;
 import org.hibernate.Interceptor;
 import org.hibernate.ReplicationMode;
 import org.hibernate.Session;
@@ -55,6 +66,7 @@ import io.onedev.commons.utils.FileUtils;
 import io.onedev.server.migration.DataMigrator;
 import io.onedev.server.migration.MigrationHelper;
 import io.onedev.server.migration.VersionedXmlDoc;
+import io.onedev.server.migration.XmlDataFile;
 import io.onedev.server.model.AbstractEntity;
 import io.onedev.server.model.ModelVersion;
 import io.onedev.server.persistence.annotation.Sessional;
@@ -67,6 +79,13 @@ public class DefaultPersistManager implements PersistManager {
 
 	private static final int BACKUP_BATCH_SIZE = 1000;
 	
+	private static final int IMPORT_BATCH_SIZE = 100;
+	
+	private static final int EXPORT_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+	
+	// Maximum number of exported data files waiting to be written 
+	private static final int EXPORT_QUEUE_SIZE = EXPORT_THREADS * 2;
+	
 	private static final Logger logger = LoggerFactory.getLogger(DefaultPersistManager.class);
 	
 	protected final PhysicalNamingStrategy physicalNamingStrategy;
@@ -387,90 +406,183 @@ public class DefaultPersistManager implements PersistManager {
 		exportData(exportDir, BACKUP_BATCH_SIZE);
 	}
 	
-	@Sessional
 	@Override
 	public void exportData(File exportDir, int batchSize) {
-		Session session = sessionFactory.openSession();
-		for (Class<?> entityType: getEntityTypes(sessionFactory)) {
-			logger.info("Exporting table '" + entityType.getSimpleName() + "'...");
-			
-			logger.info("Querying table ids...");
+		exportData(batchSize, new DataFileWriter() {
+
+			@Override
+			public void write(String fileName, byte[] content) throws IOException {
+				logger.info("Writing file '{}'...", fileName);
+				FileUtils.writeByteArrayToFile(new File(exportDir, fileName), content);
+			}
 			
-			CriteriaBuilder builder = sessionFactory.getCriteriaBuilder();
-			CriteriaQuery<Number> query = builder.createQuery(Number.class);
-			Root<?> root = query.from(entityType);
-			query.select(root.get("id")).orderBy(builder.asc(root.get("id")));
+		});
+	}
+	
+	@Override
+	public void exportData(OutputStream os) {
+		ZipOutputStream zos = new ZipOutputStream(os);
+		exportData(BACKUP_BATCH_SIZE, new DataFileWriter() {
+
+			@Override
+			public void write(String fileName, byte[] content) throws IOException {
+				logger.info("Writing file '{}'...", fileName);
+				zos.putNextEntry(new ZipEntry(fileName));
+				zos.write(content);
+				zos.closeEntry();
+			}
 			
-			List<Number> ids = session.createQuery(query).list();
+		});
+		try {
+			zos.finish();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * Tables are exported concurrently with each exporting thread using its own session. Rows are 
+	 * paged by id so that memory usage does not depend on table size. Exported files are handed over 
+	 * to calling thread via a bounded queue to be written one by one, as output might be a zip stream
+	 */
+	private void exportData(int batchSize, DataFileWriter writer) {
+		BlockingQueue<DataFile> dataFiles = new ArrayBlockingQueue<>(EXPORT_QUEUE_SIZE);
+		ExecutorService executor = Executors.newFixedThreadPool(EXPORT_THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Class<?> entityType: getEntityTypes(sessionFactory)) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						exportEntities(entityType, batchSize, dataFiles);
+						return null;
+					}
+					
+				}));
+			}
 			
-			int count = ids.size();
+			while (true) {
+				DataFile dataFile = dataFiles.poll(1, TimeUnit.SECONDS);
+				if (dataFile != null) {
+					writer.write(dataFile.name, dataFile.content);
+				} else {
+					boolean allDone = true;
+					for (Future<?> future: futures) {
+						if (future.isDone())
+							future.get();
+						else
+							allDone = false;
+					}
+					if (allDone && dataFiles.isEmpty())
+						break;
+				}
+			}
+		} catch (Exception e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private void exportEntities(Class<?> entityType, int batchSize, BlockingQueue<DataFile> dataFiles) 
+			throws InterruptedException {
+		logger.info("Exporting table '" + entityType.getSimpleName() + "'...");
+		try (Session session = sessionFactory.openSession()) {
+			session.setDefaultReadOnly(true);
+			session.setCacheMode(CacheMode.IGNORE);
 			
-			for (int i=0; i<count/batchSize; i++) {
-				exportEntity(session, entityType, ids, i*batchSize, batchSize, batchSize, exportDir);
+			Long lastId = Long.MIN_VALUE;
+			int batch = 1;
+			while (true) {
+				Query<?> query = session.createQuery("from " + entityType.getSimpleName() + " where id>:lastId order by id");
+				query.setParameter("lastId", lastId);
+				query.setMaxResults(batchSize);
+				List<?> entities = query.list();
+				if (entities.isEmpty())
+					break;
+				
+				String fileName;
+				if (batch == 1)
+					fileName = entityType.getSimpleName() + "s.xml";
+				else
+					fileName = entityType.getSimpleName() + "s.xml." + batch;
+				dataFiles.put(new DataFile(fileName, toXml(entities)));
+				
+				lastId = ((AbstractEntity) entities.get(entities.size()-1)).getId();
+				batch++;
+				
 				// clear session to free memory
 				session.clear();
 			}
-			
-			if (count%batchSize != 0) {
-				exportEntity(session, entityType, ids, count/batchSize*batchSize, count%batchSize, batchSize, exportDir);
-			}
-			logger.info("");
 		}
 	}
+	
+	private byte[] toXml(List<?> entities) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (XmlDataFile.Writer writer = XmlDataFile.newWriter(baos, true)) {
+			for (Object entity: entities)
+				writer.write(VersionedXmlDoc.fromBean(entity).getRootElement());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+	
+	private File[] getDataFiles(File dataDir, Class<?> entityType) {
+		return dataDir.listFiles(new FilenameFilter() {
 
-	private void exportEntity(Session session, Class<?> entityType, List<Number> ids, int start, int count, int batchSize, File exportDir) {
-		logger.info("Loading table rows ({}->{}) from database...", String.valueOf(start+1), (start + count));
-		
-		Query<?> query = session.createQuery("from " + entityType.getSimpleName() + " where id>=:fromId and id<=:toId");
-		query.setParameter("fromId", ids.get(start));
-		query.setParameter("toId", ids.get(start+count-1));
-		
-		logger.info("Converting table rows to XML...");
-		VersionedXmlDoc dom = new VersionedXmlDoc();
-		Element rootElement = dom.addElement("list");
-		for (Object entity: query.list())
-			rootElement.appendContent(VersionedXmlDoc.fromBean(entity));
-		String fileName;
-
-		if (start == 0)
-			fileName = entityType.getSimpleName() + "s.xml";
-		else
-			fileName = entityType.getSimpleName() + "s.xml." + (start/batchSize + 1);
-		
-		logger.info("Writing resulting XML to file '" + fileName + "...");
-		dom.writeToFile(new File(exportDir, fileName), true);
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(entityType.getSimpleName() + "s.xml");
+			}
+			
+		});
 	}
+	
+	private void readEntities(File dataFile, Consumer<AbstractEntity> consumer) {
+		XmlDataFile.readElements(dataFile, new Consumer<Element>() {
 
+			@Override
+			public void accept(Element element) {
+				consumer.accept((AbstractEntity) new VersionedXmlDoc(DocumentHelper.createDocument(element)).toBean());
+			}
+			
+		});
+	}
+	
 	/*
 	 * We do not use @Transactional annotation and will manage the session and transaction manually 
-	 * in this method to reduce memory usage if importing a large database.
+	 * in this method to reduce memory usage if importing a large database. Entities are inserted 
+	 * with JDBC batching, and foreign key constraints are applied after import. 
 	 */
 	@Sessional
 	@Override
 	public void importData(Metadata metadata, File dataDir) {
 		Session session = dao.getSession();
+		session.setJdbcBatchSize(IMPORT_BATCH_SIZE);
+		session.setCacheMode(CacheMode.IGNORE);
 		List<Class<?>> entityTypes = getEntityTypes(sessionFactory);
 		Collections.reverse(entityTypes);
 		for (Class<?> entityType: entityTypes) {
-			File[] dataFiles = dataDir.listFiles(new FilenameFilter() {
-
-				@Override
-				public boolean accept(File dir, String name) {
-					return name.startsWith(entityType.getSimpleName() + "s.xml");
-				}
-				
-			});
-			for (File file: dataFiles) {
+			for (File file: getDataFiles(dataDir, entityType)) {
 				Transaction transaction = session.beginTransaction();
 				try {
 					logger.info("Importing from data file '" + file.getName() + "'...");
-					VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-					
-					for (Element element: dom.getRootElement().elements()) {
-						element.detach();
-						AbstractEntity entity = (AbstractEntity) new VersionedXmlDoc(DocumentHelper.createDocument(element)).toBean();
-						session.replicate(entity, ReplicationMode.EXCEPTION);
-					}
+					AtomicInteger count = new AtomicInteger(0);
+					readEntities(file, new Consumer<AbstractEntity>() {
+
+						@Override
+						public void accept(AbstractEntity entity) {
+							// Replicate with EXCEPTION mode inserts directly without querying existing rows
+							session.replicate(entity, ReplicationMode.EXCEPTION);
+							if (count.incrementAndGet() % IMPORT_BATCH_SIZE == 0) {
+								session.flush();
+								session.clear();
+							}
+						}
+						
+					});
 					session.flush();
 					session.clear();
 					transaction.commit();
@@ -486,27 +598,16 @@ public class DefaultPersistManager implements PersistManager {
 		List<Class<?>> entityTypes = getEntityTypes(sessionFactory);
 		Collections.reverse(entityTypes);
 		for (Class<?> entityType: entityTypes) {
-			File[] dataFiles = dataDir.listFiles(new FilenameFilter() {
+			for (File file: getDataFiles(dataDir, entityType)) {
+				logger.info("Validating data file '" + file.getName() + "'...");
+				readEntities(file, new Consumer<AbstractEntity>() {
 
-				@Override
-				public boolean accept(File dir, String name) {
-					return name.startsWith(entityType.getSimpleName() + "s.xml");
-				}
-				
-			});
-			for (File file: dataFiles) {
-				try {
-					logger.info("Validating data file '" + file.getName() + "'...");
-					VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-					
-					for (Element element: dom.getRootElement().elements()) {
-						element.detach();
-						AbstractEntity entity = (AbstractEntity) new VersionedXmlDoc(DocumentHelper.createDocument(element)).toBean();
+					@Override
+					public void accept(AbstractEntity entity) {
 						validator.validate(entity);
 					}
-				} catch (Exception e) {
-					throw ExceptionUtils.unchecked(e);
-				}
+					
+				});
 			}
 		}	
 	}
@@ -615,4 +716,23 @@ public class DefaultPersistManager implements PersistManager {
 		return sessionFactory;
 	}
 	
+	private static interface DataFileWriter {
+		
+		void write(String fileName, byte[] content) throws IOException;
+		
+	}
+	
+	private static class DataFile {
+		
+		final String name;
+		
+		final byte[] content;
+		
+		DataFile(String name, byte[] content) {
+			this.name = name;
+			this.content = content;
+		}
+		
+	}
+	
 }
@@ -1,6 +1,7 @@
 package io.onedev.server.persistence;
 
 import java.io.File;
+import java.io.OutputStream;
 
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.Metadata;
@@ -17,6 +18,15 @@ public interface PersistManager {
 
 	void exportData(File dataDir);
 	
+	/**
+	 * Export data as a zip archive of data files. Data is compressed as it is exported, without 
+	 * being saved to a temporary directory first
+	 * 
+	 * @param os
+	 * 			output stream to write zip archive to. The stream will not be closed
+	 */
+	void exportData(OutputStream os);
+	
 	// This method should only be called by a bootstrap action. That is, when the 
 	// server is stopped. So it does not need an exclusive database lock.
 	void importData(Metadata metadata, File dataDir);
@@ -0,0 +1,269 @@
+package io.onedev.server.search.code;
+
+import static io.onedev.server.search.code.IndexConstants.NGRAM_SIZE;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.onedev.commons.launcher.loader.Listen;
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.server.event.entity.EntityRemoved;
+import io.onedev.server.event.system.SystemStopping;
+import io.onedev.server.model.Project;
+import io.onedev.server.persistence.annotation.Transactional;
+import io.onedev.server.storage.StorageManager;
+
+@Singleton
+public class DefaultIndexAccessor implements IndexAccessor {
+
+	private static final Logger logger = LoggerFactory.getLogger(DefaultIndexAccessor.class);
+
+	private static final int MAX_OPEN_INDEXES = 100;
+
+	private static final long MAX_IDLE_TIME = 30*60*1000L;
+
+	private final StorageManager storageManager;
+
+	// Open indexes in access order. Guarded by this
+	private final Map<Long, ProjectIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+
+	@Inject
+	public DefaultIndexAccessor(StorageManager storageManager) {
+		this.storageManager = storageManager;
+	}
+
+	/**
+	 * Open index of specified project and mark it as in use
+	 *
+	 * @return
+	 * 			opened index, or <tt>null</tt> if index does not exist and <tt>create</tt>
+	 * 			is <tt>false</tt>
+	 */
+	@Nullable
+	private synchronized ProjectIndex open(Long projectId, boolean create) throws IOException {
+		ProjectIndex index = indexes.get(projectId);
+		if (index == null) {
+			Directory directory = FSDirectory.open(storageManager.getProjectIndexDir(projectId).toPath());
+			try {
+				if (!create && !DirectoryReader.indexExists(directory)) {
+					directory.close();
+					return null;
+				}
+				IndexWriterConfig writerConfig = new IndexWriterConfig(new NGramAnalyzer(NGRAM_SIZE, NGRAM_SIZE));
+				writerConfig.setOpenMode(OpenMode.CREATE_OR_APPEND);
+				IndexWriter writer = new IndexWriter(directory, writerConfig);
+				try {
+					index = new ProjectIndex(directory, writer);
+				} catch (Exception e) {
+					writer.close();
+					throw e;
+				}
+			} catch (Exception e) {
+				directory.close();
+				throw e;
+			}
+			indexes.put(projectId, index);
+			closeIdleIndexes();
+		}
+		index.users++;
+		index.accessTime = System.currentTimeMillis();
+		return index;
+	}
+
+	private synchronized void release(Long projectId, ProjectIndex index) {
+		index.users--;
+		index.accessTime = System.currentTimeMillis();
+		if (index.closed && index.users == 0)
+			close(projectId, index);
+		else
+			closeIdleIndexes();
+	}
+
+	private void closeIdleIndexes() {
+		long now = System.currentTimeMillis();
+		int numOfIndexes = indexes.size();
+		for (Iterator<Map.Entry<Long, ProjectIndex>> it = indexes.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, ProjectIndex> entry = it.next();
+			ProjectIndex index = entry.getValue();
+			if (index.users == 0 && (numOfIndexes > MAX_OPEN_INDEXES || now - index.accessTime > MAX_IDLE_TIME)) {
+				it.remove();
+				numOfIndexes--;
+				close(entry.getKey(), index);
+			}
+		}
+	}
+
+	private void close(Long projectId, ProjectIndex index) {
+		index.closed = true;
+		try {
+			index.searcherManager.close();
+			index.writer.close();
+		} catch (Exception e) {
+			logger.error("Error closing index of project (id: " + projectId + ")", e);
+		} finally {
+			try {
+				index.directory.close();
+			} catch (IOException e) {
+				logger.error("Error closing index directory of project (id: " + projectId + ")", e);
+			}
+		}
+	}
+
+	/*
+	 * Remove index from cache. It will be closed immediately if not in use, or closed when
+	 * released otherwise
+	 */
+	private synchronized void discard(Long projectId) {
+		ProjectIndex index = indexes.remove(projectId);
+		if (index != null) {
+			if (index.users == 0)
+				close(projectId, index);
+			else
+				index.closed = true;
+		}
+	}
+
+	@Override
+	public IndexSearcher acquireSearcher(Long projectId) throws InterruptedException {
+		try {
+			ProjectIndex index = open(projectId, false);
+			if (index != null) {
+				try {
+					return index.searcherManager.acquire();
+				} catch (Exception e) {
+					release(projectId, index);
+					throw e;
+				}
+			} else {
+				return null;
+			}
+		} catch (ClosedByInterruptException e) {
+			// convert to normal InterruptedException as search threads will be interrupted
+			// when user types fast to cancel search of previous typing
+			throw new InterruptedException();
+		} catch (IOException e) {
+			throw ExceptionUtils.unchecked(e);
+		}
+	}
+
+	@Override
+	public void releaseSearcher(Long projectId, IndexSearcher searcher) {
+		ProjectIndex index = ((ProjectSearcher) searcher).index;
+		try {
+			index.searcherManager.release(searcher);
+		} catch (IOException e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			release(projectId, index);
+		}
+	}
+
+	@Override
+	public <T> T write(Long projectId, IndexWork<T> work) {
+		ProjectIndex index;
+		try {
+			index = open(projectId, true);
+		} catch (IOException e) {
+			throw ExceptionUtils.unchecked(e);
+		}
+		try {
+			IndexSearcher searcher = index.searcherManager.acquire();
+			try {
+				T result = work.run(index.writer, searcher);
+				index.writer.commit();
+				index.searcherManager.maybeRefresh();
+				return result;
+			} catch (Exception e) {
+				// Rolling back closes the writer, so the index has to be reopened next time
+				discard(projectId);
+				index.writer.rollback();
+				throw ExceptionUtils.unchecked(e);
+			} finally {
+				index.searcherManager.release(searcher);
+			}
+		} catch (IOException e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			release(projectId, index);
+		}
+	}
+
+	@Transactional
+	@Listen
+	public void on(EntityRemoved event) {
+		if (event.getEntity() instanceof Project)
+			discard(event.getEntity().getId());
+	}
+
+	@Listen
+	public synchronized void on(SystemStopping event) {
+		for (Long projectId: new ArrayList<>(indexes.keySet()))
+			discard(projectId);
+	}
+
+	private static class ProjectIndex {
+
+		final Directory directory;
+
+		final IndexWriter writer;
+
+		final SearcherManager searcherManager;
+
+		int users;
+
+		long accessTime;
+
+		boolean closed;
+
+		ProjectIndex(Directory directory, IndexWriter writer) throws IOException {
+			this.directory = directory;
+			this.writer = writer;
+			searcherManager = new SearcherManager(writer, new SearcherFactory() {
+
+				@Override
+				public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+					return new ProjectSearcher(reader, ProjectIndex.this);
+				}
+				
+			});
+		}
+
+	}
+	
+	/*
+	 * Searcher remembering the index it is acquired from, so that it can be released properly 
+	 * even if the index is discarded from cache in the meantime
+	 */
+	private static class ProjectSearcher extends IndexSearcher {
+		
+		final ProjectIndex index;
+		
+		ProjectSearcher(IndexReader reader, ProjectIndex index) {
+			super(reader);
+			this.index = index;
+		}
+		
+	}
+
+}
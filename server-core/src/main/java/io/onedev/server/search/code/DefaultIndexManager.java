@@ -15,41 +15,58 @@ import static io.onedev.server.search.code.FieldConstants.LAST_COMMIT_HASH;
 import static io.onedev.server.search.code.FieldConstants.LAST_COMMIT_INDEX_VERSION;
 import static io.onedev.server.search.code.FieldConstants.META;
 import static io.onedev.server.search.code.IndexConstants.MAX_INDEXABLE_SIZE;
-import static io.onedev.server.search.code.IndexConstants.NGRAM_SIZE;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.lang.SerializationUtils;
 import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexFormatTooOldException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.eclipse.jgit.lib.AnyObjectId;
@@ -57,6 +74,7 @@ import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
@@ -65,6 +83,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import io.onedev.commons.jsymbol.Symbol;
 import io.onedev.commons.jsymbol.SymbolExtractor;
@@ -76,6 +96,7 @@ import io.onedev.commons.utils.FileUtils;
 import io.onedev.commons.utils.StringUtils;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.RefsUpdated;
 import io.onedev.server.event.system.SystemStarted;
 import io.onedev.server.model.Project;
 import io.onedev.server.persistence.SessionManager;
@@ -96,7 +117,13 @@ public class DefaultIndexManager implements IndexManager {
 	
 	private static final int BACKEND_INDEXING_PRIORITY = 50;
 	
-	private static final int DATA_VERSION = 5;
+	private static final int DATA_VERSION = 8;
+	
+	private static final int INDEX_BATCH_SIZE = 1000;
+	
+	private static final int INDEX_QUEUE_SIZE = 1000;
+	
+	private static final int INDEX_WORKERS = Runtime.getRuntime().availableProcessors();
 	
 	private final StorageManager storageManager;
 	
@@ -108,10 +135,17 @@ public class DefaultIndexManager implements IndexManager {
 	
 	private final ListenerRegistry listenerRegistry;
 	
+	private final IndexAccessor indexAccessor;
+	
+	private final ExecutorService executorService;
+	
 	@Inject
 	public DefaultIndexManager(ListenerRegistry listenerRegistry, StorageManager storageManager, 
-			BatchWorkManager batchWorkManager, SessionManager sessionManager, ProjectManager projectManager) {
+			BatchWorkManager batchWorkManager, SessionManager sessionManager, ProjectManager projectManager, 
+			IndexAccessor indexAccessor, ExecutorService executorService) {
 		this.listenerRegistry = listenerRegistry;
+		this.indexAccessor = indexAccessor;
+		this.executorService = executorService;
 		this.storageManager = storageManager;
 		this.batchWorkManager = batchWorkManager;
 		this.sessionManager = sessionManager;
@@ -167,60 +201,68 @@ public class DefaultIndexManager implements IndexManager {
 				}
 			}
 	
-			int indexed = 0;
-			int checked = 0;
-			while (treeWalk.next()) {
-				if ((treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE 
-						&& (treeWalk.getTreeCount() == 1 || !treeWalk.idEqual(0, 1))) {
-					ObjectId blobId = treeWalk.getObjectId(0);
-					String blobPath = treeWalk.getPathString();
-					String blobName = treeWalk.getNameString();
-					
-					BooleanQuery.Builder builder = new BooleanQuery.Builder();
-					builder.add(BLOB_HASH.query(blobId.name()), Occur.MUST);
-					builder.add(BLOB_PATH.query(blobPath), Occur.MUST);
-					BooleanQuery query = builder.build();
-					
-					final AtomicReference<String> blobIndexVersionRef = new AtomicReference<>(null);
-					if (searcher != null) {
-						searcher.search(query, new SimpleCollector() {
-	
-							private LeafReaderContext context;
-	
-							@Override
-							public void collect(int doc) throws IOException {
-								blobIndexVersionRef.set(searcher.doc(context.docBase+doc).get(BLOB_INDEX_VERSION.name()));
-							}
-	
-							@Override
-							protected void doSetNextReader(LeafReaderContext context) throws IOException {
-								this.context = context;
-							}
-	
-							@Override
-							public boolean needsScores() {
-								return false;
+			/*
+			 * Tree walk runs in current thread and feeds changed blobs to a bounded queue in 
+			 * batches, with index versions of each batch looked up all at once. Blobs are then 
+			 * read, analyzed and added to the shared index writer by a pool of workers
+			 */
+			BlockingQueue<BlobToIndex> queue = new ArrayBlockingQueue<>(Math.max(INDEX_QUEUE_SIZE, INDEX_WORKERS));
+			AtomicInteger indexed = new AtomicInteger(0);
+			AtomicReference<Exception> errorRef = new AtomicReference<>(null);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i=0; i<INDEX_WORKERS; i++) {
+				futures.add(executorService.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						try (ObjectReader reader = repository.newObjectReader()) {
+							BlobToIndex blob;
+							while ((blob = Uninterruptibles.takeUninterruptibly(queue)) != BlobToIndex.END) {
+								// keep draining the queue after an error so that the tree walk never blocks
+								if (errorRef.get() == null) {
+									try {
+										if (blob.reindex)
+											writer.deleteDocuments(getBlobQuery(blob.id, blob.path));
+										indexBlob(writer, reader, blob.extractor, blob.id, blob.path);
+										indexed.incrementAndGet();
+									} catch (Exception e) {
+										errorRef.compareAndSet(null, e);
+									}
+								}
 							}
-							
-						});
-						checked++;
+						}
 					}
-	
-					SymbolExtractor<Symbol> extractor = SymbolExtractorRegistry.getExtractor(blobName);
-					String currentBlobIndexVersion = getIndexVersion(extractor);
-					String blobIndexVersion = blobIndexVersionRef.get();
-					if (blobIndexVersion != null) {
-						if (!blobIndexVersion.equals(currentBlobIndexVersion)) {
-							writer.deleteDocuments(query);
-							indexBlob(writer, repository, extractor, blobId, blobPath);
-							indexed++;
+					
+				}));
+			}
+			
+			int checked = 0;
+			boolean successful = false;
+			try {
+				List<BlobToIndex> batch = new ArrayList<>();
+				while (treeWalk.next()) {
+					if ((treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE 
+							&& (treeWalk.getTreeCount() == 1 || !treeWalk.idEqual(0, 1))) {
+						SymbolExtractor<Symbol> extractor = SymbolExtractorRegistry.getExtractor(treeWalk.getNameString());
+						batch.add(new BlobToIndex(treeWalk.getObjectId(0), treeWalk.getPathString(), extractor));
+						if (batch.size() == INDEX_BATCH_SIZE) {
+							checked += enqueue(batch, searcher, queue, errorRef);
+							batch.clear();
 						}
-					} else {
-						indexBlob(writer, repository, extractor, blobId, blobPath);
-						indexed++;
 					}
 				}
+				checked += enqueue(batch, searcher, queue, errorRef);
+				successful = true;
+			} finally {
+				if (!successful)
+					queue.clear();
+				for (int i=0; i<INDEX_WORKERS; i++)
+					Uninterruptibles.putUninterruptibly(queue, BlobToIndex.END);
+				for (Future<?> future: futures)
+					Uninterruptibles.getUninterruptibly(future);
 			}
+			if (errorRef.get() != null)
+				throw errorRef.get();
 	
 			// record current commit so that we know which commit has been indexed
 			Document document = new Document();
@@ -235,16 +277,121 @@ public class DefaultIndexManager implements IndexManager {
 			document.add(new StoredField(LAST_COMMIT_HASH.name(), commitId.getName()));
 			writer.updateDocument(META.term(LAST_COMMIT.name()), document);
 			
-			return new IndexResult(checked, indexed);
+			return new IndexResult(checked, indexed.get());
+		}
+	}
+	
+	/**
+	 * Put blobs needing to be indexed into the queue
+	 * 
+	 * @return
+	 * 			number of blobs checked against existing index
+	 */
+	private int enqueue(List<BlobToIndex> blobs, @Nullable IndexSearcher searcher, 
+			BlockingQueue<BlobToIndex> queue, AtomicReference<Exception> errorRef) 
+			throws IOException, InterruptedException {
+		if (errorRef.get() != null)
+			throw ExceptionUtils.unchecked(errorRef.get());
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		
+		Map<String, String> blobIndexVersions;
+		if (searcher != null)
+			blobIndexVersions = getBlobIndexVersions(searcher, blobs);
+		else
+			blobIndexVersions = new HashMap<>();
+		for (BlobToIndex blob: blobs) {
+			String blobIndexVersion = blobIndexVersions.get(getBlobKey(blob.id.name(), blob.path));
+			if (blobIndexVersion != null) {
+				if (!blobIndexVersion.equals(getIndexVersion(blob.extractor))) {
+					blob.reindex = true;
+					queue.put(blob);
+				}
+			} else {
+				queue.put(blob);
+			}
+		}
+		return searcher != null? blobs.size(): 0;
+	}
+	
+	/*
+	 * Look up index versions of specified blobs with one pass over the blob hash terms of 
+	 * each index segment, instead of running a query for each blob
+	 */
+	private Map<String, String> getBlobIndexVersions(IndexSearcher searcher, 
+			Collection<BlobToIndex> blobs) throws IOException {
+		Set<String> blobKeys = new HashSet<>();
+		SortedSet<BytesRef> blobHashes = new TreeSet<>();
+		for (BlobToIndex blob: blobs) {
+			blobKeys.add(getBlobKey(blob.id.name(), blob.path));
+			blobHashes.add(new BytesRef(blob.id.name()));
+		}
+		
+		Map<String, String> blobIndexVersions = new HashMap<>();
+		Set<String> fieldsToLoad = Sets.newHashSet(BLOB_INDEX_VERSION.name());
+		for (LeafReaderContext context: searcher.getIndexReader().leaves()) {
+			LeafReader reader = context.reader();
+			Terms terms = reader.terms(BLOB_HASH.name());
+			if (terms == null)
+				continue;
+			TermsEnum termsEnum = terms.iterator();
+			Bits liveDocs = reader.getLiveDocs();
+			
+			// doc values have to be iterated in doc order, so we sort matched docs first
+			Map<Integer, String> blobHashesOfDocs = new TreeMap<>();
+			PostingsEnum postings = null;
+			for (BytesRef blobHash: blobHashes) {
+				if (termsEnum.seekExact(blobHash)) {
+					postings = termsEnum.postings(postings, PostingsEnum.NONE);
+					int doc;
+					while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+						if (liveDocs == null || liveDocs.get(doc))
+							blobHashesOfDocs.put(doc, blobHash.utf8ToString());
+					}
+				}
+			}
+			
+			if (!blobHashesOfDocs.isEmpty()) {
+				BinaryDocValues blobPathValues = reader.getBinaryDocValues(BLOB_PATH.name());
+				if (blobPathValues != null) {
+					for (Map.Entry<Integer, String> entry: blobHashesOfDocs.entrySet()) {
+						if (blobPathValues.advanceExact(entry.getKey())) {
+							String blobPath = blobPathValues.binaryValue().utf8ToString();
+							String blobKey = getBlobKey(entry.getValue(), blobPath);
+							if (blobKeys.contains(blobKey)) {
+								String blobIndexVersion = reader.document(entry.getKey(), fieldsToLoad)
+										.get(BLOB_INDEX_VERSION.name());
+								blobIndexVersions.put(blobKey, blobIndexVersion);
+							}
+						}
+					}
+				}
+			}
 		}
+		return blobIndexVersions;
 	}
 	
-	private void indexBlob(IndexWriter writer, Repository repository, 
-			SymbolExtractor<Symbol> extractor, ObjectId blobId, String blobPath) throws IOException {
+	private String getBlobKey(String blobHash, String blobPath) {
+		// blob hash is of fixed length, so simple concatenation is unambiguous
+		return blobHash + blobPath;
+	}
+	
+	private BooleanQuery getBlobQuery(ObjectId blobId, String blobPath) {
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		builder.add(BLOB_HASH.query(blobId.name()), Occur.MUST);
+		builder.add(BLOB_PATH.query(blobPath), Occur.MUST);
+		return builder.build();
+	}
+	
+	private void indexBlob(IndexWriter writer, ObjectReader reader, 
+			@Nullable SymbolExtractor<Symbol> extractor, ObjectId blobId, String blobPath) throws IOException {
 		Document document = new Document();
 		
 		document.add(new StoredField(BLOB_INDEX_VERSION.name(), getIndexVersion(extractor)));
 		document.add(new StringField(BLOB_HASH.name(), blobId.name(), Store.NO));
+		byte[] blobHash = new byte[Constants.OBJECT_ID_LENGTH];
+		blobId.copyRawTo(blobHash, 0);
+		document.add(new BinaryDocValuesField(BLOB_HASH.name(), new BytesRef(blobHash)));
 		document.add(new StringField(BLOB_PATH.name(), blobPath, Store.NO));
 		document.add(new BinaryDocValuesField(BLOB_PATH.name(), new BytesRef(blobPath.getBytes(StandardCharsets.UTF_8))));
 		
@@ -254,7 +401,7 @@ public class DefaultIndexManager implements IndexManager {
 		
 		document.add(new StringField(BLOB_NAME.name(), blobName.toLowerCase(), Store.NO));
 		
-		ObjectLoader objectLoader = repository.open(blobId);
+		ObjectLoader objectLoader = reader.open(blobId);
 		if (objectLoader.getSize() <= MAX_INDEXABLE_SIZE) {
 			byte[] bytes = objectLoader.getCachedBytes();
 			String content = ContentDetector.convertToText(bytes, blobName);
@@ -282,8 +429,7 @@ public class DefaultIndexManager implements IndexManager {
 								document.add(new StringField(fieldName, fieldValue, Store.NO));
 							}
 						}
-						byte[] bytesOfSymbols = SerializationUtils.serialize((Serializable) symbols);
-						document.add(new StoredField(BLOB_SYMBOL_LIST.name(), bytesOfSymbols));
+						document.add(new StoredField(BLOB_SYMBOL_LIST.name(), IndexedSymbols.encode(symbols)));
 					}
 				} 
 			} else {
@@ -297,7 +443,7 @@ public class DefaultIndexManager implements IndexManager {
 	}
 	
 	private BatchWorker getBatchWorker(Long projectId) {
-		return new BatchWorker("project-" + projectId + "-indexBlob", 1) {
+		return new BatchWorker("project-" + projectId, "project-" + projectId + "-indexBlob", 1) {
 
 			@Override
 			public void doWorks(Collection<Prioritized> works) {
@@ -320,40 +466,30 @@ public class DefaultIndexManager implements IndexManager {
 		};
 	}
 
-	private IndexResult doIndex(Project project, ObjectId commit, Directory directory, IndexSearcher searcher) {
-		IndexWriterConfig writerConfig = new IndexWriterConfig(new NGramAnalyzer(NGRAM_SIZE, NGRAM_SIZE));
-		writerConfig.setOpenMode(OpenMode.CREATE_OR_APPEND);
-		try (IndexWriter writer = new IndexWriter(directory, writerConfig)) {
-			try {
-				logger.debug("Indexing commit (project: {}, commit: {})", project.getName(), commit.getName());
-				IndexResult indexResult = index(project.getRepository(), commit, writer, searcher);
-				writer.commit();
-				return indexResult;
-			} catch (Exception e) {
-				writer.rollback();
-				throw ExceptionUtils.unchecked(e);
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
-	
 	private IndexResult doIndex(Project project, ObjectId commit) {
-		try (Directory directory = FSDirectory.open(storageManager.getProjectIndexDir(project.getId()).toPath())) {
-			if (DirectoryReader.indexExists(directory)) {
-				try (IndexReader reader = DirectoryReader.open(directory)) {
-					IndexSearcher searcher = new IndexSearcher(reader);
+		try {
+			IndexSearcher searcher = indexAccessor.acquireSearcher(project.getId());
+			if (searcher != null) {
+				try {
 					if (getIndexVersion().equals(getCommitIndexVersion(searcher, commit)))
 						return new IndexResult(0, 0);
-					else
-						return doIndex(project, commit, directory, searcher);
+				} finally {
+					indexAccessor.releaseSearcher(project.getId(), searcher);
 				}
-			} else {
-				return doIndex(project, commit, directory, null);
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		} catch (InterruptedException | IOException e) {
+			throw ExceptionUtils.unchecked(e);
 		}
+		
+		return indexAccessor.write(project.getId(), new IndexAccessor.IndexWork<IndexResult>() {
+
+			@Override
+			public IndexResult run(IndexWriter writer, IndexSearcher searcher) throws Exception {
+				logger.debug("Indexing commit (project: {}, commit: {})", project.getName(), commit.getName());
+				return index(project.getRepository(), commit, writer, searcher);
+			}
+			
+		});
 	}
 
 	@Override
@@ -373,18 +509,19 @@ public class DefaultIndexManager implements IndexManager {
 
 	@Override
 	public boolean isIndexed(Project project, ObjectId commit) {
-		File indexDir = storageManager.getProjectIndexDir(project.getId());
-		try (Directory directory = FSDirectory.open(indexDir.toPath())) {
-			if (DirectoryReader.indexExists(directory)) {
-				try (IndexReader reader = DirectoryReader.open(directory)) {
-					IndexSearcher searcher = new IndexSearcher(reader);
+		try {
+			IndexSearcher searcher = indexAccessor.acquireSearcher(project.getId());
+			if (searcher != null) {
+				try {
 					return getIndexVersion().equals(getCommitIndexVersion(searcher, commit));
+				} finally {
+					indexAccessor.releaseSearcher(project.getId(), searcher);
 				}
 			} else {
 				return false;
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		} catch (InterruptedException | IOException e) {
+			throw ExceptionUtils.unchecked(e);
 		}
 	}
 
@@ -393,12 +530,30 @@ public class DefaultIndexManager implements IndexManager {
 	public void on(RefUpdated event) {
 		// only index branches at back end, tags will be indexed on demand from GUI 
 		// as many tags might be pushed all at once when the repository is imported 
-		if (event.getRefName().startsWith(Constants.R_HEADS) && !event.getNewCommitId().equals(ObjectId.zeroId())) {
+		if (!event.isBatched() && event.getRefName().startsWith(Constants.R_HEADS) 
+				&& !event.getNewCommitId().equals(ObjectId.zeroId())) {
 			IndexWork work = new IndexWork(BACKEND_INDEXING_PRIORITY, event.getNewCommitId());
 			batchWorkManager.submit(getBatchWorker(event.getProject().getId()), work);
 		}
 	}
 	
+	@Sessional
+	@Listen
+	public void on(RefsUpdated event) {
+		Set<ObjectId> commitIds = new LinkedHashSet<>();
+		for (RefUpdated refUpdated: event.getRefUpdates()) {
+			if (refUpdated.getRefName().startsWith(Constants.R_HEADS) 
+					&& !refUpdated.getNewCommitId().equals(ObjectId.zeroId())) {
+				commitIds.add(refUpdated.getNewCommitId());
+			}
+		}
+		
+		// Branches of a push pointing to same commit only need to be indexed once
+		BatchWorker batchWorker = getBatchWorker(event.getProject().getId());
+		for (ObjectId commitId: commitIds) 
+			batchWorkManager.submit(batchWorker, new IndexWork(BACKEND_INDEXING_PRIORITY, commitId));
+	}
+	
 	@Sessional
 	@Listen
 	public void on(SystemStarted event) {
@@ -445,5 +600,25 @@ public class DefaultIndexManager implements IndexManager {
 		}
 		
 	}
+	
+	private static class BlobToIndex {
+		
+		static final BlobToIndex END = new BlobToIndex(ObjectId.zeroId(), "", null);
+		
+		final ObjectId id;
+		
+		final String path;
+		
+		final SymbolExtractor<Symbol> extractor;
+		
+		boolean reindex;
+		
+		BlobToIndex(ObjectId id, String path, @Nullable SymbolExtractor<Symbol> extractor) {
+			this.id = id;
+			this.path = path;
+			this.extractor = extractor;
+		}
+		
+	}
 
 }
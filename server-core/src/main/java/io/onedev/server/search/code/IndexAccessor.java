@@ -0,0 +1,52 @@
+package io.onedev.server.search.code;
+
+import javax.annotation.Nullable;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Provides shared access to code search index of projects. Index writer and near real-time 
+ * searchers of a project are kept open and reused across calls, and closed when the project 
+ * is not accessed for some time
+ */
+public interface IndexAccessor {
+
+	/**
+	 * Acquire searcher of specified project. The searcher should be released via 
+	 * {@link #releaseSearcher(Long, IndexSearcher)} after use
+	 * 
+	 * @return
+	 * 			searcher reflecting latest committed changes, or <tt>null</tt> if index of 
+	 * 			specified project does not exist yet
+	 * @throws InterruptedException
+	 * 			if current thread is interrupted while opening the index
+	 */
+	@Nullable
+	IndexSearcher acquireSearcher(Long projectId) throws InterruptedException;
+	
+	void releaseSearcher(Long projectId, IndexSearcher searcher);
+	
+	/**
+	 * Write index of specified project. Index will be created if not exist. Changes will be 
+	 * committed and visible to subsequently acquired searchers if specified work completes 
+	 * successfully, and will be rolled back otherwise
+	 * 
+	 * @return
+	 * 			result of the work
+	 */
+	<T> T write(Long projectId, IndexWork<T> work);
+	
+	public static interface IndexWork<T> {
+		
+		/**
+		 * @param writer
+		 * 			writer to write index
+		 * @param searcher
+		 * 			searcher reflecting index state before this work
+		 */
+		T run(IndexWriter writer, IndexSearcher searcher) throws Exception;
+		
+	}
+	
+}
@@ -0,0 +1,334 @@
+package io.onedev.server.search.code;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import io.onedev.commons.jsymbol.Symbol;
+import io.onedev.commons.utils.ExceptionUtils;
+
+/**
+ * Symbols of a blob as stored in code index. Names and flags of symbols are encoded in a flat
+ * header with names deduplicated, so that symbol queries can find matching symbols without
+ * materializing any symbol object. Each symbol is then stored as a separate record, so that
+ * a matching symbol can be decoded without decoding other symbols except its ancestors.
+ * <p>
+ * Encoded layout: version byte, then string table (count followed by length prefixed UTF-8
+ * strings), then symbols (count followed by name index, flags and record length of each
+ * symbol), then records of all symbols. All counts, lengths and indexes are var-ints.
+ * <p>
+ * Symbols are of language specific classes with their own fields, so a record still uses
+ * object serialization, but class descriptors are written as indexes into the string table,
+ * and references to other symbols of the blob (for instance parent of the symbol) are
+ * written as symbol indexes.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class IndexedSymbols {
+
+	private static final byte VERSION = 2;
+
+	private static final int PRIMARY = 1;
+
+	private static final int SEARCHABLE = 2;
+
+	private static final int LOCAL_IN_HIERARCHY = 4;
+
+	private final byte[] bytes;
+
+	private final String[] strings;
+
+	private final int[] nameIndexes;
+
+	private final byte[] flags;
+
+	private final int[] recordOffsets;
+
+	private final Symbol[] symbols;
+
+	private final boolean[] decoding;
+
+	/**
+	 * Parse header of encoded symbols. Records are not touched until symbols are requested
+	 */
+	public IndexedSymbols(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		int[] position = new int[] {offset};
+		Preconditions.checkState(bytes[position[0]++] == VERSION, "Unexpected symbols encoding version");
+
+		strings = new String[readVarInt(bytes, position)];
+		for (int i=0; i<strings.length; i++) {
+			int stringLength = readVarInt(bytes, position);
+			strings[i] = new String(bytes, position[0], stringLength, StandardCharsets.UTF_8);
+			position[0] += stringLength;
+		}
+
+		int count = readVarInt(bytes, position);
+		nameIndexes = new int[count];
+		flags = new byte[count];
+		int[] recordLengths = new int[count];
+		for (int i=0; i<count; i++) {
+			nameIndexes[i] = readVarInt(bytes, position) - 1;
+			flags[i] = bytes[position[0]++];
+			recordLengths[i] = readVarInt(bytes, position);
+		}
+
+		recordOffsets = new int[count+1];
+		recordOffsets[0] = position[0];
+		for (int i=0; i<count; i++)
+			recordOffsets[i+1] = recordOffsets[i] + recordLengths[i];
+		Preconditions.checkState(recordOffsets[count] == offset + length, "Unexpected symbols encoding length");
+
+		symbols = new Symbol[count];
+		decoding = new boolean[count];
+	}
+
+	public static byte[] encode(List<Symbol> symbols) {
+		StringTable strings = new StringTable();
+		Map<Symbol, Integer> symbolIndexes = new IdentityHashMap<>();
+		for (int i=0; i<symbols.size(); i++)
+			symbolIndexes.put(symbols.get(i), i);
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		int[] recordLengths = new int[symbols.size()];
+		for (int i=0; i<symbols.size(); i++) {
+			int recordOffset = records.size();
+			try (SymbolOutputStream os = new SymbolOutputStream(records, symbols.get(i), symbolIndexes, strings)) {
+				os.writeObject(symbols.get(i));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			recordLengths[i] = records.size() - recordOffset;
+		}
+
+		int[] nameIndexes = new int[symbols.size()];
+		for (int i=0; i<symbols.size(); i++) {
+			String name = symbols.get(i).getName();
+			nameIndexes[i] = name != null? strings.indexOf(name): -1;
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			baos.write(VERSION);
+
+			writeVarInt(baos, strings.values.size());
+			for (String string: strings.values) {
+				byte[] stringBytes = string.getBytes(StandardCharsets.UTF_8);
+				writeVarInt(baos, stringBytes.length);
+				baos.write(stringBytes);
+			}
+
+			writeVarInt(baos, symbols.size());
+			for (int i=0; i<symbols.size(); i++) {
+				Symbol symbol = symbols.get(i);
+				writeVarInt(baos, nameIndexes[i] + 1);
+				int flagsOfSymbol = 0;
+				if (symbol.isPrimary())
+					flagsOfSymbol |= PRIMARY;
+				if (symbol.isSearchable())
+					flagsOfSymbol |= SEARCHABLE;
+				if (symbol.isLocalInHierarchy())
+					flagsOfSymbol |= LOCAL_IN_HIERARCHY;
+				baos.write(flagsOfSymbol);
+				writeVarInt(baos, recordLengths[i]);
+			}
+
+			records.writeTo(baos);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	public int size() {
+		return flags.length;
+	}
+
+	@Nullable
+	public String getName(int index) {
+		int nameIndex = nameIndexes[index];
+		return nameIndex != -1? strings[nameIndex]: null;
+	}
+
+	public boolean isPrimary(int index) {
+		return (flags[index] & PRIMARY) != 0;
+	}
+
+	public boolean isSearchable(int index) {
+		return (flags[index] & SEARCHABLE) != 0;
+	}
+
+	public boolean isLocalInHierarchy(int index) {
+		return (flags[index] & LOCAL_IN_HIERARCHY) != 0;
+	}
+
+	/**
+	 * Get symbol at specified index. Only record of this symbol and records of symbols
+	 * referenced by it (for instance its ancestors) will be decoded
+	 */
+	public Symbol get(int index) {
+		Symbol symbol = symbols[index];
+		if (symbol == null) {
+			Preconditions.checkState(!decoding[index], "Circular symbol reference");
+			decoding[index] = true;
+			try (SymbolInputStream is = new SymbolInputStream(new ByteArrayInputStream(
+					bytes, recordOffsets[index], recordOffsets[index+1] - recordOffsets[index]))) {
+				symbol = (Symbol) is.readObject();
+			} catch (IOException | ClassNotFoundException e) {
+				throw ExceptionUtils.unchecked(e);
+			} finally {
+				decoding[index] = false;
+			}
+			symbols[index] = symbol;
+		}
+		return symbol;
+	}
+
+	public List<Symbol> decode() {
+		List<Symbol> decoded = new ArrayList<>();
+		for (int i=0; i<size(); i++)
+			decoded.add(get(i));
+		return decoded;
+	}
+
+	private static void writeVarInt(OutputStream os, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			os.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		os.write(value);
+	}
+
+	private static int readVarInt(byte[] bytes, int[] position) {
+		int value = 0;
+		for (int shift=0; ; shift+=7) {
+			byte b = bytes[position[0]++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	private static int readVarInt(DataInput input) throws IOException {
+		int value = 0;
+		for (int shift=0; ; shift+=7) {
+			byte b = input.readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	private static class StringTable {
+
+		final Map<String, Integer> indexes = new HashMap<>();
+
+		final List<String> values = new ArrayList<>();
+
+		int indexOf(String value) {
+			Integer index = indexes.get(value);
+			if (index == null) {
+				index = values.size();
+				indexes.put(value, index);
+				values.add(value);
+			}
+			return index;
+		}
+
+	}
+
+	private static class SymbolRef implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final int index;
+
+		SymbolRef(int index) {
+			this.index = index;
+		}
+
+	}
+
+	private static class SymbolOutputStream extends ObjectOutputStream {
+
+		private final Symbol symbol;
+
+		private final Map<Symbol, Integer> symbolIndexes;
+
+		private final StringTable strings;
+
+		SymbolOutputStream(OutputStream os, Symbol symbol, Map<Symbol, Integer> symbolIndexes,
+				StringTable strings) throws IOException {
+			super(os);
+			this.symbol = symbol;
+			this.symbolIndexes = symbolIndexes;
+			this.strings = strings;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected void writeStreamHeader() throws IOException {
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			writeVarInt(this, strings.indexOf(desc.getName()));
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			if (obj != symbol && obj instanceof Symbol) {
+				Integer index = symbolIndexes.get(obj);
+				if (index != null)
+					return new SymbolRef(index);
+			}
+			return obj;
+		}
+
+	}
+
+	private class SymbolInputStream extends ObjectInputStream {
+
+		SymbolInputStream(InputStream is) throws IOException {
+			super(is);
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected void readStreamHeader() throws IOException {
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			String className = strings[readVarInt(this)];
+			return ObjectStreamClass.lookup(Class.forName(className, false, IndexedSymbols.class.getClassLoader()));
+		}
+
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			if (obj instanceof SymbolRef)
+				return get(((SymbolRef) obj).index);
+			else
+				return obj;
+		}
+
+	}
+
+}
@@ -30,7 +30,14 @@ public interface SearchManager {
 	@Nullable
 	List<Symbol> getSymbols(Project project, ObjectId blobId, String blobPath);
 	
+	/**
+	 * Get symbols of specified blob from index without decoding them
+	 * 
+	 * @return
+	 * 			symbols of specified blob, or <tt>null</tt> if blob is not indexed or 
+	 * 			symbols can not be extracted
+	 */
 	@Nullable
-	List<Symbol> getSymbols(IndexSearcher searcher, ObjectId blobId, String blobPath);
+	IndexedSymbols getSymbols(IndexSearcher searcher, ObjectId blobId, String blobPath);
 	
 }
\ No newline at end of file
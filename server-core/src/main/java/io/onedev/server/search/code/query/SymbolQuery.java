@@ -16,9 +16,9 @@ import org.apache.lucene.search.WildcardQuery;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.treewalk.TreeWalk;
 
-import io.onedev.commons.jsymbol.Symbol;
 import io.onedev.commons.utils.LinearRange;
 import io.onedev.server.OneDev;
+import io.onedev.server.search.code.IndexedSymbols;
 import io.onedev.server.search.code.SearchManager;
 import io.onedev.server.search.code.hit.QueryHit;
 import io.onedev.server.search.code.hit.SymbolHit;
@@ -62,14 +62,16 @@ public class SymbolQuery extends BlobQuery {
 		String blobPath = treeWalk.getPathString();
 		ObjectId blobId = treeWalk.getObjectId(0);
 		
-		List<Symbol> symbols = OneDev.getInstance(SearchManager.class).getSymbols(searcher, blobId, blobPath);
+		// match against encoded names and flags, and only decode symbols when there are hits
+		IndexedSymbols symbols = OneDev.getInstance(SearchManager.class).getSymbols(searcher, blobId, blobPath);
 		if (symbols != null) {
-			for (Symbol symbol: symbols) {
+			for (int i=0; i<symbols.size(); i++) {
 				if (hits.size() < getCount()) {
-					if ((primary==null || primary.booleanValue() == symbol.isPrimary()) 
-							&& symbol.getName() != null 
-							&& symbol.isSearchable()
-							&& (local == null || local.booleanValue() == symbol.isLocalInHierarchy())) {
+					String symbolName = symbols.getName(i);
+					if ((primary==null || primary.booleanValue() == symbols.isPrimary(i)) 
+							&& symbolName != null 
+							&& symbols.isSearchable(i)
+							&& (local == null || local.booleanValue() == symbols.isLocalInHierarchy(i))) {
 						String normalizedTerm;
 						if (!caseSensitive)
 							normalizedTerm = term.toLowerCase();
@@ -78,9 +80,9 @@ public class SymbolQuery extends BlobQuery {
 						
 						String normalizedSymbolName;
 						if (!caseSensitive)
-							normalizedSymbolName = symbol.getName().toLowerCase();
+							normalizedSymbolName = symbolName.toLowerCase();
 						else
-							normalizedSymbolName = symbol.getName();
+							normalizedSymbolName = symbolName;
 						
 						String normalizedExcludeTerm;
 						if (excludeTerm != null) {
@@ -95,7 +97,7 @@ public class SymbolQuery extends BlobQuery {
 								&& (normalizedExcludeTerm == null || !normalizedSymbolName.equals(normalizedExcludeTerm))
 								&& (excludeBlobPath == null || !excludeBlobPath.equals(blobPath))) {
 							LinearRange match = WildcardUtils.rangeOfMatch(normalizedTerm, normalizedSymbolName);
-							hits.add(new SymbolHit(blobPath, symbol, match));
+							hits.add(new SymbolHit(blobPath, symbols.get(i), match));
 						}
 					}
 				} else {
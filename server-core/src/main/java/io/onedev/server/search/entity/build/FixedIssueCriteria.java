@@ -13,7 +13,6 @@ import org.eclipse.jgit.lib.ObjectId;
 
 import io.onedev.server.OneDev;
 import io.onedev.server.entitymanager.BuildManager;
-import io.onedev.server.git.GitUtils;
 import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.model.Build;
 import io.onedev.server.model.Issue;
@@ -64,7 +63,7 @@ public class FixedIssueCriteria extends EntityCriteria<Build> {
 			Collection<ObjectId> fixCommits = getCommitInfoManager().getFixCommits(build.getProject(), issue.getNumber()); 
 			for (ObjectId commit: fixCommits) {
 				ObjectId buildCommit = ObjectId.fromString(build.getCommitHash());
-				if (GitUtils.isMergedInto(build.getProject().getRepository(), null, commit, buildCommit))
+				if (getCommitInfoManager().isMergedInto(build.getProject(), commit, buildCommit))
 					return true;
 			}
 		}
@@ -21,7 +21,7 @@ import org.eclipse.jgit.revwalk.RevWalk;
 import io.onedev.commons.utils.ExplicitException;
 import io.onedev.server.OneDev;
 import io.onedev.server.entitymanager.IssueManager;
-import io.onedev.server.git.GitUtils;
+import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.model.Build;
 import io.onedev.server.model.Issue;
 import io.onedev.server.model.Project;
@@ -75,12 +75,16 @@ public class FixedBetweenCriteria extends IssueCriteria {
 		}
 	}
 
+	private CommitInfoManager getCommitInfoManager() {
+		return OneDev.getInstance(CommitInfoManager.class);
+	}
+	
 	@Override
 	public Predicate getPredicate(Root<Issue> root, CriteriaBuilder builder) {
 		Set<Long> fixedIssueNumbers = new HashSet<>();
 		
 		Repository repository = project.getRepository();
-		ObjectId mergeBaseId = GitUtils.getMergeBase(repository, firstCommitId, secondCommitId);
+		ObjectId mergeBaseId = getCommitInfoManager().getMergeBase(project, firstCommitId, secondCommitId);
 		if (mergeBaseId != null) {
 			try (RevWalk revWalk = new RevWalk(repository)) {
 				revWalk.markStart(revWalk.parseCommit(secondCommitId));
@@ -114,7 +118,7 @@ public class FixedBetweenCriteria extends IssueCriteria {
 	public boolean matches(Issue issue) {
 		if (project.equals(issue.getProject())) {
 			Repository repository = issue.getProject().getRepository();
-			ObjectId mergeBaseId = GitUtils.getMergeBase(repository, firstCommitId, secondCommitId);
+			ObjectId mergeBaseId = getCommitInfoManager().getMergeBase(project, firstCommitId, secondCommitId);
 			if (mergeBaseId != null) {
 				try (RevWalk revWalk = new RevWalk(repository)) {
 					revWalk.markStart(revWalk.parseCommit(secondCommitId));
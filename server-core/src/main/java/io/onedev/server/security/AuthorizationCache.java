@@ -0,0 +1,14 @@
+package io.onedev.server.security;
+
+public interface AuthorizationCache {
+
+	/**
+	 * Get authorization of specified user. Authorization is calculated once and shared by all 
+	 * requests until memberships, authorizations, roles, groups or settings are changed
+	 * 
+	 * @param userId
+	 * 			id of the user, or <tt>0</tt> for anonymous user
+	 */
+	CachedAuthorization get(Long userId);
+	
+}
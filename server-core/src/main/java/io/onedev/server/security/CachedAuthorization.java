@@ -0,0 +1,100 @@
+package io.onedev.server.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+
+import io.onedev.server.model.Role;
+import io.onedev.server.security.permission.ProjectPermission;
+
+/**
+ * Authorization of a user shared across requests. Project authorizations are indexed by
+ * project id, so that checking a project permission does not need to scan all authorizations
+ * of the user and its groups.
+ */
+public class CachedAuthorization implements AuthorizationInfo {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Collection<Permission> permissions;
+
+	private final Map<Long, Collection<Role>> projectRoles;
+
+	private final boolean allProjects;
+
+	/**
+	 * @param permissions
+	 * 			permissions other than those granted via project authorizations
+	 * @param projectRoles
+	 * 			map of project id to roles authorized for the project
+	 * @param allProjects
+	 * 			whether or not all projects are accessible via anonymous administrator group
+	 */
+	public CachedAuthorization(Collection<Permission> permissions,
+			Map<Long, Collection<Role>> projectRoles, boolean allProjects) {
+		this.permissions = new ArrayList<>(permissions);
+		this.projectRoles = projectRoles;
+		this.allProjects = allProjects;
+		this.permissions.add(new IndexedProjectPermission());
+	}
+
+	public boolean isAllProjects() {
+		return allProjects;
+	}
+
+	/**
+	 * @return
+	 * 			ids of projects authorized with a role implying specified permission
+	 */
+	public Collection<Long> getProjectIds(Permission permission) {
+		Collection<Long> projectIds = new HashSet<>();
+		for (Map.Entry<Long, Collection<Role>> entry: projectRoles.entrySet()) {
+			if (implies(entry.getValue(), permission))
+				projectIds.add(entry.getKey());
+		}
+		return projectIds;
+	}
+
+	private static boolean implies(Collection<Role> roles, Permission permission) {
+		for (Role role: roles) {
+			if (role.implies(permission))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Collection<String> getRoles() {
+		return new HashSet<>();
+	}
+
+	@Override
+	public Collection<String> getStringPermissions() {
+		return new HashSet<>();
+	}
+
+	@Override
+	public Collection<Permission> getObjectPermissions() {
+		return permissions;
+	}
+
+	private class IndexedProjectPermission implements Permission {
+
+		@Override
+		public boolean implies(Permission p) {
+			if (p instanceof ProjectPermission) {
+				ProjectPermission projectPermission = (ProjectPermission) p;
+				Collection<Role> roles = projectRoles.get(projectPermission.getProject().getId());
+				return roles != null && CachedAuthorization.implies(roles, projectPermission.getPrivilege());
+			} else {
+				return false;
+			}
+		}
+
+	}
+
+}
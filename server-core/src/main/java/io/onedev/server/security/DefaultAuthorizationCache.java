@@ -0,0 +1,221 @@
+package io.onedev.server.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.shiro.authz.Permission;
+import org.hibernate.proxy.HibernateProxy;
+
+import com.google.common.collect.Sets;
+
+import io.onedev.commons.launcher.loader.Listen;
+import io.onedev.server.entitymanager.GroupManager;
+import io.onedev.server.entitymanager.SettingManager;
+import io.onedev.server.entitymanager.UserManager;
+import io.onedev.server.event.entity.EntityEvent;
+import io.onedev.server.event.entity.EntityPersisted;
+import io.onedev.server.event.entity.EntityRemoved;
+import io.onedev.server.model.AbstractEntity;
+import io.onedev.server.model.Group;
+import io.onedev.server.model.GroupAuthorization;
+import io.onedev.server.model.Membership;
+import io.onedev.server.model.Project;
+import io.onedev.server.model.Role;
+import io.onedev.server.model.Setting;
+import io.onedev.server.model.User;
+import io.onedev.server.model.UserAuthorization;
+import io.onedev.server.model.support.issue.fieldspec.FieldSpec;
+import io.onedev.server.persistence.SessionManager;
+import io.onedev.server.persistence.TransactionManager;
+import io.onedev.server.persistence.annotation.Transactional;
+import io.onedev.server.security.permission.AccessBuildLog;
+import io.onedev.server.security.permission.CreateProjects;
+import io.onedev.server.security.permission.EditIssueField;
+import io.onedev.server.security.permission.JobPermission;
+import io.onedev.server.security.permission.ProjectPermission;
+import io.onedev.server.security.permission.ReadCode;
+import io.onedev.server.security.permission.SystemAdministration;
+import io.onedev.server.security.permission.UserAdministration;
+
+@Singleton
+public class DefaultAuthorizationCache implements AuthorizationCache {
+
+	private final UserManager userManager;
+
+	private final GroupManager groupManager;
+
+	private final SettingManager settingManager;
+
+	private final SessionManager sessionManager;
+
+	private final TransactionManager transactionManager;
+
+	private final Map<Long, CachedAuthorization> authorizations = new ConcurrentHashMap<>();
+
+	// Increased on every invalidation to detect authorizations calculated from stale data
+	private final AtomicLong version = new AtomicLong(0);
+
+	@Inject
+	public DefaultAuthorizationCache(UserManager userManager, GroupManager groupManager,
+			SettingManager settingManager, SessionManager sessionManager,
+			TransactionManager transactionManager) {
+		this.userManager = userManager;
+		this.groupManager = groupManager;
+		this.settingManager = settingManager;
+		this.sessionManager = sessionManager;
+		this.transactionManager = transactionManager;
+	}
+
+	@Override
+	public CachedAuthorization get(Long userId) {
+		CachedAuthorization authorization = authorizations.get(userId);
+		if (authorization == null) {
+			long versionBefore = version.get();
+			authorization = sessionManager.call(new Callable<CachedAuthorization>() {
+
+				@Override
+				public CachedAuthorization call() throws Exception {
+					return newAuthorization(userId);
+				}
+
+			});
+			authorizations.put(userId, authorization);
+			if (version.get() != versionBefore)
+				authorizations.remove(userId, authorization);
+		}
+		return authorization;
+	}
+
+	private CachedAuthorization newAuthorization(Long userId) {
+		Collection<Permission> permissions = new ArrayList<>();
+		Map<Long, Collection<Role>> projectRoles = new HashMap<>();
+		boolean allProjects = false;
+
+		User user = null;
+		if (userId != 0L) {
+			user = userManager.load(userId);
+			if (user.isRoot() || user.isSystem())
+				permissions.add(new SystemAdministration());
+			permissions.add(new UserAdministration(user));
+			for (Group group: user.getGroups())
+				addGroupAuthorization(group, user, permissions, projectRoles);
+			for (UserAuthorization authorization: user.getAuthorizations())
+				addProjectRole(authorization.getProject(), authorization.getRole(), projectRoles);
+		}
+		Group group = groupManager.findAnonymous();
+		if (group != null) {
+			addGroupAuthorization(group, user, permissions, projectRoles);
+			if (group.isAdministrator()) {
+				allProjects = true;
+				if (user == null) {
+					permissions.add(new AllProjectsPermission(new ReadCode()));
+					for (FieldSpec field: settingManager.getIssueSetting().getFieldSpecs())
+						permissions.add(new AllProjectsPermission(new EditIssueField(Sets.newHashSet(field.getName()))));
+					permissions.add(new AllProjectsPermission(new JobPermission("*", new AccessBuildLog())));
+				}
+			}
+		}
+		return new CachedAuthorization(permissions, projectRoles, allProjects);
+	}
+
+	private void addGroupAuthorization(Group group, @Nullable User user,
+			Collection<Permission> permissions, Map<Long, Collection<Role>> projectRoles) {
+		if (user != null) {
+			if (group.isAdministrator())
+				permissions.add(new SystemAdministration());
+			if (group.isCreateProjects())
+				permissions.add(new CreateProjects());
+		}
+		for (GroupAuthorization authorization: group.getAuthorizations())
+			addProjectRole(authorization.getProject(), authorization.getRole(), projectRoles);
+	}
+
+	private void addProjectRole(Project project, Role role, Map<Long, Collection<Role>> projectRoles) {
+		// Role is accessed after session is closed, so it should not be a lazy proxy
+		if (role instanceof HibernateProxy)
+			role = (Role) ((HibernateProxy) role).getHibernateLazyInitializer().getImplementation();
+		Collection<Role> roles = projectRoles.get(project.getId());
+		if (roles == null) {
+			roles = new HashSet<>();
+			projectRoles.put(project.getId(), roles);
+		}
+		roles.add(role);
+	}
+
+	private void invalidate(@Nullable Long userId) {
+		transactionManager.runAfterCommit(new Runnable() {
+
+			@Override
+			public void run() {
+				version.incrementAndGet();
+				if (userId != null)
+					authorizations.remove(userId);
+				else
+					authorizations.clear();
+			}
+
+		});
+	}
+
+	private void onChange(EntityEvent event) {
+		AbstractEntity entity = event.getEntity();
+		if (entity instanceof Membership)
+			invalidate(((Membership) entity).getUser().getId());
+		else if (entity instanceof UserAuthorization)
+			invalidate(((UserAuthorization) entity).getUser().getId());
+		else if (entity instanceof User)
+			invalidate(entity.getId());
+		else if (entity instanceof GroupAuthorization || entity instanceof Group
+				|| entity instanceof Role || entity instanceof Setting)
+			invalidate(null);
+	}
+
+	@Transactional
+	@Listen
+	public void on(EntityPersisted event) {
+		onChange(event);
+	}
+
+	@Transactional
+	@Listen
+	public void on(EntityRemoved event) {
+		// Authorizations of removed project are removed via cascade without firing events
+		if (event.getEntity() instanceof Project)
+			invalidate(null);
+		else
+			onChange(event);
+	}
+
+	/*
+	 * Privilege granted for all projects, including those created after the authorization
+	 * is cached
+	 */
+	private static class AllProjectsPermission implements Permission {
+
+		private final Permission privilege;
+
+		AllProjectsPermission(Permission privilege) {
+			this.privilege = privilege;
+		}
+
+		@Override
+		public boolean implies(Permission p) {
+			if (p instanceof ProjectPermission)
+				return privilege.implies(((ProjectPermission) p).getPrivilege());
+			else
+				return false;
+		}
+
+	}
+
+}
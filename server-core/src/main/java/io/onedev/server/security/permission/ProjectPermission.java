@@ -15,6 +15,14 @@ public class ProjectPermission implements Permission {
 		this.privilege = privilege;
 	}
 	
+	public Project getProject() {
+		return project;
+	}
+
+	public Permission getPrivilege() {
+		return privilege;
+	}
+
 	@Override
 	public boolean implies(Permission p) {
 		if (p instanceof ProjectPermission) {
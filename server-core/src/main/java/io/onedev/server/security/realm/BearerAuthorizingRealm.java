@@ -12,6 +12,7 @@ import io.onedev.server.entitymanager.GroupManager;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.entitymanager.UserManager;
 import io.onedev.server.persistence.SessionManager;
+import io.onedev.server.security.AuthorizationCache;
 import io.onedev.server.security.BearerAuthenticationToken;
 
 @Singleton
@@ -19,8 +20,9 @@ public class BearerAuthorizingRealm extends AbstractAuthorizingRealm {
 
 	@Inject
     public BearerAuthorizingRealm(UserManager userManager, GroupManager groupManager, 
-    		ProjectManager projectManager, SessionManager sessionManager) {
-		super(userManager, groupManager, projectManager, sessionManager);
+    		ProjectManager projectManager, SessionManager sessionManager, 
+    		AuthorizationCache authorizationCache) {
+		super(userManager, groupManager, projectManager, sessionManager, authorizationCache);
 		setCredentialsMatcher(new AllowAllCredentialsMatcher());
     }
 
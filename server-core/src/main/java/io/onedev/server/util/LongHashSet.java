@@ -0,0 +1,121 @@
+package io.onedev.server.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Set of primitive longs with open addressing, taking about 8 to 16 bytes per element instead
+ * of the 50+ bytes of a boxed HashSet entry. It is not thread safe.
+ */
+public class LongHashSet {
+
+	private static final long EMPTY = 0;
+
+	private long[] table = new long[16];
+
+	private int size;
+
+	// Zero is used to mark empty slots, so it is tracked separately
+	private boolean containsZero;
+
+	public boolean add(long value) {
+		if (value == EMPTY) {
+			if (containsZero) {
+				return false;
+			} else {
+				containsZero = true;
+				return true;
+			}
+		}
+		int slot = find(table, value);
+		if (table[slot] == value)
+			return false;
+		table[slot] = value;
+		if (++size*2 > table.length)
+			rehash(table.length*2);
+		return true;
+	}
+
+	public boolean remove(long value) {
+		if (value == EMPTY) {
+			boolean removed = containsZero;
+			containsZero = false;
+			return removed;
+		}
+		int slot = find(table, value);
+		if (table[slot] != value)
+			return false;
+		table[slot] = EMPTY;
+		size--;
+
+		// re-insert following entries of the same cluster so that lookups are not broken
+		int mask = table.length - 1;
+		for (int i=(slot+1)&mask; table[i]!=EMPTY; i=(i+1)&mask) {
+			long moved = table[i];
+			table[i] = EMPTY;
+			table[find(table, moved)] = moved;
+		}
+		if (size*8 < table.length && table.length > 16)
+			rehash(table.length/2);
+		return true;
+	}
+
+	public boolean contains(long value) {
+		if (value == EMPTY)
+			return containsZero;
+		else
+			return table[find(table, value)] == value;
+	}
+
+	public int size() {
+		return containsZero? size+1: size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public long[] toArray() {
+		long[] values = new long[size()];
+		int index = 0;
+		if (containsZero)
+			values[index++] = EMPTY;
+		for (long value: table) {
+			if (value != EMPTY)
+				values[index++] = value;
+		}
+		return values;
+	}
+
+	public Collection<Long> toCollection() {
+		Collection<Long> values = new HashSet<>();
+		for (long value: toArray())
+			values.add(value);
+		return values;
+	}
+
+	private void rehash(int capacity) {
+		long[] newTable = new long[capacity];
+		for (long value: table) {
+			if (value != EMPTY)
+				newTable[find(newTable, value)] = value;
+		}
+		table = newTable;
+	}
+
+	private static int find(long[] table, long value) {
+		int mask = table.length - 1;
+		long hash = value * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (table[slot] != EMPTY && table[slot] != value)
+			slot = (slot+1) & mask;
+		return slot;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+}
@@ -0,0 +1,81 @@
+package io.onedev.server.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel. Items are scheduled to expire at specified time, and are collected
+ * by calling {@link #advance(long)} periodically. Items never expire at or before their
+ * expiration time, and expire at most one tick duration later than it. Scheduling and
+ * advancing cost constant time regardless of number of items scheduled.
+ *
+ * @param <T>
+ * 			type of scheduled items
+ */
+public class TimerWheel<T> {
+
+	private final long tickDuration;
+
+	private final List<List<Timeout<T>>> slots = new ArrayList<>();
+
+	private final long startTime;
+
+	private long currentTick;
+
+	public TimerWheel(long tickDuration, int numOfSlots) {
+		this.tickDuration = tickDuration;
+		for (int i=0; i<numOfSlots; i++)
+			slots.add(new ArrayList<>());
+		startTime = System.currentTimeMillis();
+	}
+
+	private long getTick(long time) {
+		return Math.max(0, (time - startTime) / tickDuration);
+	}
+
+	public synchronized void schedule(T item, long expireTime) {
+		// Expire at first tick after expire time, as tick of expire time may start before it
+		long tick = Math.max(getTick(expireTime) + 1, currentTick);
+		slots.get((int) (tick % slots.size())).add(new Timeout<T>(item, tick));
+	}
+
+	/**
+	 * Advance the wheel to specified time
+	 *
+	 * @return
+	 * 			items expired at specified time
+	 */
+	public synchronized Collection<T> advance(long time) {
+		Collection<T> expired = new ArrayList<>();
+		long tick = getTick(time);
+		long fromTick = Math.max(currentTick, tick - slots.size() + 1);
+		for (long i=fromTick; i<=tick; i++) {
+			for (Iterator<Timeout<T>> it = slots.get((int) (i % slots.size())).iterator(); it.hasNext();) {
+				Timeout<T> timeout = it.next();
+				if (timeout.tick <= tick) {
+					expired.add(timeout.item);
+					it.remove();
+				}
+			}
+		}
+		if (tick >= currentTick)
+			currentTick = tick + 1;
+		return expired;
+	}
+
+	private static class Timeout<T> {
+
+		final T item;
+
+		final long tick;
+
+		Timeout(T item, long tick) {
+			this.item = item;
+			this.tick = tick;
+		}
+
+	}
+
+}
@@ -28,9 +28,13 @@ public class BuildProcessor extends ReferenceParser implements MarkdownProcessor
 	protected String toHtml(ProjectScopedNumber referenceable, String referenceText) {
 		CharSequence url = RequestCycle.get().urlFor(
 				BuildDashboardPage.class, BuildDashboardPage.paramsOf(referenceable)); 
-		Build build = OneDev.getInstance(BuildManager.class).find(referenceable);
-		if (build != null && build.getVersion() != null)
-			referenceText += " (" + HtmlEscape.escapeHtml5(build.getVersion()) + ")";
+		String version = RequestScopedLookups.lookup("build-version:" + referenceable.getProject().getId() + ":" + referenceable.getNumber(), 
+				() -> {
+					Build build = OneDev.getInstance(BuildManager.class).find(referenceable);
+					return build != null? build.getVersion(): null;
+				});
+		if (version != null)
+			referenceText += " (" + HtmlEscape.escapeHtml5(version) + ")";
 		return String.format("<a href='%s' class='build reference' data-reference='%s'>%s</a>", 
 				url, referenceable.toString(), referenceText);
 	}
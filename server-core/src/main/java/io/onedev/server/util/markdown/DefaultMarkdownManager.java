@@ -1,8 +1,14 @@
 package io.onedev.server.util.markdown;
 
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -10,8 +16,16 @@ import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.text.StringEscapeUtils;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.eclipse.jgit.lib.ObjectId;
+import org.hibernate.CallbackException;
+import org.hibernate.type.Type;
 import org.jsoup.nodes.Document;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.vladsch.flexmark.Extension;
 import com.vladsch.flexmark.ast.Node;
 import com.vladsch.flexmark.ext.anchorlink.AnchorLinkExtension;
@@ -26,24 +40,69 @@ import com.vladsch.flexmark.parser.ParserEmulationProfile;
 import com.vladsch.flexmark.util.options.MutableDataHolder;
 import com.vladsch.flexmark.util.options.MutableDataSet;
 
+import io.onedev.commons.launcher.loader.Listen;
 import io.onedev.commons.utils.HtmlUtils;
+import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.build.BuildUpdated;
+import io.onedev.server.event.entity.EntityPersisted;
+import io.onedev.server.event.entity.EntityRemoved;
+import io.onedev.server.model.Build;
 import io.onedev.server.model.Project;
+import io.onedev.server.model.User;
+import io.onedev.server.persistence.PersistListener;
+import io.onedev.server.persistence.TransactionManager;
 
 @Singleton
-public class DefaultMarkdownManager implements MarkdownManager {
+public class DefaultMarkdownManager implements MarkdownManager, PersistListener {
+	
+	// Bound memory usage by total number of cached html characters
+	private static final int MAX_CACHED_CHARS = 20000000;
 	
 	private final Set<Extension> contributedExtensions;
 	
 	private final Set<MarkdownProcessor> htmlTransformers;
 	
+	private final TransactionManager transactionManager;
+	
+	private final Cache<HashCode, String> renderCache = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_CACHED_CHARS)
+			.weigher((HashCode key, String html) -> html.length())
+			.build();
+	
+	private final Cache<HashCode, String> processCache = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_CACHED_CHARS)
+			.weigher((HashCode key, String html) -> html.length())
+			.build();
+	
+	/*
+	 * Increased after commit of changes affecting references generated by markdown processors, 
+	 * that is creation, removal and rename of projects and users, and change of build versions, 
+	 * so that processed html cached before the change will not be used
+	 */
+	private final AtomicLong processorVersion = new AtomicLong(0);
+	
+	/*
+	 * Increased per project when new commits are pushed, as commit references are only checked 
+	 * against the project being processed
+	 */
+	private final Map<Long, Long> commitVersions = new ConcurrentHashMap<>();
+	
+	private volatile Parser parser;
+	
+	private volatile HtmlRenderer htmlRenderer;
+	
 	@Inject
-	public DefaultMarkdownManager(Set<Extension> contributedExtensions, Set<MarkdownProcessor> htmlTransformers) {
+	public DefaultMarkdownManager(Set<Extension> contributedExtensions, Set<MarkdownProcessor> htmlTransformers, 
+			TransactionManager transactionManager) {
 		this.contributedExtensions = contributedExtensions;
 		this.htmlTransformers = htmlTransformers;
+		this.transactionManager = transactionManager;
 	}
-
-	@Override
-	public String render(String markdown) {
+	
+	/*
+	 * Parser and renderer are immutable and thread-safe once built, so we build them only once
+	 */
+	private void buildParserAndRenderer() {
 		List<Extension> extensions = new ArrayList<>();
 		extensions.add(AnchorLinkExtension.create());
 		extensions.add(TablesExtension.create());
@@ -66,12 +125,36 @@ public class DefaultMarkdownManager implements MarkdownManager {
 				.set(TablesExtension.HEADER_SEPARATOR_COLUMN_MATCH, true)
 				.set(Parser.EXTENSIONS, extensions);
 
-		Parser parser = Parser.builder(options).build();
+		htmlRenderer = HtmlRenderer.builder(options).build();
+		parser = Parser.builder(options).build();
+	}
+	
+	/*
+	 * Urls generated while rendering and processing are relative to base url of current request
+	 */
+	private String getBaseUrl() {
+		RequestCycle requestCycle = RequestCycle.get();
+		if (requestCycle != null)
+			return requestCycle.getUrlRenderer().getBaseUrl().toString();
+		else
+			return "";
+	}
 
-		HtmlRenderer htmlRenderer = HtmlRenderer.builder(options).build();
-		
-		Node document = parser.parse(markdown);
-		return htmlRenderer.render(document);
+	@Override
+	public String render(String markdown) {
+		HashCode key = Hashing.sha256().newHasher()
+				.putString(getBaseUrl(), StandardCharsets.UTF_8)
+				.putString(markdown, StandardCharsets.UTF_8)
+				.hash();
+		String html = renderCache.getIfPresent(key);
+		if (html == null) {
+			if (parser == null)
+				buildParserAndRenderer();
+			Node document = parser.parse(markdown);
+			html = htmlRenderer.render(document);
+			renderCache.put(key, html);
+		}
+		return html;
 	}
 
 	@Override
@@ -89,9 +172,105 @@ public class DefaultMarkdownManager implements MarkdownManager {
 		return document;
 	}
 
+	/*
+	 * Processed html is only cached without context, as processors may generate different html 
+	 * for different contexts. Without context, output of processors is only affected by current 
+	 * request url, and changes causing processor version or commit version of the project to 
+	 * increase
+	 */
 	@Override
 	public String process(String html, Project project, Object context) {
-		return process(HtmlUtils.parse(html), project, context).body().html();
+		if (context == null && RequestCycle.get() != null) {
+			long version = processorVersion.get();
+			long commitVersion = project != null? commitVersions.getOrDefault(project.getId(), 0L): 0;
+			HashCode key = Hashing.sha256().newHasher()
+					.putLong(version)
+					.putLong(commitVersion)
+					.putLong(project != null? project.getId(): 0)
+					.putString(getBaseUrl(), StandardCharsets.UTF_8)
+					.putString(html, StandardCharsets.UTF_8)
+					.hash();
+			String processed = processCache.getIfPresent(key);
+			if (processed == null) {
+				processed = process(HtmlUtils.parse(html), project, context).body().html();
+				processCache.put(key, processed);
+			}
+			return processed;
+		} else {
+			return process(HtmlUtils.parse(html), project, context).body().html();
+		}
+	}
+
+	private void increaseProcessorVersionAfterCommit() {
+		transactionManager.runAfterCommit(new Runnable() {
+
+			@Override
+			public void run() {
+				processorVersion.incrementAndGet();
+			}
+			
+		});
+	}
+	
+	@Listen
+	public void on(EntityPersisted event) {
+		if (event.isNew() && (event.getEntity() instanceof Project || event.getEntity() instanceof User))
+			increaseProcessorVersionAfterCommit();
+	}
+	
+	@Listen
+	public void on(EntityRemoved event) {
+		if (event.getEntity() instanceof Project || event.getEntity() instanceof User 
+				|| event.getEntity() instanceof Build && ((Build) event.getEntity()).getVersion() != null) {
+			increaseProcessorVersionAfterCommit();
+		}
+	}
+	
+	@Listen
+	public void on(BuildUpdated event) {
+		increaseProcessorVersionAfterCommit();
+	}
+	
+	@Listen
+	public void on(RefUpdated event) {
+		if (!event.getNewCommitId().equals(ObjectId.zeroId()))
+			commitVersions.merge(event.getProject().getId(), 1L, Long::sum);
+	}
+
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+			throws CallbackException {
+		return false;
+	}
+
+	/*
+	 * Renames are only detectable here, as entity events do not carry previous state
+	 */
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+			String[] propertyNames, Type[] types) throws CallbackException {
+		if (entity instanceof Project || entity instanceof User) {
+			String nameProperty = entity instanceof Project? Project.PROP_NAME: User.PROP_NAME;
+			for (int i=0; i<propertyNames.length; i++) {
+				if (propertyNames[i].equals(nameProperty)) {
+					if (previousState == null || !Objects.equals(previousState[i], currentState[i]))
+						increaseProcessorVersionAfterCommit();
+					break;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+			throws CallbackException {
+		return false;
+	}
+
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+			throws CallbackException {
 	}
 
 }
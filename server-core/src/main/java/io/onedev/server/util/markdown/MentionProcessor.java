@@ -16,7 +16,8 @@ public class MentionProcessor extends MentionParser implements MarkdownProcessor
 
 	@Override
 	protected String toHtml(String userName) {
-		if (RequestCycle.get() != null && OneDev.getInstance(UserManager.class).findByName(userName) != null) {
+		if (RequestCycle.get() != null && RequestScopedLookups.lookup("user:" + userName, 
+				() -> OneDev.getInstance(UserManager.class).findByName(userName)) != null) {
 			return String.format("<a class='reference mention' data-reference='%s'>@%s</a>", 
 					userName, userName);
 		} else {
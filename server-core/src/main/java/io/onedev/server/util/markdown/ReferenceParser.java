@@ -76,7 +76,8 @@ public class ReferenceParser {
 
 				Project referenceProject;
 				if (referenceProjectName != null) {
-					referenceProject = OneDev.getInstance(ProjectManager.class).find(referenceProjectName);
+					referenceProject = RequestScopedLookups.lookup("project:" + referenceProjectName, 
+							() -> OneDev.getInstance(ProjectManager.class).find(referenceProjectName));
 					referenceText += referenceProjectName;
 				} else {
 					referenceProject = project;
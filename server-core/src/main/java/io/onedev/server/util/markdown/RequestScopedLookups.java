@@ -0,0 +1,42 @@
+package io.onedev.server.util.markdown;
+
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Memorize entity lookups of markdown processors in current request, so that an entity 
+ * referenced many times in a page is only looked up once 
+ */
+class RequestScopedLookups {
+
+	private static final MetaDataKey<HashMap<String, Optional<Object>>> LOOKUPS = 
+			new MetaDataKey<HashMap<String, Optional<Object>>>(){};
+	
+	@SuppressWarnings("unchecked")
+	@Nullable
+	static <T> T lookup(String key, Supplier<T> loader) {
+		RequestCycle requestCycle = RequestCycle.get();
+		if (requestCycle != null) {
+			HashMap<String, Optional<Object>> lookups = requestCycle.getMetaData(LOOKUPS);
+			if (lookups == null) {
+				lookups = new HashMap<>();
+				requestCycle.setMetaData(LOOKUPS, lookups);
+			}
+			Optional<Object> value = lookups.get(key);
+			if (value == null) {
+				value = Optional.ofNullable(loader.get());
+				lookups.put(key, value);
+			}
+			return (T) value.orElse(null);
+		} else {
+			return loader.get();
+		}
+	}
+	
+}
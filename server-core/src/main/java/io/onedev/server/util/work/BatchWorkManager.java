@@ -1,9 +1,16 @@
 package io.onedev.server.util.work;
 
+import java.util.List;
+
 import io.onedev.server.util.concurrent.Prioritized;
 
 public interface BatchWorkManager {
 
 	void submit(BatchWorker worker, Prioritized work);
+	
+	/**
+	 * Get metrics of workers having queued or running works
+	 */
+	List<BatchWorkerMetrics> getMetrics();
 
 }
@@ -11,20 +11,45 @@ import io.onedev.server.util.concurrent.Prioritized;
 
 public abstract class BatchWorker {
 	
+	private final String group;
+	
 	private final String id;
 	
 	private final int maxBatchSize;
 	
-	public BatchWorker(String id, int maxBatchSize) {
+	/**
+	 * @param group
+	 * 			group of this worker. Batch work manager schedules works fairly between 
+	 * 			groups, so that workers of a busy group (for instance a project receiving 
+	 * 			large pushes) will not starve workers of other groups
+	 * @param id
+	 * 			id of this worker
+	 * @param maxBatchSize
+	 * 			max number of works to be processed in a single batch
+	 */
+	public BatchWorker(String group, String id, int maxBatchSize) {
+		this.group = group;
 		this.id = id;
 		Preconditions.checkArgument(maxBatchSize>=1);
 		this.maxBatchSize = maxBatchSize;
 	}
 	
+	public BatchWorker(String group, String id) {
+		this(group, id, Integer.MAX_VALUE);
+	}
+	
+	public BatchWorker(String id, int maxBatchSize) {
+		this(id, id, maxBatchSize);
+	}
+	
 	public BatchWorker(String id) {
 		this(id, Integer.MAX_VALUE);
 	}
 	
+	public String getGroup() {
+		return group;
+	}
+	
 	public String getId() {
 		return id;
 	}
@@ -0,0 +1,104 @@
+package io.onedev.server.util.work;
+
+import java.io.Serializable;
+
+public class BatchWorkerMetrics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String group;
+
+	private final String workerId;
+
+	private final int queueDepth;
+
+	private final boolean working;
+
+	private final long oldestWaitTime;
+
+	private final long executedBatches;
+
+	private final long executedWorks;
+
+	private final long averageWaitTime;
+
+	private final long averageExecutionTime;
+
+	private final long maxExecutionTime;
+
+	public BatchWorkerMetrics(String group, String workerId, int queueDepth, boolean working,
+			long oldestWaitTime, long executedBatches, long executedWorks, long averageWaitTime,
+			long averageExecutionTime, long maxExecutionTime) {
+		this.group = group;
+		this.workerId = workerId;
+		this.queueDepth = queueDepth;
+		this.working = working;
+		this.oldestWaitTime = oldestWaitTime;
+		this.executedBatches = executedBatches;
+		this.executedWorks = executedWorks;
+		this.averageWaitTime = averageWaitTime;
+		this.averageExecutionTime = averageExecutionTime;
+		this.maxExecutionTime = maxExecutionTime;
+	}
+
+	public String getGroup() {
+		return group;
+	}
+
+	public String getWorkerId() {
+		return workerId;
+	}
+
+	/**
+	 * @return
+	 * 			number of works queued and not yet dispatched
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return
+	 * 			whether or not a batch of this worker is being executed
+	 */
+	public boolean isWorking() {
+		return working;
+	}
+
+	/**
+	 * @return
+	 * 			milliseconds the oldest queued work has been waiting
+	 */
+	public long getOldestWaitTime() {
+		return oldestWaitTime;
+	}
+
+	public long getExecutedBatches() {
+		return executedBatches;
+	}
+
+	public long getExecutedWorks() {
+		return executedWorks;
+	}
+
+	/**
+	 * @return
+	 * 			average milliseconds between submission and dispatch of executed works
+	 */
+	public long getAverageWaitTime() {
+		return averageWaitTime;
+	}
+
+	/**
+	 * @return
+	 * 			average milliseconds spent executing a batch
+	 */
+	public long getAverageExecutionTime() {
+		return averageExecutionTime;
+	}
+
+	public long getMaxExecutionTime() {
+		return maxExecutionTime;
+	}
+
+}
@@ -1,12 +1,25 @@
 package io.onedev.server.util.work;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
@@ -24,30 +37,53 @@ import io.onedev.server.security.SecurityUtils;
 import io.onedev.server.util.concurrent.Prioritized;
 import io.onedev.server.util.concurrent.PrioritizedRunnable;
 
+/**
+ * Works are queued per worker, and dispatched to work executor by a single dispatcher
+ * thread. Workers are grouped (normally by project), and groups are served fairly in number 
+ * of works: the ready group having been served least works is dispatched first, so that a 
+ * group submitting lots of works or large batches does not starve other groups. A group 
+ * keeps its served works until all works of its workers are done, and a group becoming 
+ * ready does not get credit for the time it was idle. Submitting works does not block on 
+ * any global lock.
+ */
 @Singleton
 public class DefaultBatchWorkManager implements BatchWorkManager, Runnable {
 
 	private static final Logger logger = LoggerFactory.getLogger(DefaultBatchWorkManager.class);
+
+	/*
+	 * Keep a few more batches than processors in executor so that priorities still take effect. 
+	 * Batches executing longer than LONG_BATCH_THRESHOLD do not count, so that a few long 
+	 * batches do not block dispatching of all other works 
+	 */
+	private static final int MAX_DISPATCHED_BATCHES = Runtime.getRuntime().availableProcessors() * 2;
 	
+	private static final long LONG_BATCH_THRESHOLD = 5000;
+
 	private final WorkExecutor workExecutor;
-	
-	private final Map<BatchWorker, Works> works = new HashMap<>();
-	
-	private Thread thread;
-	
+
+	private final Map<BatchWorker, Works> works = new ConcurrentHashMap<>();
+
+	// Works with state changed which should be examined by dispatcher thread
+	private final BlockingQueue<Works> changes = new LinkedBlockingQueue<>();
+
+	private final AtomicInteger dispatchedBatches = new AtomicInteger(0);
+
+	// Below fields are only accessed from dispatcher thread
+	private final Map<String, Group> groups = new HashMap<>();
+
+	// Groups having ready works, ordered by served works
+	private final Queue<Group> readyGroups = new PriorityQueue<>(Comparator.comparingLong(it -> it.served));
+
+	// Served works of last dispatched group
+	private long virtualTime;
+
+	private volatile Thread thread;
+
 	@Inject
 	public DefaultBatchWorkManager(WorkExecutor workExecutor) {
 		this.workExecutor = workExecutor;
 	}
-	
-	private Works getWorks(BatchWorker worker) {
-		Works worksOfWorker = works.get(worker);
-		if (worksOfWorker == null) {
-			worksOfWorker = new Works();
-			works.put(worker, worksOfWorker);
-		}
-		return worksOfWorker;
-	}
 
 	@Listen
 	public void on(SystemStarted event) {
@@ -56,71 +92,221 @@ public class DefaultBatchWorkManager implements BatchWorkManager, Runnable {
 	}
 
 	@Listen
-	public synchronized void on(SystemStopping event) {
+	public void on(SystemStopping event) {
+		Thread copy = thread;
 		thread = null;
-		notify();
+		if (copy != null)
+			copy.interrupt();
 	}
 
 	@Override
-	public synchronized void run() {
+	public void run() {
 		while (thread != null) {
-			for (Iterator<Map.Entry<BatchWorker, Works>> it = works.entrySet().iterator(); it.hasNext();) {
-				Map.Entry<BatchWorker, Works> entry = it.next();
-				BatchWorker worker = entry.getKey();
-				Works works = entry.getValue();
-				if (works.working.isEmpty()) {
-					works.queued.drainTo(works.working, worker.getMaxBatchSize());
-					if (!works.working.isEmpty()) {
-						double priority = works.working.stream().collect(Collectors.averagingInt(Prioritized::getPriority));
-						workExecutor.execute(new PrioritizedRunnable((int)priority) {
-							
-							@Override
-							public void run() {
-								try {
-									worker.doWorks(works.working);
-								} catch (Exception e) {
-									logger.error("Error doing works", e);
-								} finally {
-									synchronized(DefaultBatchWorkManager.this) {
-										works.working.clear();
-										DefaultBatchWorkManager.this.notify();
-									}
-								}
-							}
-							
-						});
-					} else {
-						it.remove();
-					}
-				}
-			}
 			try {
-				wait();
+				Works changed = changes.poll(LONG_BATCH_THRESHOLD, TimeUnit.MILLISECONDS);
+				while (changed != null) {
+					examine(changed);
+					changed = changes.poll();
+				}
+				releaseLongBatches();
+				dispatch();
 			} catch (InterruptedException e) {
+			} catch (Exception e) {
+				logger.error("Error dispatching works", e);
 			}
 		}
 	}
 
+	private void examine(Works worksOfWorker) {
+		if (!worksOfWorker.working && !worksOfWorker.ready) {
+			String groupId = worksOfWorker.worker.getGroup();
+			Group group = groups.get(groupId);
+			if (!worksOfWorker.queued.isEmpty()) {
+				worksOfWorker.ready = true;
+				if (group == null) {
+					group = new Group();
+					groups.put(groupId, group);
+				}
+				if (group.ready.isEmpty()) {
+					// Keep works served more than others, but do not give credit for being idle
+					group.served = Math.max(group.served, virtualTime);
+					readyGroups.add(group);
+				}
+				group.ready.add(worksOfWorker);
+				group.members.add(worksOfWorker);
+			} else {
+				if (group != null) {
+					group.members.remove(worksOfWorker);
+					if (group.members.isEmpty())
+						groups.remove(groupId);
+				}
+				works.computeIfPresent(worksOfWorker.worker,
+						(key, value) -> value == worksOfWorker && value.queued.isEmpty()? null: value);
+			}
+		}
+	}
+
+	private void dispatch() {
+		while (dispatchedBatches.get() < MAX_DISPATCHED_BATCHES && !readyGroups.isEmpty()) {
+			Group group = readyGroups.remove();
+			virtualTime = Math.max(virtualTime, group.served);
+			Works worksOfWorker = group.ready.remove();
+			worksOfWorker.ready = false;
+			group.served += dispatch(worksOfWorker);
+			if (!group.ready.isEmpty())
+				readyGroups.add(group);
+		}
+	}
+	
+	private void releaseLongBatches() {
+		long now = System.currentTimeMillis();
+		for (Works worksOfWorker: works.values()) {
+			long startTime = worksOfWorker.executionStartTime;
+			if (startTime != 0 && now - startTime >= LONG_BATCH_THRESHOLD 
+					&& worksOfWorker.counted.compareAndSet(true, false)) {
+				dispatchedBatches.decrementAndGet();
+			}
+		}
+	}
+
+	private int dispatch(Works worksOfWorker) {
+		List<QueuedWork> batch = new ArrayList<>();
+		worksOfWorker.queued.drainTo(batch, worksOfWorker.worker.getMaxBatchSize());
+
+		long dispatchTime = System.currentTimeMillis();
+		for (QueuedWork work: batch)
+			worksOfWorker.totalWaitTime.addAndGet(dispatchTime - work.submitTime);
+
+		worksOfWorker.working = true;
+		worksOfWorker.counted.set(true);
+		dispatchedBatches.incrementAndGet();
+
+		double priority = batch.stream().collect(Collectors.averagingInt(Prioritized::getPriority));
+		workExecutor.execute(new PrioritizedRunnable((int)priority) {
+
+			@Override
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				worksOfWorker.executionStartTime = startTime;
+				try {
+					worksOfWorker.worker.doWorks(batch.stream().map(it->it.work).collect(Collectors.toList()));
+				} catch (Exception e) {
+					logger.error("Error doing works", e);
+				} finally {
+					long executionTime = System.currentTimeMillis() - startTime;
+					worksOfWorker.executedBatches.incrementAndGet();
+					worksOfWorker.executedWorks.addAndGet(batch.size());
+					worksOfWorker.totalExecutionTime.addAndGet(executionTime);
+					worksOfWorker.maxExecutionTime.accumulateAndGet(executionTime, Math::max);
+					worksOfWorker.executionStartTime = 0;
+					worksOfWorker.working = false;
+					if (worksOfWorker.counted.compareAndSet(true, false))
+						dispatchedBatches.decrementAndGet();
+					changes.offer(worksOfWorker);
+				}
+			}
+
+		});
+		return batch.size();
+	}
+
 	@Override
-	public synchronized void submit(BatchWorker worker, Prioritized work) {
+	public void submit(BatchWorker worker, Prioritized work) {
 		Subject subject = SecurityUtils.getSubject();
-		getWorks(new BatchWorker(worker.getId(), worker.getMaxBatchSize()) {
+		QueuedWork queuedWork = new QueuedWork(work);
+		Works worksOfWorker = works.compute(worker, (key, value) -> {
+			if (value == null) {
+				value = new Works(new BatchWorker(worker.getGroup(), worker.getId(), worker.getMaxBatchSize()) {
 
-			@Override
-			public void doWorks(Collection<Prioritized> works) {
-				ThreadContext.bind(subject);
-				worker.doWorks(works);
+					@Override
+					public void doWorks(Collection<Prioritized> works) {
+						ThreadContext.bind(subject);
+						worker.doWorks(works);
+					}
+
+				});
 			}
-			
-		}).queued.offer(work);
-		
-		notify();
+			value.queued.offer(queuedWork);
+			return value;
+		});
+		changes.offer(worksOfWorker);
+	}
+
+	@Override
+	public List<BatchWorkerMetrics> getMetrics() {
+		long now = System.currentTimeMillis();
+		List<BatchWorkerMetrics> metrics = new ArrayList<>();
+		for (Works worksOfWorker: works.values()) {
+			long oldestSubmitTime = now;
+			for (QueuedWork work: worksOfWorker.queued)
+				oldestSubmitTime = Math.min(oldestSubmitTime, work.submitTime);
+			long executedBatches = worksOfWorker.executedBatches.get();
+			long executedWorks = worksOfWorker.executedWorks.get();
+			metrics.add(new BatchWorkerMetrics(worksOfWorker.worker.getGroup(),
+					worksOfWorker.worker.getId(), worksOfWorker.queued.size(),
+					worksOfWorker.working, now - oldestSubmitTime, executedBatches, executedWorks,
+					executedWorks != 0? worksOfWorker.totalWaitTime.get() / executedWorks: 0,
+					executedBatches != 0? worksOfWorker.totalExecutionTime.get() / executedBatches: 0,
+					worksOfWorker.maxExecutionTime.get()));
+		}
+		return metrics;
+	}
+
+	private static class QueuedWork extends Prioritized {
+
+		final Prioritized work;
+
+		final long submitTime = System.currentTimeMillis();
+
+		QueuedWork(Prioritized work) {
+			super(work.getPriority());
+			this.work = work;
+		}
+
 	}
 
 	private static class Works {
-		BlockingQueue<Prioritized> queued = new PriorityBlockingQueue<>();
-		
-		Collection<Prioritized> working = new ArrayList<>();
+
+		final BatchWorker worker;
+
+		final BlockingQueue<QueuedWork> queued = new PriorityBlockingQueue<>();
+
+		volatile boolean working;
+
+		// Start time of executing batch, or 0 if no batch is executing
+		volatile long executionStartTime;
+
+		// Whether or not dispatched batch of this is counted in dispatched batches
+		final AtomicBoolean counted = new AtomicBoolean(false);
+
+		// Whether or not this is in ready list of its group. Only accessed from dispatcher thread
+		boolean ready;
+
+		final AtomicLong executedBatches = new AtomicLong(0);
+
+		final AtomicLong executedWorks = new AtomicLong(0);
+
+		final AtomicLong totalWaitTime = new AtomicLong(0);
+
+		final AtomicLong totalExecutionTime = new AtomicLong(0);
+
+		final AtomicLong maxExecutionTime = new AtomicLong(0);
+
+		Works(BatchWorker worker) {
+			this.worker = worker;
+		}
+
+	}
+
+	private static class Group {
+
+		final Deque<Works> ready = new ArrayDeque<>();
+
+		// Works of this group which are either ready or working
+		final Set<Works> members = new HashSet<>();
+
+		long served;
+
 	}
 
 }
@@ -3,6 +3,7 @@ package io.onedev.server.web.component.issue.list;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -55,6 +56,7 @@ import io.onedev.server.OneDev;
 import io.onedev.server.entitymanager.IssueManager;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.entitymanager.SettingManager;
+import io.onedev.server.infomanager.UserInfoManager;
 import io.onedev.server.model.Issue;
 import io.onedev.server.model.Project;
 import io.onedev.server.model.User;
@@ -131,6 +133,9 @@ public abstract class IssueListPanel extends Panel {
 	
 	private boolean querySubmitted = true;
 	
+	// Visit dates of issues in current page, loaded in one go to mark unread issues
+	private Map<Long, Date> visitDates;
+	
 	public IssueListPanel(String id, IModel<String> queryModel) {
 		super(id);
 		this.queryStringModel = queryModel;
@@ -144,6 +149,7 @@ public abstract class IssueListPanel extends Panel {
 	protected void onDetach() {
 		queryStringModel.detach();
 		queryModel.detach();
+		visitDates = null;
 		super.onDetach();
 	}
 	
@@ -602,8 +608,12 @@ public abstract class IssueListPanel extends Panel {
 			@Override
 			public Iterator<? extends Issue> iterator(long first, long count) {
 				try {
-					return getIssueManager().query(getProject(), queryModel.getObject(), 
-							(int)first, (int)count, true).iterator();
+					List<Issue> issues = getIssueManager().query(getProject(), queryModel.getObject(), 
+							(int)first, (int)count, true);
+					User user = SecurityUtils.getUser();
+					if (user != null)
+						visitDates = OneDev.getInstance(UserInfoManager.class).getIssueVisitDates(user, issues);
+					return issues.iterator();
 				} catch (ExplicitException e) {
 					error(e.getMessage());
 					return new ArrayList<Issue>().iterator();
@@ -782,8 +792,15 @@ public abstract class IssueListPanel extends Panel {
 			protected Item<Issue> newRowItem(String id, int index, IModel<Issue> model) {
 				Item<Issue> item = super.newRowItem(id, index, model);
 				Issue issue = model.getObject();
-				item.add(AttributeAppender.append("class", 
-						issue.isVisitedAfter(issue.getLastUpdate().getDate())?"issue":"issue new"));
+				Date lastUpdateDate = issue.getLastUpdate().getDate();
+				boolean visited;
+				if (visitDates != null) {
+					Date visitDate = visitDates.get(issue.getId());
+					visited = visitDate != null && visitDate.getTime() > lastUpdateDate.getTime();
+				} else {
+					visited = issue.isVisitedAfter(lastUpdateDate);
+				}
+				item.add(AttributeAppender.append("class", visited?"issue":"issue new"));
 				return item;
 			}
 			
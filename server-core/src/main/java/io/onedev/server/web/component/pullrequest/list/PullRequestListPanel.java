@@ -4,8 +4,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -51,6 +53,7 @@ import io.onedev.server.OneDev;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.entitymanager.PullRequestManager;
 import io.onedev.server.entitymanager.PullRequestReviewManager;
+import io.onedev.server.infomanager.UserInfoManager;
 import io.onedev.server.model.Project;
 import io.onedev.server.model.PullRequest;
 import io.onedev.server.model.PullRequestReview;
@@ -115,6 +118,9 @@ public abstract class PullRequestListPanel extends Panel {
 	
 	private boolean querySubmitted = true;
 	
+	// Visit dates of pull requests in current page, loaded in one go to mark unread pull requests
+	private Map<Long, Date> visitDates;
+	
 	public PullRequestListPanel(String id, IModel<String> queryModel) {
 		super(id);
 		this.queryStringModel = queryModel;
@@ -161,6 +167,7 @@ public abstract class PullRequestListPanel extends Panel {
 	protected void onDetach() {
 		queryStringModel.detach();
 		queryModel.detach();
+		visitDates = null;
 		super.onDetach();
 	}
 	
@@ -502,8 +509,12 @@ public abstract class PullRequestListPanel extends Panel {
 			@Override
 			public Iterator<? extends PullRequest> iterator(long first, long count) {
 				try {
-					return getPullRequestManager().query(getProject(), queryModel.getObject(), 
-							(int)first, (int)count, true, true).iterator();
+					List<PullRequest> requests = getPullRequestManager().query(getProject(), queryModel.getObject(), 
+							(int)first, (int)count, true, true);
+					User user = SecurityUtils.getUser();
+					if (user != null)
+						visitDates = OneDev.getInstance(UserInfoManager.class).getPullRequestVisitDates(user, requests);
+					return requests.iterator();
 				} catch (ExplicitException e) {
 					error(e.getMessage());
 					return new ArrayList<PullRequest>().iterator();
@@ -544,8 +555,15 @@ public abstract class PullRequestListPanel extends Panel {
 			protected Item<PullRequest> newRowItem(String id, int index, IModel<PullRequest> model) {
 				Item<PullRequest> item = super.newRowItem(id, index, model);
 				PullRequest request = model.getObject();
-				item.add(AttributeAppender.append("class", 
-						request.isVisitedAfter(request.getLastUpdate().getDate())?"request":"request new"));
+				Date lastUpdateDate = request.getLastUpdate().getDate();
+				boolean visited;
+				if (visitDates != null) {
+					Date visitDate = visitDates.get(request.getId());
+					visited = visitDate != null && visitDate.getTime() > lastUpdateDate.getTime();
+				} else {
+					visited = request.isVisitedAfter(lastUpdateDate);
+				}
+				item.add(AttributeAppender.append("class", visited?"request":"request new"));
 				return item;
 			}
 			
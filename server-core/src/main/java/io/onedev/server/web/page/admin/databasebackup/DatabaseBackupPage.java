@@ -1,6 +1,5 @@
 package io.onedev.server.web.page.admin.databasebackup;
 
-import java.io.File;
 import java.io.IOException;
 
 import org.apache.tika.mime.MimeTypes;
@@ -11,8 +10,6 @@ import org.apache.wicket.markup.html.link.ResourceLink;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
 import org.apache.wicket.request.resource.AbstractResource;
 
-import io.onedev.commons.utils.FileUtils;
-import io.onedev.commons.utils.ZipUtils;
 import io.onedev.server.OneDev;
 import io.onedev.server.entitymanager.SettingManager;
 import io.onedev.server.persistence.PersistManager;
@@ -57,14 +54,8 @@ public class DatabaseBackupPage extends AdministrationPage {
 
 					@Override
 					public void writeData(Attributes attributes) throws IOException {
-						File tempDir = FileUtils.createTempDir("backup");
-						try {
-							PersistManager persistManager = OneDev.getInstance(PersistManager.class);
-							persistManager.exportData(tempDir);
-							ZipUtils.zip(tempDir, attributes.getResponse().getOutputStream());
-						} finally {
-							FileUtils.deleteDir(tempDir);
-						}
+						PersistManager persistManager = OneDev.getInstance(PersistManager.class);
+						persistManager.exportData(attributes.getResponse().getOutputStream());
 					}				
 				});
 
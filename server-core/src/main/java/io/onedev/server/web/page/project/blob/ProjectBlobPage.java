@@ -68,6 +68,7 @@ import io.onedev.server.git.BlobContent;
 import io.onedev.server.git.BlobEdits;
 import io.onedev.server.git.BlobIdent;
 import io.onedev.server.git.GitUtils;
+import io.onedev.server.git.RefCache;
 import io.onedev.server.git.exception.BlobEditException;
 import io.onedev.server.git.exception.NotTreeException;
 import io.onedev.server.git.exception.ObjectAlreadyExistsException;
@@ -1266,6 +1267,7 @@ public class ProjectBlobPage extends ProjectPage implements BlobRenderContext, S
 		}
 		String branch = state.blobIdent.revision;
 		
+		OneDev.getInstance(RefCache.class).invalidate(project.getId());
 		getProject().cacheObjectId(branch, refUpdated.getNewCommitId());
 
 		Long projectId = project.getId();
@@ -1,5 +1,6 @@
 package io.onedev.server.web.websocket;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
@@ -8,6 +9,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -26,8 +28,6 @@ import org.quartz.SimpleScheduleBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Sets;
-
 import io.onedev.commons.launcher.loader.Listen;
 import io.onedev.commons.utils.StringUtils;
 import io.onedev.server.event.system.SystemStarted;
@@ -38,11 +38,20 @@ import io.onedev.server.util.schedule.SchedulableTask;
 import io.onedev.server.util.schedule.TaskScheduler;
 import io.onedev.server.web.page.base.BasePage;
 
+/**
+ * Pages observing each observable are indexed so that a change is only delivered to pages 
+ * observing it. Changes are not sent immediately, but accumulated per page and sent as a 
+ * single message every {@link #COALESCE_WINDOW} milliseconds, with repeated changes of the 
+ * same observable merged. The notifier thread only collects messages, and sending is handed 
+ * to the executor so that a slow connection does not hold up other pages.
+ */
 @Singleton
-public class DefaultWebSocketManager implements WebSocketManager {
+public class DefaultWebSocketManager implements WebSocketManager, Runnable {
 
 	private static final Logger logger = LoggerFactory.getLogger(DefaultWebSocketManager.class);
 	
+	private static final long COALESCE_WINDOW = 100;
+	
 	private final Application application;
 	
 	private final TransactionManager transactionManager;
@@ -57,8 +66,23 @@ public class DefaultWebSocketManager implements WebSocketManager {
 	
 	private final IWebSocketConnectionRegistry connectionRegistry = new SimpleWebSocketConnectionRegistry();
 	
+	private final Map<String, Set<PageKey>> observers = new ConcurrentHashMap<>();
+	
+	// Changed observables waiting to be sent to each page. Notifier thread waits on this
+	private final Map<PageKey, Set<String>> pendingObservables = new ConcurrentHashMap<>();
+	
 	private final Map<String, Date> notifiedObservables = new ConcurrentHashMap<>();
 	
+	private final AtomicLong notifiedChanges = new AtomicLong(0);
+	
+	private final AtomicLong notifiedPages = new AtomicLong(0);
+	
+	private final AtomicLong droppedDuplicates = new AtomicLong(0);
+	
+	private final AtomicLong sentMessages = new AtomicLong(0);
+	
+	private volatile Thread thread;
+	
 	private String keepAliveTaskId;
 
 	private String notifiedObservableCleanupTaskId;
@@ -85,6 +109,15 @@ public class DefaultWebSocketManager implements WebSocketManager {
 			IKey pageKey = new PageIdKey(page.getPageId());
 			Collection<String> observables = page.findWebSocketObservables();
 			Collection<String> prevObservables = sessionPages.put(pageKey, observables);
+			PageKey observer = new PageKey(sessionId, pageKey);
+			if (prevObservables != null) {
+				for (String observable: prevObservables) {
+					if (!observables.contains(observable))
+						removeObserver(observable, observer);
+				}
+			}
+			for (String observable: observables)
+				addObserver(observable, observer);
 			if (prevObservables != null && !prevObservables.containsAll(observables)) {
 				IWebSocketConnection connection = connectionRegistry.getConnection(application, sessionId, pageKey);
 				if (connection != null)
@@ -93,9 +126,32 @@ public class DefaultWebSocketManager implements WebSocketManager {
 		}
 	}
 	
+	private void addObserver(String observable, PageKey observer) {
+		observers.compute(observable, (key, value) -> {
+			if (value == null)
+				value = ConcurrentHashMap.newKeySet();
+			value.add(observer);
+			return value;
+		});
+	}
+	
+	private void removeObserver(String observable, PageKey observer) {
+		observers.computeIfPresent(observable, (key, value) -> {
+			value.remove(observer);
+			return value.isEmpty()? null: value;
+		});
+	}
+	
 	@Override
 	public void onDestroySession(String sessionId) {
-		registeredObservables.remove(sessionId);
+		Map<IKey, Collection<String>> sessionPages = registeredObservables.remove(sessionId);
+		if (sessionPages != null) {
+			for (Map.Entry<IKey, Collection<String>> entry: sessionPages.entrySet()) {
+				PageKey observer = new PageKey(sessionId, entry.getKey());
+				for (String observable: entry.getValue())
+					removeObserver(observable, observer);
+			}
+		}
 	}
 	
 	@Nullable
@@ -128,26 +184,72 @@ public class DefaultWebSocketManager implements WebSocketManager {
 
 			@Override
 			public void run() {
-				executorService.execute(new Runnable() {
-
-					@Override
-					public void run() {
-						notifiedObservables.put(observable, new Date());
-						for (IWebSocketConnection connection: connectionRegistry.getConnections(application)) {
-							Collection<String> registeredObservables = getRegisteredObservables(connection); 
-							if (registeredObservables != null && registeredObservables.contains(observable))
-								notifyObservables(connection, Sets.newHashSet(observable));
-						}
+				notifiedObservables.put(observable, new Date());
+				notifiedChanges.incrementAndGet();
+				Set<PageKey> observersOfObservable = observers.get(observable);
+				if (observersOfObservable != null && !observersOfObservable.isEmpty()) {
+					for (PageKey observer: observersOfObservable) {
+						notifiedPages.incrementAndGet();
+						pendingObservables.compute(observer, (key, value) -> {
+							if (value == null)
+								value = new HashSet<>();
+							if (!value.add(observable))
+								droppedDuplicates.incrementAndGet();
+							return value;
+						});
 					}
-					
-				});
+					synchronized (pendingObservables) {
+						pendingObservables.notify();
+					}
+				}
 			}
 			
 		});
 	}
 	
+	@Override
+	public void run() {
+		while (thread != null) {
+			try {
+				synchronized (pendingObservables) {
+					while (pendingObservables.isEmpty())
+						pendingObservables.wait();
+				}
+				Thread.sleep(COALESCE_WINDOW);
+				for (PageKey observer: new ArrayList<>(pendingObservables.keySet())) {
+					Set<String> observables = pendingObservables.remove(observer);
+					IWebSocketConnection connection = connectionRegistry.getConnection(
+							application, observer.getSessionId(), observer.getPageId());
+					if (connection != null && connection.isOpen()) {
+						sentMessages.incrementAndGet();
+						executorService.execute(new Runnable() {
+
+							@Override
+							public void run() {
+								notifyObservables(connection, observables);
+							}
+							
+						});
+					}
+				}
+			} catch (InterruptedException e) {
+			} catch (Exception e) {
+				logger.error("Error notifying observable changes", e);
+			}
+		}
+	}
+	
+	@Override
+	public WebSocketMetrics getMetrics() {
+		return new WebSocketMetrics(notifiedChanges.get(), notifiedPages.get(), 
+				droppedDuplicates.get(), sentMessages.get(), pendingObservables.size());
+	}
+	
 	@Listen
 	public void on(SystemStarted event) {
+		thread = new Thread(this);
+		thread.start();
+		
 		keepAliveTaskId = taskScheduler.schedule(new SchedulableTask() {
 			
 			@Override
@@ -192,6 +294,10 @@ public class DefaultWebSocketManager implements WebSocketManager {
 
 	@Listen
 	public void on(SystemStopping event) {
+		Thread copy = thread;
+		thread = null;
+		if (copy != null)
+			copy.interrupt();
 		taskScheduler.unschedule(keepAliveTaskId);
 		taskScheduler.unschedule(notifiedObservableCleanupTaskId);
 	}
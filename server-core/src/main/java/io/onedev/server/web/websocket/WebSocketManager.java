@@ -19,4 +19,7 @@ public interface WebSocketManager {
 	void notifyObservableChange(String observable);
 	
 	void onConnect(IWebSocketConnection connection);
+	
+	WebSocketMetrics getMetrics();
+	
 }
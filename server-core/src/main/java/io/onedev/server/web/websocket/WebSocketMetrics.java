@@ -0,0 +1,70 @@
+package io.onedev.server.web.websocket;
+
+import java.io.Serializable;
+
+public class WebSocketMetrics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long notifiedChanges;
+
+	private final long notifiedPages;
+
+	private final long droppedDuplicates;
+
+	private final long sentMessages;
+
+	private final int pendingPages;
+
+	public WebSocketMetrics(long notifiedChanges, long notifiedPages, long droppedDuplicates,
+			long sentMessages, int pendingPages) {
+		this.notifiedChanges = notifiedChanges;
+		this.notifiedPages = notifiedPages;
+		this.droppedDuplicates = droppedDuplicates;
+		this.sentMessages = sentMessages;
+		this.pendingPages = pendingPages;
+	}
+
+	/**
+	 * @return
+	 * 			number of observable changes notified
+	 */
+	public long getNotifiedChanges() {
+		return notifiedChanges;
+	}
+
+	/**
+	 * @return
+	 * 			total fan-out of notified changes, that is, sum of number of pages observing 
+	 * 			each changed observable
+	 */
+	public long getNotifiedPages() {
+		return notifiedPages;
+	}
+
+	/**
+	 * @return
+	 * 			number of page notifications dropped as same observable is already pending 
+	 * 			for the page
+	 */
+	public long getDroppedDuplicates() {
+		return droppedDuplicates;
+	}
+
+	/**
+	 * @return
+	 * 			number of batched messages sent to pages
+	 */
+	public long getSentMessages() {
+		return sentMessages;
+	}
+
+	/**
+	 * @return
+	 * 			number of pages with notifications waiting to be sent
+	 */
+	public int getPendingPages() {
+		return pendingPages;
+	}
+
+}
@@ -0,0 +1,170 @@
+package io.onedev.server.buildspec.job.log;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+import io.onedev.commons.utils.FileUtils;
+
+public class JobLogFileTest {
+
+	private File buildDir;
+
+	@Before
+	public void before() {
+		buildDir = FileUtils.createTempDir();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteDir(buildDir);
+	}
+
+	private List<JobLogEntry> newEntries(int from, int count) {
+		List<JobLogEntry> entries = new ArrayList<>();
+		for (int i=from; i<from+count; i++)
+			entries.add(new JobLogEntry(new Date(1000L + i), "message " + i));
+		return entries;
+	}
+
+	private void assertEntry(int expectedIndex, JobLogEntry entry) {
+		assertEquals("message " + expectedIndex, entry.getMessage());
+		assertEquals(1000L + expectedIndex, entry.getDate().getTime());
+	}
+
+	@Test
+	public void shouldReadAcrossIndexIntervals() {
+		JobLogFile logFile = new JobLogFile(buildDir);
+		assertEquals(0, logFile.count());
+		assertTrue(logFile.read(0, 0).isEmpty());
+
+		int total = JobLogFile.INDEX_INTERVAL*3 + 10;
+		logFile.append(newEntries(0, 100));
+		logFile.append(newEntries(100, total-100));
+
+		assertEquals(total, logFile.count());
+		assertEquals((total+JobLogFile.INDEX_INTERVAL-1)/JobLogFile.INDEX_INTERVAL*Long.BYTES,
+				new File(buildDir, JobLogFile.INDEX_FILE).length());
+
+		List<JobLogEntry> entries = logFile.read(0, 0);
+		assertEquals(total, entries.size());
+		for (int i=0; i<total; i++)
+			assertEntry(i, entries.get(i));
+
+		entries = logFile.read(JobLogFile.INDEX_INTERVAL*2 - 1, 3);
+		assertEquals(3, entries.size());
+		for (int i=0; i<3; i++)
+			assertEntry(JobLogFile.INDEX_INTERVAL*2 - 1 + i, entries.get(i));
+
+		assertTrue(logFile.read(total, 0).isEmpty());
+
+		LogSnippet snippet = logFile.readReversely(5);
+		assertEquals(total-5, snippet.offset);
+		assertEquals(5, snippet.entries.size());
+		assertEntry(total-1, snippet.entries.get(4));
+	}
+
+	@Test
+	public void shouldIgnoreAndOverwritePartialRecord() throws IOException {
+		JobLogFile logFile = new JobLogFile(buildDir);
+		logFile.append(newEntries(0, 10));
+
+		File dataFile = new File(buildDir, JobLogFile.DATA_FILE);
+		long length = dataFile.length();
+		try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+			raf.setLength(length - 3);
+		}
+		assertEquals(9, logFile.count());
+
+		logFile.append(newEntries(9, 2));
+		assertEquals(11, logFile.count());
+		List<JobLogEntry> entries = logFile.read(0, 0);
+		for (int i=0; i<11; i++)
+			assertEntry(i, entries.get(i));
+	}
+
+	@Test
+	public void shouldReadMessagesLargerThanWindow() {
+		JobLogFile logFile = new JobLogFile(buildDir);
+		List<JobLogEntry> entries = new ArrayList<>();
+		String large = Strings.repeat("0123456789", 20000);
+		entries.add(new JobLogEntry(new Date(1), "small"));
+		entries.add(new JobLogEntry(new Date(2), large));
+		entries.add(new JobLogEntry(new Date(3), "中文"));
+		logFile.append(entries);
+
+		entries = logFile.read(0, 0);
+		assertEquals(3, entries.size());
+		assertEquals("small", entries.get(0).getMessage());
+		assertEquals(large, entries.get(1).getMessage());
+		assertEquals("中文", entries.get(2).getMessage());
+	}
+
+	@Test
+	public void shouldSearchRecords() {
+		JobLogFile logFile = new JobLogFile(buildDir);
+		logFile.append(newEntries(0, 1000));
+
+		List<Integer> hits = new ArrayList<>();
+		assertFalse(logFile.search(Pattern.compile("message 9\\d$"), 0, 0, hits));
+		assertEquals(10, hits.size());
+		assertEquals(90, hits.get(0).intValue());
+
+		hits.clear();
+		assertTrue(logFile.search(Pattern.compile("message 9"), 0, 5, hits));
+		assertEquals(5, hits.size());
+
+		hits.clear();
+		logFile.search(Pattern.compile("message 9\\d$"), 1000L + 95, 0, hits);
+		assertEquals(5, hits.size());
+		assertEquals(95, hits.get(0).intValue());
+	}
+
+	@Test
+	public void shouldConvertLegacyLog() throws IOException {
+		File legacyFile = new File(buildDir, JobLogFile.LEGACY_FILE);
+		assertFalse(JobLogFile.convertLegacy(buildDir));
+
+		try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(legacyFile)))) {
+			for (JobLogEntry entry: newEntries(0, 300))
+				oos.writeObject(entry);
+		}
+		// Legacy log is appended with object streams not writing stream header
+		try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(legacyFile, true))) {
+
+			@Override
+			protected void writeStreamHeader() throws IOException {
+				reset();
+			}
+
+		}) {
+			for (JobLogEntry entry: newEntries(300, 20))
+				oos.writeObject(entry);
+		}
+
+		assertTrue(JobLogFile.convertLegacy(buildDir));
+		assertFalse(legacyFile.exists());
+
+		JobLogFile logFile = new JobLogFile(buildDir);
+		assertEquals(320, logFile.count());
+		List<JobLogEntry> entries = logFile.read(0, 0);
+		for (int i=0; i<320; i++)
+			assertEntry(i, entries.get(i));
+	}
+
+}
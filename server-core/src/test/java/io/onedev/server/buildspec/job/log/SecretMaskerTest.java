@@ -0,0 +1,69 @@
+package io.onedev.server.buildspec.job.log;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.onedev.server.model.support.inputspec.SecretInput;
+
+public class SecretMaskerTest {
+
+	private static final String MASK = SecretInput.MASK;
+
+	@Test
+	public void shouldMaskAllOccurrences() {
+		SecretMasker masker = new SecretMasker(Lists.newArrayList("secret", "token"));
+		assertEquals("no words here", masker.mask("no words here"));
+		assertEquals(MASK + " and " + MASK + ", " + MASK, masker.mask("secret and token, secret"));
+		assertEquals("a" + MASK + "b", masker.mask("asecretb"));
+		assertEquals("", masker.mask(""));
+	}
+
+	@Test
+	public void shouldIgnoreEmptySecrets() {
+		SecretMasker masker = new SecretMasker(Lists.newArrayList("", "abc"));
+		assertEquals("x" + MASK + "y", masker.mask("xabcy"));
+
+		masker = new SecretMasker(Lists.newArrayList(""));
+		assertEquals("text", masker.mask("text"));
+	}
+
+	@Test
+	public void shouldMaskSecretsBeingPrefixesOfOthers() {
+		SecretMasker masker = new SecretMasker(Lists.newArrayList("pass", "password"));
+		assertEquals("my " + MASK + " is " + MASK, masker.mask("my password is pass"));
+		assertEquals(MASK + "wor", masker.mask("passwor"));
+
+		masker = new SecretMasker(Lists.newArrayList("password", "pass"));
+		assertEquals(MASK + "1", masker.mask("password1"));
+		assertEquals(MASK, masker.mask("passpassword"));
+	}
+
+	@Test
+	public void shouldMaskSecretsBeingSuffixesOrInfixesOfOthers() {
+		SecretMasker masker = new SecretMasker(Lists.newArrayList("abcdef", "cd", "ef"));
+		assertEquals("x" + MASK + "y", masker.mask("xabcdefy"));
+		assertEquals("abc" + MASK + "y", masker.mask("abcefy"));
+		assertEquals("ab" + MASK + "e", masker.mask("abcde"));
+	}
+
+	@Test
+	public void shouldMaskOverlappingSecretsAsWhole() {
+		SecretMasker masker = new SecretMasker(Lists.newArrayList("abc", "cde"));
+		assertEquals("x" + MASK + "y", masker.mask("xabcdey"));
+
+		masker = new SecretMasker(Lists.newArrayList("aa"));
+		assertEquals(MASK, masker.mask("aaa"));
+		assertEquals(MASK + "b" + MASK, masker.mask("aabaa"));
+	}
+
+	@Test
+	public void shouldMaskAdjacentSecretsAsWhole() {
+		SecretMasker masker = new SecretMasker(Lists.newArrayList("foo", "bar"));
+		assertEquals(MASK, masker.mask("foobar"));
+		assertEquals(MASK + " " + MASK, masker.mask("foo bar"));
+	}
+
+}
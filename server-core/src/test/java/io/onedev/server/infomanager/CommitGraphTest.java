@@ -0,0 +1,278 @@
+package io.onedev.server.infomanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.onedev.commons.utils.FileUtils;
+
+public class CommitGraphTest {
+
+	private File gitDir;
+
+	private File graphDir;
+
+	private Repository repository;
+
+	private PersonIdent user = new PersonIdent("foo", "foo@example.com");
+
+	private int commitCount;
+
+	@Before
+	public void before() throws IOException {
+		gitDir = FileUtils.createTempDir();
+		graphDir = FileUtils.createTempDir();
+		repository = FileRepositoryBuilder.create(gitDir);
+		repository.create(true);
+	}
+
+	@After
+	public void after() {
+		repository.close();
+		FileUtils.deleteDir(gitDir);
+		FileUtils.deleteDir(graphDir);
+	}
+
+	private ObjectId commit(ObjectId... parents) {
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			CommitBuilder builder = new CommitBuilder();
+			builder.setTreeId(inserter.insert(new TreeFormatter()));
+			builder.setParentIds(parents);
+			builder.setAuthor(user);
+			builder.setCommitter(user);
+			builder.setMessage("commit " + commitCount++);
+			ObjectId commitId = inserter.insert(builder);
+			inserter.flush();
+			return commitId;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Set<ObjectId> getDescendants(CommitGraph graph, ObjectId... commitIds) {
+		Collection<Integer> positions = new HashSet<>();
+		for (ObjectId commitId: commitIds)
+			positions.add(graph.positionOf(commitId));
+		Set<ObjectId> descendants = new HashSet<>();
+		BitSet bits = graph.getDescendants(positions);
+		for (int i=bits.nextSetBit(0); i>=0; i=bits.nextSetBit(i+1))
+			descendants.add(graph.getCommitId(i));
+		return descendants;
+	}
+
+	private boolean isAncestor(CommitGraph graph, ObjectId ancestor, ObjectId descendant) {
+		return graph.isAncestor(graph.positionOf(ancestor), graph.positionOf(descendant));
+	}
+
+	private ObjectId getMergeBase(CommitGraph graph, ObjectId commitId1, ObjectId commitId2) {
+		int position = graph.getMergeBase(graph.positionOf(commitId1), graph.positionOf(commitId2));
+		return position != -1? graph.getCommitId(position): null;
+	}
+
+	@Test
+	public void shouldAnswerAncestryQueries() {
+		/*
+		 * root - a1 - a2 ----- merge - tip
+		 *    \                /
+		 *     b1 --------- b2
+		 */
+		ObjectId root = commit();
+		ObjectId a1 = commit(root);
+		ObjectId a2 = commit(a1);
+		ObjectId b1 = commit(root);
+		ObjectId b2 = commit(b1);
+		ObjectId merge = commit(a2, b2);
+		ObjectId tip = commit(merge);
+
+		CommitGraph graph = CommitGraph.load(graphDir).append(repository, tip);
+		assertEquals(7, graph.size());
+		assertEquals(-1, graph.positionOf(commit()));
+		for (ObjectId commitId: Lists.newArrayList(root, a1, a2, b1, b2, merge, tip))
+			assertEquals(commitId, graph.getCommitId(graph.positionOf(commitId)));
+
+		assertTrue(graph.positionOf(root) < graph.positionOf(a1));
+		assertTrue(graph.positionOf(b2) < graph.positionOf(merge));
+		assertEquals(1, graph.getGeneration(graph.positionOf(root)));
+		assertEquals(4, graph.getGeneration(graph.positionOf(merge)));
+
+		assertTrue(isAncestor(graph, root, tip));
+		assertTrue(isAncestor(graph, b1, merge));
+		assertTrue(isAncestor(graph, a2, a2));
+		assertFalse(isAncestor(graph, a1, b2));
+		assertFalse(isAncestor(graph, tip, root));
+
+		assertEquals(root, getMergeBase(graph, a2, b2));
+		assertEquals(a1, getMergeBase(graph, a1, tip));
+		assertEquals(b2, getMergeBase(graph, b2, merge));
+
+		assertEquals(new HashSet<>(Lists.newArrayList(b1, b2, merge, tip)), getDescendants(graph, b1));
+		assertEquals(new HashSet<>(Lists.newArrayList(a2, b2, merge, tip)), getDescendants(graph, a2, b2));
+		assertEquals(7, getDescendants(graph, root).size());
+	}
+
+	@Test
+	public void shouldHandleOctopusMerges() {
+		ObjectId root = commit();
+		ObjectId branch1 = commit(root);
+		ObjectId branch2 = commit(root);
+		ObjectId branch3 = commit(branch2);
+		ObjectId branch4 = commit(root);
+		ObjectId octopus = commit(branch1, branch2, branch3, branch4);
+		ObjectId other = commit(branch4);
+		ObjectId octopus2 = commit(octopus, other, branch1);
+
+		CommitGraph graph = CommitGraph.load(graphDir).append(repository, octopus2);
+		for (int i=0; i<2; i++) {
+			int position = graph.positionOf(octopus);
+			assertEquals(4, graph.getParentCount(position));
+			assertEquals(branch1, graph.getCommitId(graph.getParent(position, 0)));
+			assertEquals(branch3, graph.getCommitId(graph.getParent(position, 2)));
+			assertEquals(branch4, graph.getCommitId(graph.getParent(position, 3)));
+			assertEquals(3, graph.getParentCount(graph.positionOf(octopus2)));
+
+			assertTrue(isAncestor(graph, branch3, octopus));
+			assertTrue(isAncestor(graph, branch4, octopus2));
+			assertFalse(isAncestor(graph, other, octopus));
+			assertEquals(branch4, getMergeBase(graph, octopus, other));
+			assertEquals(new HashSet<>(Lists.newArrayList(branch3, octopus, octopus2)), getDescendants(graph, branch3));
+
+			// extra parents should be read back properly
+			graph = CommitGraph.load(graphDir);
+		}
+	}
+
+	@Test
+	public void shouldTreatCommitsWithMissingParentsAsRoots() {
+		ObjectId missing = ObjectId.fromString("0123456789012345678901234567890123456789");
+		ObjectId shallow = commit(missing);
+		ObjectId other = commit();
+		ObjectId merge = commit(shallow, missing, other);
+		ObjectId tip = commit(merge);
+
+		CommitGraph graph = CommitGraph.load(graphDir).append(repository, tip);
+		assertEquals(4, graph.size());
+		assertEquals(-1, graph.positionOf(missing));
+		assertEquals(0, graph.getParentCount(graph.positionOf(shallow)));
+		assertEquals(1, graph.getGeneration(graph.positionOf(shallow)));
+		assertEquals(2, graph.getParentCount(graph.positionOf(merge)));
+		assertNull(getMergeBase(graph, shallow, other));
+		assertEquals(shallow, getMergeBase(graph, shallow, tip));
+	}
+
+	@Test
+	public void shouldAppendIncrementallyAndReopen() {
+		ObjectId root = commit();
+		ObjectId c1 = commit(root);
+		CommitGraph graph1 = CommitGraph.load(graphDir).append(repository, c1);
+		assertSame(graph1, graph1.append(repository, root));
+
+		ObjectId c2 = commit(c1);
+		ObjectId side = commit(root);
+		ObjectId c3 = commit(c2, side, c1);
+		CommitGraph graph2 = graph1.append(repository, c3);
+		assertEquals(2, graph1.size());
+		assertEquals(-1, graph1.positionOf(c2));
+		assertEquals(5, graph2.size());
+		assertEquals(graph1.positionOf(c1), graph2.positionOf(c1));
+
+		// Grow arrays and hash table well beyond initial capacity
+		ObjectId current = c3;
+		for (int i=0; i<100; i++)
+			current = commit(current);
+		CommitGraph graph3 = graph2.append(repository, current);
+		assertEquals(105, graph3.size());
+		assertTrue(isAncestor(graph3, side, current));
+		assertEquals(c1, getMergeBase(graph3, c1, current));
+
+		CommitGraph reopened = CommitGraph.load(graphDir);
+		assertEquals(105, reopened.size());
+		for (int position=0; position<reopened.size(); position++) {
+			assertEquals(graph3.getCommitId(position), reopened.getCommitId(position));
+			assertEquals(graph3.getGeneration(position), reopened.getGeneration(position));
+			assertEquals(position, reopened.positionOf(reopened.getCommitId(position)));
+		}
+		assertEquals(3, reopened.getParentCount(reopened.positionOf(c3)));
+		assertEquals(getDescendants(graph3, side), getDescendants(reopened, side));
+	}
+
+	@Test
+	public void shouldNotAffectNewerGraphsWhenAppendingToOlderGraph() {
+		ObjectId root = commit();
+		CommitGraph graph = CommitGraph.load(graphDir).append(repository, root);
+		ObjectId branch1 = commit(root);
+		ObjectId branch2 = commit(root);
+
+		CommitGraph graph1 = graph.append(repository, branch1);
+		CommitGraph graph2 = graph.append(repository, branch2);
+		assertEquals(1, graph1.positionOf(branch1));
+		assertEquals(-1, graph1.positionOf(branch2));
+		assertEquals(1, graph2.positionOf(branch2));
+		assertEquals(-1, graph2.positionOf(branch1));
+		assertEquals(branch1, graph1.getCommitId(1));
+
+		CommitGraph reopened = CommitGraph.load(graphDir);
+		assertEquals(2, reopened.size());
+		assertEquals(branch2, reopened.getCommitId(1));
+	}
+
+	@Test
+	public void shouldOverwritePartiallyWrittenData() throws IOException {
+		ObjectId root = commit();
+		ObjectId c1 = commit(root);
+		CommitGraph graph = CommitGraph.load(graphDir).append(repository, c1);
+
+		// Simulate a previous append failing after writing part of its data
+		try (FileOutputStream os = new FileOutputStream(new File(graphDir, "commits"), true)) {
+			os.write(new byte[] {1, 2, 3, 4, 5});
+		}
+		try (FileOutputStream os = new FileOutputStream(new File(graphDir, "extra-parents"), true)) {
+			os.write(new byte[] {1, 2});
+		}
+		assertEquals(2, CommitGraph.load(graphDir).size());
+
+		ObjectId side1 = commit(root);
+		ObjectId side2 = commit(root);
+		ObjectId octopus = commit(c1, side1, side2);
+		ObjectId tip = commit(octopus);
+		graph = graph.append(repository, tip);
+
+		CommitGraph reopened = CommitGraph.load(graphDir);
+		assertEquals(6, reopened.size());
+		for (ObjectId commitId: Lists.newArrayList(root, c1, side1, side2, octopus, tip))
+			assertEquals(graph.positionOf(commitId), reopened.positionOf(commitId));
+		assertEquals(3, reopened.getParentCount(reopened.positionOf(octopus)));
+		assertEquals(side2, reopened.getCommitId(reopened.getParent(reopened.positionOf(octopus), 2)));
+
+		// Partial record of a loaded graph is overwritten by next append as well
+		try (RandomAccessFile file = new RandomAccessFile(new File(graphDir, "commits"), "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		reopened = CommitGraph.load(graphDir);
+		assertEquals(5, reopened.size());
+		assertEquals(-1, reopened.positionOf(tip));
+		reopened = reopened.append(repository, tip);
+		assertEquals(6, CommitGraph.load(graphDir).size());
+		assertEquals(reopened.getCommitId(5), CommitGraph.load(graphDir).getCommitId(5));
+	}
+
+}
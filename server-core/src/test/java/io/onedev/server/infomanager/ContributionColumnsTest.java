@@ -0,0 +1,71 @@
+package io.onedev.server.infomanager;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.onedev.server.git.GitContribution;
+import io.onedev.server.util.Day;
+
+public class ContributionColumnsTest {
+
+	@Test
+	public void shouldEncodeDayValuesInOrder() {
+		Day lastDayOfYear = new Day(2019, 11, 31);
+		Day firstDayOfYear = new Day(2020, 0, 1);
+		Day leapDay = new Day(2020, 1, 29);
+		Day lastDayOfFebruary = new Day(2020, 1, 28);
+
+		for (Day day: new Day[] {lastDayOfYear, firstDayOfYear, leapDay, lastDayOfFebruary}) {
+			assertEquals(day, new Day(day.getValue()));
+			assertEquals(day, new Day(day.getDate()));
+		}
+		assertEquals((2019<<16) | (11<<8) | 31, lastDayOfYear.getValue());
+		assertTrue(lastDayOfYear.getValue() < firstDayOfYear.getValue());
+		assertTrue(lastDayOfFebruary.getValue() < leapDay.getValue());
+		assertTrue(leapDay.getValue() < new Day(2020, 2, 1).getValue());
+	}
+
+	@Test
+	public void shouldKeepEntriesSortedAndRoundTrip() {
+		ContributionColumns columns = new ContributionColumns();
+		assertEquals(0, ContributionColumns.decode(columns.encode()).size());
+		assertEquals(0, ContributionColumns.decode(null).size());
+
+		int firstDayOfYear = new Day(2020, 0, 1).getValue();
+		int lastDayOfYear = new Day(2019, 11, 31).getValue();
+		int leapDay = new Day(2020, 1, 29).getValue();
+
+		columns.add(leapDay, 1, 10, 1);
+		columns.add(firstDayOfYear, 1, 20, 2);
+		columns.add(lastDayOfYear, 1, 30, 3);
+		columns.add(firstDayOfYear, 2, 5, 5);
+
+		// grow beyond initial capacity
+		for (int i=0; i<20; i++)
+			columns.add(new Day(2021, 0, i+1).getValue(), 1, i, 0);
+
+		ContributionColumns decoded = ContributionColumns.decode(columns.encode());
+		assertEquals(23, decoded.size());
+		for (int i=1; i<decoded.size(); i++)
+			assertTrue(decoded.getKey(i-1) < decoded.getKey(i));
+
+		assertEquals(lastDayOfYear, decoded.getKey(0));
+		assertEquals(firstDayOfYear, decoded.getKey(1));
+		assertEquals(leapDay, decoded.getKey(2));
+
+		GitContribution contribution = decoded.getContribution(1);
+		assertEquals(3, contribution.getCommits());
+		assertEquals(25, contribution.getAdditions());
+		assertEquals(7, contribution.getDeletions());
+		assertEquals(30, decoded.getValue(0, GitContribution.Type.ADDITIONS));
+		assertEquals(3, decoded.getValue(0, GitContribution.Type.DELETIONS));
+		assertEquals(19, decoded.getAdditions(22));
+
+		assertEquals(0, decoded.ceilingIndexOf(0));
+		assertEquals(1, decoded.ceilingIndexOf(firstDayOfYear));
+		assertEquals(2, decoded.ceilingIndexOf(new Day(2020, 1, 1).getValue()));
+		assertEquals(decoded.size(), decoded.ceilingIndexOf(new Day(2022, 0, 1).getValue()));
+	}
+
+}
@@ -0,0 +1,171 @@
+package io.onedev.server.infomanager;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import io.onedev.server.infomanager.ContributionRollups.Granularity;
+import io.onedev.server.util.Day;
+
+public class ContributionRollupsTest {
+
+	@Test
+	public void shouldBucketDaysIntoWeeksAndMonths() {
+		assertEquals(new Day(2020, 1, 1).getValue(), ContributionRollups.getWeekValue(new Day(2020, 1, 7).getValue()));
+		assertEquals(new Day(2020, 1, 8).getValue(), ContributionRollups.getWeekValue(new Day(2020, 1, 8).getValue()));
+		assertEquals(new Day(2020, 1, 22).getValue(), ContributionRollups.getWeekValue(new Day(2020, 1, 28).getValue()));
+		assertEquals(new Day(2020, 1, 29).getValue(), ContributionRollups.getWeekValue(new Day(2020, 1, 29).getValue()));
+		assertEquals(new Day(2019, 11, 29).getValue(), ContributionRollups.getWeekValue(new Day(2019, 11, 31).getValue()));
+
+		assertEquals((2019<<16) | (11<<8), ContributionRollups.getMonthValue(new Day(2019, 11, 31).getValue()));
+		assertEquals((2020<<16), ContributionRollups.getMonthValue(new Day(2020, 0, 1).getValue()));
+	}
+
+	@Test
+	public void shouldVisitEachDayOfRangeExactlyOnce() {
+		List<Integer> days = getDays(new Day(2019, 10, 20), new Day(2020, 3, 10));
+		for (int from=0; from<days.size(); from+=3) {
+			for (int to=from; to<days.size(); to+=5) {
+				Map<Integer, Integer> visitCounts = new HashMap<>();
+				int fromDayValue = days.get(from);
+				int toDayValue = days.get(to);
+				ContributionRollups.visit(fromDayValue, toDayValue, new ContributionRollups.RollupVisitor() {
+
+					@Override
+					public void visit(Granularity granularity, int key) {
+						for (int dayValue: expand(granularity, key))
+							visitCounts.merge(dayValue, 1, Integer::sum);
+					}
+
+				});
+				assertEquals(to-from+1, visitCounts.size());
+				for (int i=from; i<=to; i++)
+					assertEquals(Integer.valueOf(1), visitCounts.get(days.get(i)));
+			}
+		}
+	}
+
+	@Test
+	public void shouldUseRollupsOfFullyCoveredWeeksAndMonths() {
+		List<Granularity> granularities = new ArrayList<>();
+		ContributionRollups.visit(new Day(2019, 11, 31).getValue(), new Day(2020, 2, 8).getValue(),
+				new ContributionRollups.RollupVisitor() {
+
+			@Override
+			public void visit(Granularity granularity, int key) {
+				granularities.add(granularity);
+			}
+
+		});
+		// Dec 31, January, February (leap year), and Mar 1-7 plus Mar 8
+		assertEquals(5, granularities.size());
+		assertEquals(Granularity.DAY, granularities.get(0));
+		assertEquals(Granularity.MONTH, granularities.get(1));
+		assertEquals(Granularity.MONTH, granularities.get(2));
+		assertEquals(Granularity.WEEK, granularities.get(3));
+		assertEquals(Granularity.DAY, granularities.get(4));
+
+		granularities.clear();
+		ContributionRollups.visit(new Day(2020, 0, 2).getValue(), new Day(2020, 0, 1).getValue(),
+				new ContributionRollups.RollupVisitor() {
+
+			@Override
+			public void visit(Granularity granularity, int key) {
+				granularities.add(granularity);
+			}
+
+		});
+		assertTrue(granularities.isEmpty());
+	}
+
+	@Test
+	public void shouldSumRollupsAsDailyContributions() {
+		Map<Integer, ContributionColumns> daily = new HashMap<>();
+		Map<Integer, ContributionColumns> weekly = new HashMap<>();
+		Map<Integer, ContributionColumns> monthly = new HashMap<>();
+
+		List<Integer> days = getDays(new Day(2019, 11, 1), new Day(2020, 2, 31));
+		Random random = new Random(0);
+		for (int i=0; i<2000; i++) {
+			int dayValue = days.get(random.nextInt(days.size()));
+			int userIndex = random.nextInt(5);
+			int additions = random.nextInt(100);
+			add(daily, dayValue, userIndex, additions);
+			add(weekly, ContributionRollups.getWeekValue(dayValue), userIndex, additions);
+			add(monthly, ContributionRollups.getMonthValue(dayValue), userIndex, additions);
+		}
+
+		for (int from=0; from<days.size(); from+=11) {
+			for (int to=from; to<days.size(); to+=13) {
+				int[] expected = new int[5];
+				for (int i=from; i<=to; i++)
+					sum(expected, daily.get(days.get(i)));
+
+				int[] actual = new int[5];
+				ContributionRollups.visit(days.get(from), days.get(to), new ContributionRollups.RollupVisitor() {
+
+					@Override
+					public void visit(Granularity granularity, int key) {
+						if (granularity == Granularity.MONTH)
+							sum(actual, monthly.get(key));
+						else if (granularity == Granularity.WEEK)
+							sum(actual, weekly.get(key));
+						else
+							sum(actual, daily.get(key));
+					}
+
+				});
+				assertArrayEquals(expected, actual);
+			}
+		}
+	}
+
+	private static void add(Map<Integer, ContributionColumns> contributions, int key, int userIndex, int additions) {
+		ContributionColumns columns = contributions.get(key);
+		columns = ContributionColumns.decode(columns != null? columns.encode(): null);
+		columns.add(userIndex, 1, additions, 0);
+		contributions.put(key, columns);
+	}
+
+	private static void sum(int[] additions, ContributionColumns columns) {
+		if (columns != null) {
+			for (int i=0; i<columns.size(); i++)
+				additions[columns.getKey(i)] += columns.getAdditions(i);
+		}
+	}
+
+	private static List<Integer> getDays(Day fromDay, Day toDay) {
+		List<Integer> days = new ArrayList<>();
+		for (DateTime date = fromDay.getDate(); !date.isAfter(toDay.getDate()); date = date.plusDays(1))
+			days.add(new Day(date).getValue());
+		return days;
+	}
+
+	private static List<Integer> expand(Granularity granularity, int key) {
+		List<Integer> days = new ArrayList<>();
+		if (granularity == Granularity.DAY) {
+			days.add(key);
+		} else {
+			DateTime date = new Day(key | 1).getDate();
+			int lastDayOfMonth = date.dayOfMonth().getMaximumValue();
+			if (granularity == Granularity.MONTH) {
+				for (int dayOfMonth=1; dayOfMonth<=lastDayOfMonth; dayOfMonth++)
+					days.add(ContributionRollups.getMonthValue(key) | dayOfMonth);
+			} else {
+				int weekStart = key & 0xff;
+				int weekEnd = weekStart==29? lastDayOfMonth: weekStart+6;
+				for (int dayOfMonth=weekStart; dayOfMonth<=weekEnd; dayOfMonth++)
+					days.add(ContributionRollups.getMonthValue(key) | dayOfMonth);
+			}
+		}
+		return days;
+	}
+
+}
@@ -0,0 +1,110 @@
+package io.onedev.server.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+	@Test
+	public void shouldGrowAndShrink() {
+		LongHashSet set = new LongHashSet();
+		assertTrue(set.isEmpty());
+		for (long i=1; i<=10000; i++)
+			assertTrue(set.add(i));
+		assertEquals(10000, set.size());
+		for (long i=1; i<=10000; i++)
+			assertTrue(set.contains(i));
+		assertFalse(set.contains(10001));
+
+		for (long i=1; i<=9990; i++)
+			assertTrue(set.remove(i));
+		assertEquals(10, set.size());
+		for (long i=1; i<=10000; i++)
+			assertEquals(i>9990, set.contains(i));
+
+		long[] values = set.toArray();
+		Arrays.sort(values);
+		assertEquals(9991, values[0]);
+		assertEquals(10000, values[9]);
+	}
+
+	@Test
+	public void shouldHandleZeroAndDuplicates() {
+		LongHashSet set = new LongHashSet();
+		assertFalse(set.contains(0));
+		assertTrue(set.add(0));
+		assertFalse(set.add(0));
+		assertTrue(set.add(-1));
+		assertFalse(set.add(-1));
+		assertTrue(set.add(Long.MIN_VALUE));
+		assertTrue(set.add(Long.MAX_VALUE));
+		assertEquals(4, set.size());
+		assertEquals(new HashSet<>(Arrays.asList(0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE)), set.toCollection());
+
+		assertTrue(set.remove(0));
+		assertFalse(set.remove(0));
+		assertFalse(set.contains(0));
+		assertFalse(set.remove(1));
+		assertEquals(3, set.size());
+	}
+
+	@Test
+	public void shouldKeepCollidingValuesReachableAfterRemoval() {
+		LongHashSet set = new LongHashSet();
+
+		// values hashing to the same slot of the initial table with 16 slots
+		long[] colliding = new long[6];
+		int count = 0;
+		for (long value=1; count<colliding.length; value++) {
+			if (slotOf(value, 16) == slotOf(1, 16))
+				colliding[count++] = value;
+		}
+		for (long value: colliding)
+			assertTrue(set.add(value));
+		for (long value: colliding)
+			assertTrue(set.contains(value));
+
+		assertTrue(set.remove(colliding[0]));
+		assertTrue(set.remove(colliding[3]));
+		assertFalse(set.contains(colliding[0]));
+		assertFalse(set.contains(colliding[3]));
+		for (int i: new int[] {1, 2, 4, 5})
+			assertTrue(set.contains(colliding[i]));
+
+		assertTrue(set.add(colliding[0]));
+		assertFalse(set.add(colliding[1]));
+		assertEquals(5, set.size());
+	}
+
+	private static int slotOf(long value, int capacity) {
+		long hash = value * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & (capacity-1);
+	}
+
+	@Test
+	public void shouldBehaveLikeHashSet() {
+		Random random = new Random(0);
+		LongHashSet set = new LongHashSet();
+		Set<Long> expected = new HashSet<>();
+		for (int i=0; i<100000; i++) {
+			long value = random.nextInt(2000) - 1000;
+			if (random.nextInt(3) == 0)
+				assertEquals(expected.remove(value), set.remove(value));
+			else
+				assertEquals(expected.add(value), set.add(value));
+			if (i % 1000 == 0) {
+				for (long j=-1000; j<1000; j++)
+					assertEquals(expected.contains(j), set.contains(j));
+			}
+		}
+		assertEquals(expected.size(), set.size());
+		assertEquals(expected, set.toCollection());
+	}
+
+}
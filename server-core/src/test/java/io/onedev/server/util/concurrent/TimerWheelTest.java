@@ -0,0 +1,90 @@
+package io.onedev.server.util.concurrent;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class TimerWheelTest {
+
+	private static final long TICK = 1000;
+	
+	@Test
+	public void shouldExpireItemsAtScheduledTime() {
+		TimerWheel<String> wheel = new TimerWheel<>(TICK, 8);
+		long now = System.currentTimeMillis();
+		wheel.schedule("a", now + 2*TICK);
+		wheel.schedule("b", now + 5*TICK);
+		
+		assertTrue(wheel.advance(now).isEmpty());
+		assertTrue(wheel.advance(now + TICK).isEmpty());
+		assertTrue(wheel.advance(now + 2*TICK).isEmpty());
+		assertEquals(Sets.newHashSet("a"), Sets.newHashSet(wheel.advance(now + 3*TICK)));
+		assertTrue(wheel.advance(now + 5*TICK).isEmpty());
+		assertEquals(Sets.newHashSet("b"), Sets.newHashSet(wheel.advance(now + 6*TICK)));
+		assertTrue(wheel.advance(now + 7*TICK).isEmpty());
+	}
+	
+	@Test
+	public void shouldNotExpireItemsBeforeDeadlinesNotAlignedToTicks() {
+		for (long offset=0; offset<TICK; offset+=100) {
+			TimerWheel<String> wheel = new TimerWheel<>(TICK, 8);
+			long now = System.currentTimeMillis();
+			long deadline = now + 2*TICK + offset;
+			wheel.schedule("a", deadline);
+			
+			long time = now;
+			while (time <= deadline) {
+				assertTrue(wheel.advance(time).isEmpty());
+				time += 50;
+			}
+			assertTrue(wheel.advance(deadline).isEmpty());
+			while (time <= deadline + TICK) {
+				if (!wheel.advance(time).isEmpty())
+					break;
+				time += 50;
+			}
+			assertTrue(time > deadline && time <= deadline + TICK);
+		}
+	}
+	
+	@Test
+	public void shouldNotExpireItemsOfLaterRounds() {
+		TimerWheel<String> wheel = new TimerWheel<>(TICK, 4);
+		long now = System.currentTimeMillis();
+		wheel.schedule("a", now + TICK);
+		// Falls into the same slot as "a", but several rounds later
+		wheel.schedule("b", now + 9*TICK);
+		
+		assertTrue(wheel.advance(now + TICK).isEmpty());
+		assertEquals(Sets.newHashSet("a"), Sets.newHashSet(wheel.advance(now + 2*TICK)));
+		for (int i=3; i<10; i++)
+			assertTrue(wheel.advance(now + i*TICK).isEmpty());
+		assertEquals(Sets.newHashSet("b"), Sets.newHashSet(wheel.advance(now + 10*TICK)));
+	}
+	
+	@Test
+	public void shouldExpirePastItemsOnNextAdvance() {
+		TimerWheel<String> wheel = new TimerWheel<>(TICK, 8);
+		long now = System.currentTimeMillis();
+		wheel.advance(now + 3*TICK);
+		wheel.schedule("a", now);
+		wheel.schedule("b", now - 100*TICK);
+		assertEquals(Sets.newHashSet("a", "b"), Sets.newHashSet(wheel.advance(now + 4*TICK)));
+	}
+	
+	@Test
+	public void shouldCollectAllExpiredItemsWhenAdvancedOverManyRounds() {
+		TimerWheel<Integer> wheel = new TimerWheel<>(TICK, 4);
+		long now = System.currentTimeMillis();
+		for (int i=0; i<20; i++)
+			wheel.schedule(i, now + i*TICK);
+		wheel.schedule(100, now + 100*TICK);
+		
+		assertEquals(20, wheel.advance(now + 50*TICK).size());
+		assertTrue(wheel.advance(now + 100*TICK).isEmpty());
+		assertEquals(Sets.newHashSet(100), Sets.newHashSet(wheel.advance(now + 101*TICK)));
+	}
+	
+}
@@ -91,8 +91,13 @@ public class CloverPluginModule extends AbstractPluginModule {
 						if (build.getReportDir(JobCloverReport.DIR).exists()) {
 							for (File reportDir: build.getReportDir(JobCloverReport.DIR).listFiles()) {
 								if (SecurityUtils.canAccessReport(build, reportDir.getName())) { 
+									File packedFile = new File(reportDir, LineCoverageFile.FILE_NAME);
 									File lineCoverageFile = new File(reportDir, JobCloverReport.LINE_COVERAGES_DIR + "/" + blobPath);
-									if (lineCoverageFile.exists()) {
+									if (packedFile.exists()) {
+										LineCoverageFile.read(packedFile, blobPath, (lineNum, testCount) -> {
+											coverages.merge(lineNum, testCount, (v1, v2) -> v1+v2);
+										});
+									} else if (lineCoverageFile.exists()) {
 										try (InputStream is = new FileInputStream(lineCoverageFile)) {
 											@SuppressWarnings("unchecked")
 											Map<Integer, Integer> deserialized = (Map<Integer, Integer>) SerializationUtils.deserialize(is);
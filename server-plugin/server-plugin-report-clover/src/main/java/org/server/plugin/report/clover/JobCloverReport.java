@@ -1,21 +1,21 @@
 package org.server.plugin.report.clover;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.Serializable;
-import java.util.HashMap;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
 
-import org.apache.commons.lang.SerializationUtils;
-import org.dom4j.Document;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
 import org.hibernate.validator.constraints.NotEmpty;
 
+import com.google.common.collect.Lists;
+
 import io.onedev.commons.codeassist.InputSuggestion;
 import io.onedev.commons.utils.ExceptionUtils;
 import io.onedev.commons.utils.FileUtils;
@@ -39,8 +39,18 @@ public class JobCloverReport extends JobReport {
 	
 	public static final String DIR = "clover-reports";
 	
+	/**
+	 * Line coverages of reports generated by previous versions are stored as individual files 
+	 * under this directory. Newer reports use {@link LineCoverageFile} instead
+	 */
 	public static final String LINE_COVERAGES_DIR = "line-coverages";
 	
+	private static final List<String> PROJECT_METRICS_PATH = Lists.newArrayList("coverage", "project", "metrics");
+	
+	private static final List<String> FILE_PATH = Lists.newArrayList("coverage", "project", "package", "file");
+	
+	private static final List<String> LINE_PATH = Lists.newArrayList("coverage", "project", "package", "file", "line");
+	
 	@Editable(order=100, description="Specify clover xml file containing coverage metrics. This should be a "
 			+ "relative path under OneDev workspace. For instance, <tt>target/site/clover/clover.xml</tt>. "
 			+ "Refer to <a href='https://openclover.org/documentation'>OpenClover documentation</a> "
@@ -72,10 +82,11 @@ public class JobCloverReport extends JobReport {
 			@Override
 			public CloverReportData call() throws Exception {
 				int baseLen = workspace.getAbsolutePath().length() + 1;
-				SAXReader reader = new SAXReader();
+				XMLInputFactory factory = XMLInputFactory.newInstance();
 				
 				// Prevent XXE attack as the xml might be provided by malicious users
-				reader.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+				factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+				factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
 
 				int totalStatements = 0;
 				int coveredStatements = 0;
@@ -83,52 +94,53 @@ public class JobCloverReport extends JobReport {
 				int coveredMethods = 0;
 				int totalBranches = 0;
 				int coveredBranches = 0;
-				int totalLines = 0;
-				int coveredLines = 0;
 
+				LineCoverageFile.Builder lineCoverages = new LineCoverageFile.Builder();
+				
 				boolean hasReport = false;
 				for (File file: getPatternSet().listFiles(workspace)) {
 					logger.log("Processing clover coverage report: " + file.getAbsolutePath().substring(baseLen));
-					try {
-						Document doc = reader.read(file);
-						for (Element projectElement: doc.getRootElement().elements("project")) {
-							Element metricsElement = projectElement.element("metrics");
-							
-							totalStatements += Integer.parseInt(metricsElement.attributeValue("statements"));
-							totalMethods += Integer.parseInt(metricsElement.attributeValue("methods"));
-							totalBranches += Integer.parseInt(metricsElement.attributeValue("conditionals"));
-							
-							coveredStatements += Integer.parseInt(metricsElement.attributeValue("coveredstatements"));
-							coveredMethods += Integer.parseInt(metricsElement.attributeValue("coveredmethods"));
-							coveredBranches += Integer.parseInt(metricsElement.attributeValue("coveredconditionals"));
-							
-							for (Element packageElement: projectElement.elements("package")) {
-								for (Element fileElement: packageElement.elements("file")) {
-									String path = fileElement.attributeValue("path");
-									if (build.getJobWorkspace() != null && path.startsWith(build.getJobWorkspace())) { 
-										path = path.substring(build.getJobWorkspace().length()+1);
-										Map<Integer, Integer> lineCoverages = new HashMap<>();
-										for (Element lineElement: fileElement.elements("line")) {
-											int lineNum = Integer.parseInt(lineElement.attributeValue("num")) - 1;
-											String testCountStr = lineElement.attributeValue("count");
-											if (testCountStr != null) {
-												int testCount = Integer.parseInt(testCountStr);
-												lineCoverages.merge(lineNum, testCount, (v1, v2)->v1+v2);
-											}
-										}
-										totalLines += lineCoverages.size();
-										coveredLines += lineCoverages.entrySet().stream().filter(it->it.getValue()!=0).count();
+					try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+						XMLStreamReader reader = factory.createXMLStreamReader(is);
+						try {
+							// Stream the report as it can be very large for big projects
+							List<String> elementPath = new ArrayList<>();
+							String path = null;
+							while (reader.hasNext()) {
+								int event = reader.next();
+								if (event == XMLStreamConstants.START_ELEMENT) {
+									String elementName = reader.getLocalName();
+									elementPath.add(elementName);
+									if (elementPath.equals(PROJECT_METRICS_PATH)) {
+										totalStatements += Integer.parseInt(reader.getAttributeValue(null, "statements"));
+										totalMethods += Integer.parseInt(reader.getAttributeValue(null, "methods"));
+										totalBranches += Integer.parseInt(reader.getAttributeValue(null, "conditionals"));
 										
-										File lineCoverateFile = new File(reportDir, LINE_COVERAGES_DIR + "/" + path);
-										FileUtils.createDir(lineCoverateFile.getParentFile());
-										try (OutputStream os = new FileOutputStream(lineCoverateFile)) {
-											SerializationUtils.serialize((Serializable) lineCoverages, os);
-										} catch (IOException e) {
-											throw new RuntimeException(e);
-										};
+										coveredStatements += Integer.parseInt(reader.getAttributeValue(null, "coveredstatements"));
+										coveredMethods += Integer.parseInt(reader.getAttributeValue(null, "coveredmethods"));
+										coveredBranches += Integer.parseInt(reader.getAttributeValue(null, "coveredconditionals"));
+									} else if (elementPath.equals(FILE_PATH)) {
+										path = reader.getAttributeValue(null, "path");
+										if (build.getJobWorkspace() != null && path.startsWith(build.getJobWorkspace())) 
+											path = path.substring(build.getJobWorkspace().length()+1);
+										else 
+											path = null;
+									} else if (path != null && elementPath.equals(LINE_PATH)) {
+										int lineNum = Integer.parseInt(reader.getAttributeValue(null, "num")) - 1;
+										String testCountStr = reader.getAttributeValue(null, "count");
+										if (testCountStr != null) 
+											lineCoverages.addLine(lineNum, Integer.parseInt(testCountStr));
+									}
+								} else if (event == XMLStreamConstants.END_ELEMENT) {
+									if (path != null && elementPath.equals(FILE_PATH)) {
+										lineCoverages.endFile(path);
+										path = null;
 									}
+									elementPath.remove(elementPath.size()-1);
 								}
 							}
+						} finally {
+							reader.close();
 						}
 					} catch (Exception e) {
 						throw ExceptionUtils.unchecked(e);
@@ -137,9 +149,10 @@ public class JobCloverReport extends JobReport {
 				}
 				if (hasReport) {
 					CloverReportData report = new CloverReportData(totalStatements, coveredStatements, totalMethods, coveredMethods, 
-							totalBranches, coveredBranches, totalLines, coveredLines);
+							totalBranches, coveredBranches, lineCoverages.getTotalLines(), lineCoverages.getCoveredLines());
 					FileUtils.createDir(reportDir);
 					report.writeTo(reportDir);
+					lineCoverages.writeTo(new File(reportDir, LineCoverageFile.FILE_NAME));
 					return report;
 				} else {
 					return null;
@@ -0,0 +1,208 @@
+package org.server.plugin.report.clover;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Line coverages of all source files of a clover report packed into a single file. The file
+ * starts with a header, followed by index records sorted by source path, source paths, and
+ * delta encoded line coverages of each source file:
+ *
+ * <pre>
+ * header: magic(int) version(int) fileCount(int)
+ * record: pathOffset(int) pathLength(int) dataOffset(long) dataLength(int)
+ * data: (lineDelta(varint) count(varint))*
+ * </pre>
+ *
+ * Line coverages of a source file can then be looked up with a binary search over index records,
+ * without loading the whole file.
+ */
+public class LineCoverageFile {
+
+	public static final String FILE_NAME = "line-coverages.bin";
+
+	private static final int MAGIC = 0x434c5652;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 12;
+
+	private static final int RECORD_SIZE = 20;
+
+	public static class Builder {
+
+		private final Map<byte[], byte[]> files = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+
+		// Line number in high 32 bits, and test count in low 32 bits
+		private long[] lines = new long[256];
+
+		private int lineCount;
+
+		private int totalLines;
+
+		private int coveredLines;
+
+		public void addLine(int lineNum, int testCount) {
+			if (lineCount == lines.length)
+				lines = Arrays.copyOf(lines, lineCount*2);
+			lines[lineCount++] = ((long)lineNum << 32) | (testCount & 0xffffffffL);
+		}
+
+		/**
+		 * Finish lines added since last call as line coverages of specified source file. Test
+		 * counts of the same line are summed up
+		 */
+		public void endFile(String path) {
+			Arrays.sort(lines, 0, lineCount);
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			int prevLineNum = -1;
+			int i = 0;
+			while (i < lineCount) {
+				int lineNum = (int) (lines[i] >> 32);
+				int testCount = 0;
+				for (; i < lineCount && (int) (lines[i] >> 32) == lineNum; i++)
+					testCount += (int) lines[i];
+				writeVarInt(data, lineNum - prevLineNum);
+				writeVarInt(data, testCount);
+				prevLineNum = lineNum;
+				totalLines++;
+				if (testCount != 0)
+					coveredLines++;
+			}
+			lineCount = 0;
+			files.put(path.getBytes(StandardCharsets.UTF_8), data.toByteArray());
+		}
+
+		public int getTotalLines() {
+			return totalLines;
+		}
+
+		public int getCoveredLines() {
+			return coveredLines;
+		}
+
+		public void writeTo(File file) {
+			try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				os.writeInt(MAGIC);
+				os.writeInt(VERSION);
+				os.writeInt(files.size());
+
+				long pathsLength = 0;
+				for (byte[] path: files.keySet())
+					pathsLength += path.length;
+
+				int pathOffset = 0;
+				long dataOffset = HEADER_SIZE + (long)files.size()*RECORD_SIZE + pathsLength;
+				for (Map.Entry<byte[], byte[]> entry: files.entrySet()) {
+					os.writeInt(pathOffset);
+					os.writeInt(entry.getKey().length);
+					os.writeLong(dataOffset);
+					os.writeInt(entry.getValue().length);
+					pathOffset += entry.getKey().length;
+					dataOffset += entry.getValue().length;
+				}
+				for (byte[] path: files.keySet())
+					os.write(path);
+				for (byte[] data: files.values())
+					os.write(data);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static void writeVarInt(ByteArrayOutputStream os, int value) {
+			while ((value & ~0x7f) != 0) {
+				os.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			os.write(value);
+		}
+
+	}
+
+	public static interface LineCoverageConsumer {
+
+		void accept(int lineNum, int testCount);
+
+	}
+
+	/**
+	 * Pass line coverages of specified source file to specified consumer. Nothing will be passed
+	 * if the source file is not covered by the report
+	 */
+	public static void read(File file, String path, LineCoverageConsumer consumer) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IllegalStateException("Unexpected line coverage file format: " + file.getAbsolutePath());
+			int fileCount = header.getInt();
+			long pathsOffset = HEADER_SIZE + (long)fileCount*RECORD_SIZE;
+
+			byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+			int low = 0;
+			int high = fileCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				ByteBuffer record = read(channel, HEADER_SIZE + (long)mid*RECORD_SIZE, RECORD_SIZE);
+				int pathOffset = record.getInt();
+				int pathLength = record.getInt();
+				byte[] midPathBytes = read(channel, pathsOffset + pathOffset, pathLength).array();
+				int result = UnsignedBytes.lexicographicalComparator().compare(midPathBytes, pathBytes);
+				if (result < 0) {
+					low = mid + 1;
+				} else if (result > 0) {
+					high = mid - 1;
+				} else {
+					long dataOffset = record.getLong();
+					int dataLength = record.getInt();
+					ByteBuffer data = read(channel, dataOffset, dataLength);
+					int lineNum = -1;
+					while (data.hasRemaining()) {
+						lineNum += readVarInt(data);
+						consumer.accept(lineNum, readVarInt(data));
+					}
+					break;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1)
+				throw new EOFException();
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int readVarInt(ByteBuffer buffer) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.server.plugin.report.clover;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.onedev.commons.utils.FileUtils;
+
+public class LineCoverageFileTest {
+
+	private File dir;
+
+	@Before
+	public void before() {
+		dir = FileUtils.createTempDir();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteDir(dir);
+	}
+
+	private Map<Integer, Integer> read(File file, String path) {
+		Map<Integer, Integer> coverages = new LinkedHashMap<>();
+		LineCoverageFile.read(file, path, new LineCoverageFile.LineCoverageConsumer() {
+
+			@Override
+			public void accept(int lineNum, int testCount) {
+				assertNull(coverages.put(lineNum, testCount));
+			}
+
+		});
+		return coverages;
+	}
+
+	@Test
+	public void shouldSumDuplicateLines() {
+		LineCoverageFile.Builder builder = new LineCoverageFile.Builder();
+		builder.addLine(10, 2);
+		builder.addLine(3, 0);
+		builder.addLine(10, 1);
+		builder.addLine(0, 1);
+		builder.addLine(100000, 7);
+		builder.addLine(3, 0);
+		builder.endFile("src/Test.java");
+
+		assertEquals(4, builder.getTotalLines());
+		assertEquals(3, builder.getCoveredLines());
+
+		File file = new File(dir, LineCoverageFile.FILE_NAME);
+		builder.writeTo(file);
+
+		Map<Integer, Integer> coverages = read(file, "src/Test.java");
+		assertEquals("{0=1, 3=0, 10=3, 100000=7}", coverages.toString());
+	}
+
+	@Test
+	public void shouldLookUpNonAsciiPaths() {
+		String[] paths = new String[] {"src/z.java", "src/中文/测试.java", "src/a.java",
+				"src/ünïcödé.java", "src/ü.java", "src/Ω/b.java"};
+
+		LineCoverageFile.Builder builder = new LineCoverageFile.Builder();
+		for (int i=0; i<paths.length; i++) {
+			builder.addLine(i+1, i);
+			builder.addLine(1000 + i, 1);
+			builder.endFile(paths[i]);
+		}
+		assertEquals(paths.length*2, builder.getTotalLines());
+
+		File file = new File(dir, LineCoverageFile.FILE_NAME);
+		builder.writeTo(file);
+
+		for (int i=0; i<paths.length; i++) {
+			Map<Integer, Integer> coverages = read(file, paths[i]);
+			assertEquals(2, coverages.size());
+			assertEquals(Integer.valueOf(i), coverages.get(i+1));
+			assertEquals(Integer.valueOf(1), coverages.get(1000 + i));
+		}
+	}
+
+	@Test
+	public void shouldPassNothingForMissingPaths() {
+		LineCoverageFile.Builder builder = new LineCoverageFile.Builder();
+		builder.addLine(1, 1);
+		builder.endFile("src/b.java");
+		builder.addLine(2, 1);
+		builder.endFile("src/d.java");
+		builder.endFile("src/empty.java");
+
+		File file = new File(dir, LineCoverageFile.FILE_NAME);
+		builder.writeTo(file);
+
+		for (String path: new String[] {"", "src/a.java", "src/c.java", "src/z.java", "src/b.jav", "src/中文.java"})
+			assertTrue(read(file, path).isEmpty());
+		assertTrue(read(file, "src/empty.java").isEmpty());
+		assertEquals(1, read(file, "src/d.java").size());
+
+		File emptyFile = new File(dir, "empty.bin");
+		new LineCoverageFile.Builder().writeTo(emptyFile);
+		assertTrue(read(emptyFile, "src/b.java").isEmpty());
+	}
+
+}